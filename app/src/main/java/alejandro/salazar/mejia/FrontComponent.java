@@ -1,10 +1,15 @@
 package alejandro.salazar.mejia;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -12,19 +17,38 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import alejandro.salazar.mejia.dao.RollUpTooLargeException;
 import alejandro.salazar.mejia.dao.UserDao;
+import alejandro.salazar.mejia.dao.UserTagBatch;
 import alejandro.salazar.mejia.domain.Action;
 import alejandro.salazar.mejia.domain.Aggregate;
 import alejandro.salazar.mejia.domain.AggregatesQueryResult;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.BatchResult;
 import alejandro.salazar.mejia.domain.UserProfileResult;
 import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.SpaceSaving;
 
 @RestController
+@ConditionalOnProperty(name = "front.mode", havingValue = "SERVLET", matchIfMissing = true)
 public class FrontComponent {
 
     @Autowired
     private UserDao userDao;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${ingest.batch.max-events:10000}")
+    private int batchMaxEvents;
+
     private static final Logger log = LoggerFactory.getLogger(FrontComponent.class);
 
     @PostMapping("/user_tags")
@@ -41,6 +65,65 @@ public class FrontComponent {
         return ResponseEntity.noContent().build();
     }
 
+    // Accepts NDJSON or a JSON array of <user_tag>. Items are bound one at a time from the
+    // stream and written every batchMaxEvents items, once per cookie.
+    @PostMapping("/user_tags/batch")
+    public ResponseEntity<BatchResult> addUserTags(InputStream body) {
+        BatchResult result = new BatchResult();
+        UserTagBatch batch = new UserTagBatch();
+        int index = 0;
+
+        try (MappingIterator<UserTagEvent> events = objectMapper.readerFor(UserTagEvent.class).readValues(body)) {
+            while (events.hasNextValue()) {
+                try {
+                    UserTagEvent userTag = events.nextValue();
+                    String error = validate(userTag);
+                    if (error != null) {
+                        result.addFailure(index, error);
+                    } else {
+                        batch.add(index, userTag);
+                    }
+                } catch (JsonMappingException e) {
+                    // The iterator skips the rest of the offending item
+                    result.addFailure(index, e.getOriginalMessage());
+                }
+                index++;
+
+                if (batch.size() >= batchMaxEvents) {
+                    userDao.addUserTags(batch, result);
+                    batch = new UserTagBatch();
+                }
+            }
+        } catch (JsonParseException e) {
+            // Malformed input, items after this point cannot be located
+            result.addFailure(index, "Malformed input, remaining items skipped: " + e.getOriginalMessage());
+        } catch (IOException e) {
+            log.error("Error while reading user tag batch", e);
+            result.addFailure(index, "Error while reading the request body, remaining items skipped");
+        }
+
+        try {
+            userDao.addUserTags(batch, result);
+        } catch (Exception e) {
+            // server error
+            log.error("Error while adding user tag batch", e);
+            return ResponseEntity.internalServerError().build();
+        }
+
+        result.getFailures().sort(Comparator.comparingInt(BatchResult.Failure::getIndex));
+        return ResponseEntity.ok(result);
+    }
+
+    private static String validate(UserTagEvent userTag) {
+        if (userTag == null) {
+            return "Empty item";
+        }
+        if (userTag.getCookie() == null || userTag.getTime() == null || userTag.getAction() == null) {
+            return "Missing cookie, time or action";
+        }
+        return null;
+    }
+
     @PostMapping("/user_profiles/{cookie}")
     public ResponseEntity<UserProfileResult> getUserProfile(@PathVariable("cookie") String cookie,
             @RequestParam("time_range") String timeRangeStr,
@@ -65,17 +148,65 @@ public class FrontComponent {
             @RequestParam(value = "origin", required = false) String origin,
             @RequestParam(value = "brand_id", required = false) String brandId,
             @RequestParam(value = "category_id", required = false) String categoryId,
+            @RequestParam(value = "country", required = false) String country,
+            @RequestParam(value = "device", required = false) Device device,
+            @RequestParam(value = "bucket_size", defaultValue = "1m") String bucketSize,
             @RequestBody(required = false) AggregatesQueryResult expectedResult) {
 
+        AggregateLevel level;
+        try {
+            level = AggregateLevel.fromLabel(bucketSize);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        // No combination of dimensions kept has all those filtered on
+        String[] filters = UserDao.filters(origin, brandId, categoryId, country, device);
+        if (!userDao.canAggregate(filters)) {
+            return ResponseEntity.badRequest().build();
+        }
 
-        // AggregatesQueryResult result = userDao.getAggregates(timeRangeStr, action, aggregates, origin, brandId, categoryId, expectedResult);
         try {
-            AggregatesQueryResult result = userDao.getAggregates(timeRangeStr, action, aggregates, origin, brandId, categoryId, expectedResult);
+            AggregatesQueryResult result = userDao.getAggregates(timeRangeStr, action, aggregates, filters, level, expectedResult);
             return ResponseEntity.ok(result);
+        } catch (RollUpTooLargeException e) {
+            log.debug("Rejected aggregates query: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
             // server error
             log.error("Error while getting aggregates", e);
             return ResponseEntity.internalServerError().build();
         }
     }
+
+    // The limit heaviest values of the dimension by COUNT or SUM_PRICE, see SpaceSaving for the
+    // error bounds
+    @PostMapping("/top")
+    public ResponseEntity<AggregatesQueryResult> getTop(@RequestParam("time_range") String timeRangeStr,
+            @RequestParam("action") Action action,
+            @RequestParam("dimension") String dimensionLabel,
+            @RequestParam(value = "metric", defaultValue = "COUNT") Aggregate metric,
+            @RequestParam(defaultValue = "20") int limit) {
+
+        Dimension dimension;
+        try {
+            dimension = Dimension.fromLabel(dimensionLabel);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (metric.isSketch() || limit < 1 || limit > SpaceSaving.CAPACITY) {
+            return ResponseEntity.badRequest().build();
+        }
+        // No combination of the dimension alone is kept, its values are not ranked
+        if (!userDao.canTop(dimension)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        try {
+            return ResponseEntity.ok(userDao.getTop(timeRangeStr, action, dimension, metric, limit));
+        } catch (Exception e) {
+            // server error
+            log.error("Error while getting top values", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
 }
@@ -0,0 +1,132 @@
+package alejandro.salazar.mejia;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import alejandro.salazar.mejia.dao.ReactiveUserDao;
+import alejandro.salazar.mejia.dao.RollUpTooLargeException;
+import alejandro.salazar.mejia.dao.UserDao;
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Aggregate;
+import alejandro.salazar.mejia.domain.AggregatesQueryResult;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.UserProfileResult;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.SpaceSaving;
+import reactor.core.publisher.Mono;
+
+// Non-blocking endpoints, enabled with the "reactive" profile (see application-reactive.properties)
+@RestController
+@ConditionalOnProperty(name = "front.mode", havingValue = "REACTIVE")
+public class ReactiveFrontComponent {
+
+    @Autowired
+    private ReactiveUserDao userDao;
+
+    private static final Logger log = LoggerFactory.getLogger(ReactiveFrontComponent.class);
+
+    @PostMapping("/user_tags")
+    public Mono<ResponseEntity<Void>> addUserTag(@RequestBody(required = false) UserTagEvent userTag) {
+        return userDao.addUserTag(userTag)
+                .then(Mono.just(ResponseEntity.noContent().<Void>build()))
+                .onErrorResume(e -> {
+                    // server error
+                    log.error("Error while adding user tag event: {}", userTag, e);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+
+    @PostMapping("/user_profiles/{cookie}")
+    public Mono<ResponseEntity<UserProfileResult>> getUserProfile(@PathVariable("cookie") String cookie,
+            @RequestParam("time_range") String timeRangeStr,
+            @RequestParam(defaultValue = "200") int limit,
+            @RequestBody(required = false) UserProfileResult expectedResult) {
+
+        return userDao.getUserProfile(cookie, timeRangeStr, limit, expectedResult)
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> {
+                    // server error
+                    log.error("Error while getting user profile for cookie: {}", cookie, e);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+
+    @PostMapping("/aggregates")
+    public Mono<ResponseEntity<AggregatesQueryResult>> getAggregates(@RequestParam("time_range") String timeRangeStr,
+            @RequestParam("action") Action action,
+            @RequestParam("aggregates") List<Aggregate> aggregates,
+            @RequestParam(value = "origin", required = false) String origin,
+            @RequestParam(value = "brand_id", required = false) String brandId,
+            @RequestParam(value = "category_id", required = false) String categoryId,
+            @RequestParam(value = "country", required = false) String country,
+            @RequestParam(value = "device", required = false) Device device,
+            @RequestParam(value = "bucket_size", defaultValue = "1m") String bucketSize,
+            @RequestBody(required = false) AggregatesQueryResult expectedResult) {
+
+        AggregateLevel level;
+        try {
+            level = AggregateLevel.fromLabel(bucketSize);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        // No combination of dimensions kept has all those filtered on
+        String[] filters = UserDao.filters(origin, brandId, categoryId, country, device);
+        if (!userDao.canAggregate(filters)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+
+        return userDao.getAggregates(timeRangeStr, action, aggregates, filters, level, expectedResult)
+                .map(ResponseEntity::ok)
+                .onErrorResume(RollUpTooLargeException.class, e -> {
+                    log.debug("Rejected aggregates query: {}", e.getMessage());
+                    return Mono.just(ResponseEntity.badRequest().build());
+                })
+                .onErrorResume(e -> {
+                    // server error
+                    log.error("Error while getting aggregates", e);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+
+    @PostMapping("/top")
+    public Mono<ResponseEntity<AggregatesQueryResult>> getTop(@RequestParam("time_range") String timeRangeStr,
+            @RequestParam("action") Action action,
+            @RequestParam("dimension") String dimensionLabel,
+            @RequestParam(value = "metric", defaultValue = "COUNT") Aggregate metric,
+            @RequestParam(defaultValue = "20") int limit) {
+
+        Dimension dimension;
+        try {
+            dimension = Dimension.fromLabel(dimensionLabel);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        if (metric.isSketch() || limit < 1 || limit > SpaceSaving.CAPACITY) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        // No combination of the dimension alone is kept, its values are not ranked
+        if (!userDao.canTop(dimension)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+
+        return userDao.getTop(timeRangeStr, action, dimension, metric, limit)
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> {
+                    // server error
+                    log.error("Error while getting top values", e);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+}
@@ -0,0 +1,276 @@
+package alejandro.salazar.mejia.audit;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Aggregate;
+import alejandro.salazar.mejia.domain.AggregatesQueryResult;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserProfileResult;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+
+// Compares a sample of query results with the expected results sent along with the requests.
+//
+// The request thread only draws a random number and, for sampled requests, hands both
+// results to a single background worker through a bounded queue; when the queue is full the
+// sample is dropped. The worker diffs the results field by field and counts mismatches per
+// endpoint and type in audit.mismatches. With a sample rate of 0 nothing is done at all.
+@Component
+public class ResultAuditor {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultAuditor.class);
+
+    private static final String PROFILES = "user_profiles";
+    private static final String AGGREGATES = "aggregates";
+
+    private final double sampleRate;
+    private final ThreadPoolExecutor worker;
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<String, Counter> mismatches = new ConcurrentHashMap<>();
+    private final Counter profileChecks;
+    private final Counter aggregateChecks;
+    private final Counter dropped;
+
+    public ResultAuditor(@Value("${audit.sample-rate:0.01}") double sampleRate,
+            @Value("${audit.queue-size:1024}") int queueSize,
+            MeterRegistry registry) {
+        this.sampleRate = sampleRate;
+        this.registry = registry;
+        this.worker = sampleRate > 0 ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "result-auditor");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> droppedSample()) : null;
+
+        this.profileChecks = Counter.builder("audit.checks").tag("endpoint", PROFILES)
+                .description("Sampled results compared with the expected result")
+                .register(registry);
+        this.aggregateChecks = Counter.builder("audit.checks").tag("endpoint", AGGREGATES)
+                .description("Sampled results compared with the expected result")
+                .register(registry);
+        this.dropped = Counter.builder("audit.dropped")
+                .description("Sampled results not compared because the audit queue was full")
+                .register(registry);
+    }
+
+    public void auditUserProfile(UserProfileResult expected, UserProfileResult actual, String timeRangeStr,
+            int limit) {
+        if (expected != null && sampled()) {
+            worker.execute(() -> compareUserProfile(expected, actual, timeRangeStr, limit));
+        }
+    }
+
+    // Filters are by Dimension ordinal, null where the query does not filter
+    public void auditAggregates(AggregatesQueryResult expected, AggregatesQueryResult actual, String timeRangeStr,
+            AggregateLevel bucketSize, Action action, String[] filters) {
+        if (expected != null && sampled()) {
+            worker.execute(() -> compareAggregates(expected, actual, describeQuery(timeRangeStr, bucketSize, action,
+                    filters)));
+        }
+    }
+
+    private boolean sampled() {
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    private void droppedSample() {
+        dropped.increment();
+    }
+
+    private void compareUserProfile(UserProfileResult expected, UserProfileResult actual, String timeRangeStr,
+            int limit) {
+        profileChecks.increment();
+        if (!Objects.equals(expected.getCookie(), actual.getCookie())) {
+            mismatch(PROFILES, "cookie", "cookie {} instead of {}", actual.getCookie(), expected.getCookie());
+        }
+        compareEvents("views", expected.getViews(), actual.getViews(), actual.getCookie(), timeRangeStr, limit);
+        compareEvents("buys", expected.getBuys(), actual.getBuys(), actual.getCookie(), timeRangeStr, limit);
+    }
+
+    // Classifies a difference of two event lists as a different count, the same events in a
+    // different order or different events, and logs the first differing position
+    private void compareEvents(String list, List<UserTagEvent> expected, List<UserTagEvent> actual, String cookie,
+            String timeRangeStr, int limit) {
+        int first = firstDifference(expected, actual);
+        if (first < 0) {
+            return;
+        }
+        String type;
+        if (expected.size() != actual.size()) {
+            type = list + "_count";
+        } else if (sameEvents(expected, actual)) {
+            type = list + "_order";
+        } else {
+            type = list + "_content";
+        }
+        mismatch(PROFILES, type, "cookie: {}, time range: {}, limit: {}, {} expected {} events, got {}; "
+                + "first difference at {}: expected {}, got {}", cookie, timeRangeStr, limit, list, expected.size(),
+                actual.size(), first, describe(expected, first), describe(actual, first));
+    }
+
+    private static int firstDifference(List<UserTagEvent> expected, List<UserTagEvent> actual) {
+        int common = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < common; i++) {
+            if (!sameEvent(expected.get(i), actual.get(i))) {
+                return i;
+            }
+        }
+        return expected.size() == actual.size() ? -1 : common;
+    }
+
+    // Whether both lists hold the same events, in any order. Lists hold at most limit events,
+    // so the quadratic search is fine on the worker thread.
+    private static boolean sameEvents(List<UserTagEvent> expected, List<UserTagEvent> actual) {
+        boolean[] matched = new boolean[actual.size()];
+        for (UserTagEvent event : expected) {
+            int i = 0;
+            while (i < actual.size() && (matched[i] || !sameEvent(event, actual.get(i)))) {
+                i++;
+            }
+            if (i == actual.size()) {
+                return false;
+            }
+            matched[i] = true;
+        }
+        return true;
+    }
+
+    private static boolean sameEvent(UserTagEvent a, UserTagEvent b) {
+        return Objects.equals(a.getTime(), b.getTime())
+                && Objects.equals(a.getCookie(), b.getCookie())
+                && Objects.equals(a.getCountry(), b.getCountry())
+                && a.getDevice() == b.getDevice()
+                && a.getAction() == b.getAction()
+                && Objects.equals(a.getOrigin(), b.getOrigin())
+                && sameProduct(a.getProductInfo(), b.getProductInfo());
+    }
+
+    private static boolean sameProduct(Product a, Product b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getProductId() == b.getProductId()
+                && Objects.equals(a.getBrandId(), b.getBrandId())
+                && Objects.equals(a.getCategoryId(), b.getCategoryId())
+                && a.getPrice() == b.getPrice();
+    }
+
+    private static Object describe(List<UserTagEvent> events, int index) {
+        return index < events.size() ? events.get(index) : "nothing";
+    }
+
+    // Columns are compared as a whole, rows by bucket: a row whose bucket or key columns
+    // differ is a bucket mismatch, one with the same key but other aggregate values a value
+    // mismatch
+    private void compareAggregates(AggregatesQueryResult expected, AggregatesQueryResult actual, String query) {
+        aggregateChecks.increment();
+        if (!Objects.equals(expected.getColumns(), actual.getColumns())) {
+            mismatch(AGGREGATES, "columns", "{}, columns {} instead of {}", query, actual.getColumns(),
+                    expected.getColumns());
+            return;
+        }
+        List<List<String>> expectedRows = expected.getRows();
+        List<List<String>> actualRows = actual.getRows();
+        if (expectedRows.size() != actualRows.size()) {
+            mismatch(AGGREGATES, "row_count", "{}, {} rows instead of {}", query, actualRows.size(),
+                    expectedRows.size());
+            return;
+        }
+        int keyColumns = expected.getColumns().size() - countAggregateColumns(expected.getColumns());
+        for (int i = 0; i < expectedRows.size(); i++) {
+            List<String> expectedRow = expectedRows.get(i);
+            List<String> actualRow = actualRows.get(i);
+            if (expectedRow.equals(actualRow) || estimatesMatch(expected.getColumns(), expectedRow, actualRow)) {
+                continue;
+            }
+            String type = expectedRow.size() == actualRow.size() && keyColumns <= expectedRow.size()
+                    && expectedRow.subList(0, keyColumns).equals(actualRow.subList(0, keyColumns))
+                    ? "value" : "bucket";
+            mismatch(AGGREGATES, type, "{}, row {}: expected {}, got {}", query, i, expectedRow, actualRow);
+            return;
+        }
+    }
+
+    // The query as logged with its mismatches, every filter included
+    private static String describeQuery(String timeRangeStr, AggregateLevel bucketSize, Action action,
+            String[] filters) {
+        StringBuilder query = new StringBuilder("time range: ").append(timeRangeStr)
+                .append(", bucket: ").append(bucketSize.label())
+                .append(", action: ").append(action);
+        for (Dimension dimension : Dimension.values()) {
+            query.append(", ").append(dimension.label()).append(": ").append(filters[dimension.ordinal()]);
+        }
+        return query.toString();
+    }
+
+    // Rows equal but for estimated distinct users within three standard errors of HyperLogLog,
+    // or 2 for tiny counts
+    private static boolean estimatesMatch(List<String> columns, List<String> expectedRow, List<String> actualRow) {
+        int estimated = columns.indexOf(Aggregate.COUNT_DISTINCT_USERS.name().toLowerCase());
+        if (estimated < 0 || expectedRow.size() != actualRow.size() || estimated >= expectedRow.size()) {
+            return false;
+        }
+        for (int i = 0; i < expectedRow.size(); i++) {
+            if (i != estimated && !expectedRow.get(i).equals(actualRow.get(i))) {
+                return false;
+            }
+        }
+        try {
+            long expectedUsers = Long.parseLong(expectedRow.get(estimated));
+            long actualUsers = Long.parseLong(actualRow.get(estimated));
+            return Math.abs(actualUsers - expectedUsers) <= Math.max(2, 0.07 * expectedUsers);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static int countAggregateColumns(List<String> columns) {
+        int count = 0;
+        for (Aggregate aggregate : Aggregate.values()) {
+            if (columns.contains(aggregate.name().toLowerCase())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void mismatch(String endpoint, String type, String format, Object... arguments) {
+        mismatches.computeIfAbsent(endpoint + "/" + type, name -> Counter.builder("audit.mismatches")
+                .tag("endpoint", endpoint)
+                .tag("type", type)
+                .description("Sampled results that differ from the expected result")
+                .register(registry))
+                .increment();
+        Object[] logArguments = new Object[arguments.length + 2];
+        logArguments[0] = endpoint;
+        logArguments[1] = type;
+        System.arraycopy(arguments, 0, logArguments, 2, arguments.length);
+        log.warn("Different {} result ({}), " + format, logArguments);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (worker != null) {
+            worker.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package alejandro.salazar.mejia.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.Key;
+
+import alejandro.salazar.mejia.schema.AggregateLevel;
+
+// Rows of an /aggregates query and the stored buckets they are summed from.
+//
+// Rows are the buckets of bucket_size overlapping the range, labelled with their start; the
+// first and last may be cut by the range. Each row is covered greedily by the coarsest aligned
+// buckets that fit in it: whole days from aggregates_1d, whole hours from aggregates_1h and
+// the remaining minutes from aggregates, so a day long row is one read instead of 1440.
+//
+// Minutes from packedSince on are read from the minute maps of their hour record instead of
+// their own record, so all minutes of an hour are one read.
+class AggregateBuckets {
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final List<String> rows = new ArrayList<>();
+    // Keys of row i are keys[firstKeys[i]] until keys[firstKeys[i + 1]]
+    private final List<Integer> firstKeys = new ArrayList<>();
+    private final List<Key> keys = new ArrayList<>();
+    // Level and first minute of each key, and for minutes in an hour record their minute of
+    // the hour or -1
+    private final List<AggregateLevel> levels = new ArrayList<>();
+    private final List<Long> minutes = new ArrayList<>();
+    private final List<Integer> minutesOfHour = new ArrayList<>();
+    private final String keySuffix;
+
+    private long day = Long.MIN_VALUE;
+    private String date;
+
+    AggregateBuckets(String namespace, String timeRangeStr, AggregateLevel bucketSize, String keySuffix,
+            long packedSince) {
+        this.keySuffix = keySuffix;
+
+        // Parse the time range into start and end Instants
+        String[] timeRange = timeRangeStr.split("_");
+        Instant startTime = Instant.parse(timeRange[0] + "Z");
+        Instant endTime = Instant.parse(timeRange[1] + "Z");
+
+        // Minutes of the buckets starting every 60 s from startTime before endTime
+        long start = Math.floorDiv(startTime.getEpochSecond(), 60);
+        long end = start + minutesBetween(startTime, endTime);
+
+        long first = end > start ? start - Math.floorMod(start, bucketSize.minutes()) : end;
+        for (long row = first; row < end; row += bucketSize.minutes()) {
+            rows.add(format(row));
+            firstKeys.add(keys.size());
+            long rowEnd = Math.min(row + bucketSize.minutes(), end);
+            for (long minute = Math.max(row, start); minute < rowEnd; ) {
+                AggregateLevel level = coarsestFitting(minute, rowEnd);
+                if (level == AggregateLevel.MINUTE && minute >= packedSince) {
+                    long hour = minute - Math.floorMod(minute, AggregateLevel.HOUR.minutes());
+                    keys.add(new Key(namespace, AggregateLevel.HOUR.set(), format(hour) + keySuffix));
+                    minutesOfHour.add((int) (minute - hour));
+                } else {
+                    keys.add(new Key(namespace, level.set(), format(minute) + keySuffix));
+                    minutesOfHour.add(-1);
+                }
+                levels.add(level);
+                minutes.add(minute);
+                minute += level.minutes();
+            }
+        }
+        firstKeys.add(keys.size());
+    }
+
+    private static long minutesBetween(Instant start, Instant end) {
+        if (!start.isBefore(end)) {
+            return 0;
+        }
+        Duration duration = Duration.between(start, end);
+        return duration.getSeconds() / 60 + (duration.getSeconds() % 60 != 0 || duration.getNano() != 0 ? 1 : 0);
+    }
+
+    private static AggregateLevel coarsestFitting(long minute, long end) {
+        AggregateLevel[] levels = AggregateLevel.values();
+        for (int i = levels.length - 1; i > 0; i--) {
+            int minutes = levels[i].minutes();
+            if (minute % minutes == 0 && minute + minutes <= end) {
+                return levels[i];
+            }
+        }
+        return AggregateLevel.MINUTE;
+    }
+
+    // yyyy-MM-ddTHH:mm:00 as in the keys written by the processor, the date is formatted once
+    // per day
+    private String format(long minute) {
+        if (Math.floorDiv(minute, MINUTES_PER_DAY) != day) {
+            day = Math.floorDiv(minute, MINUTES_PER_DAY);
+            date = LocalDate.ofEpochDay(day) + "T";
+        }
+        int minuteOfDay = (int) Math.floorMod(minute, MINUTES_PER_DAY);
+        return new StringBuilder(19).append(date)
+                .append((char) ('0' + minuteOfDay / 600)).append((char) ('0' + minuteOfDay / 60 % 10)).append(':')
+                .append((char) ('0' + minuteOfDay % 60 / 10)).append((char) ('0' + minuteOfDay % 10)).append(":00")
+                .toString();
+    }
+
+    List<String> rows() {
+        return rows;
+    }
+
+    // Records holding the given buckets, each once. records[i] is set to the index of the
+    // record of bucket indexes[i].
+    Key[] recordKeys(int[] indexes, int[] records) {
+        Map<Key, Integer> recordIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < indexes.length; i++) {
+            records[i] = recordIndexes.computeIfAbsent(keys.get(indexes[i]), key -> recordIndexes.size());
+        }
+        return recordIndexes.keySet().toArray(new Key[0]);
+    }
+
+    int firstKey(int row) {
+        return firstKeys.get(row);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    AggregateLevel level(int key) {
+        return levels.get(key);
+    }
+
+    long minute(int key) {
+        return minutes.get(key);
+    }
+
+    int minuteOfHour(int key) {
+        return minutesOfHour.get(key);
+    }
+
+    // Action and dimensions, the part of the keys shared by all buckets
+    String keySuffix() {
+        return keySuffix;
+    }
+}
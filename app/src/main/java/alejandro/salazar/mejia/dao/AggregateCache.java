@@ -0,0 +1,182 @@
+package alejandro.salazar.mejia.dao;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import alejandro.salazar.mejia.domain.Aggregate;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+
+// Aggregates of closed buckets read on this node, so repeated /aggregates queries only read
+// the buckets still being written by the processor.
+//
+// A bucket is closed once closeLagMillis have passed since its end, enough for the processor
+// to receive its events and flush them, or earlier once the processor has written it for every
+// partition (see closedUntil). Late events may still be added to closed buckets: the processor
+// records the earliest bucket each flush corrected, and the blocks of buckets ending after it
+// are dropped (see invalidateFrom). Blocks also expire ttlMillis after they were created, which
+// bounds how long a correction missed goes unseen.
+//
+// Values are kept in blocks of 64 consecutive buckets of one level, action and dimensions,
+// as a long array indexed by bucket offset and aggregate, with a bit per bucket telling
+// whether it was read. Blocks are evicted by Caffeine when their total size exceeds maxBytes.
+public class AggregateCache {
+
+    static final int VALUES = Aggregate.values().length;
+
+    private static final int SLOTS = 64;
+    // Rough heap cost of a block besides its key
+    private static final int BLOCK_BYTES = 120 + SLOTS * VALUES * 8;
+
+    private static final class Block {
+        // End of the last bucket of the block
+        private final long endMillis;
+        private final long[] values = new long[SLOTS * VALUES];
+        private long read;
+
+        Block(long endMillis) {
+            this.endMillis = endMillis;
+        }
+
+        synchronized boolean get(int slot, long[] into, int offset) {
+            if ((read & 1L << slot) == 0) {
+                return false;
+            }
+            System.arraycopy(values, slot * VALUES, into, offset, VALUES);
+            return true;
+        }
+
+        synchronized void put(int slot, long[] from, int offset) {
+            System.arraycopy(from, offset, values, slot * VALUES, VALUES);
+            read |= 1L << slot;
+        }
+    }
+
+    private final Cache<String, Block> cache;
+    private final long closeLagMillis;
+    // End of the buckets the processor closed on every partition
+    private volatile long closedUntilMillis = Long.MIN_VALUE;
+    // When blocks were last dropped: values read before may miss the correction
+    private volatile long invalidatedAtMillis = Long.MIN_VALUE;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter open;
+
+    public AggregateCache(long maxBytes, long closeLagMillis, long ttlMillis, MeterRegistry registry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Block block) -> BLOCK_BYTES + 2 * key.length())
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "aggregates");
+        this.closeLagMillis = closeLagMillis;
+
+        this.hits = Counter.builder("aggregate.cache.buckets").tag("result", "hit")
+                .description("Closed aggregate buckets served from the cache")
+                .register(registry);
+        this.misses = Counter.builder("aggregate.cache.buckets").tag("result", "miss")
+                .description("Closed aggregate buckets read from Aerospike and cached")
+                .register(registry);
+        this.open = Counter.builder("aggregate.cache.buckets").tag("result", "open")
+                .description("Aggregate buckets read from Aerospike because they may still change")
+                .register(registry);
+    }
+
+    void closedUntil(long closedUntilMillis) {
+        this.closedUntilMillis = closedUntilMillis;
+    }
+
+    // Drops the blocks with buckets ending after fromMillis, late events were added to them
+    void invalidateFrom(long fromMillis) {
+        invalidatedAtMillis = System.currentTimeMillis();
+        cache.asMap().values().removeIf(block -> block.endMillis > fromMillis);
+    }
+
+    // Copies the values of cached buckets into values[key * VALUES + aggregate ordinal] and
+    // returns the indexes of the other buckets, in order
+    int[] fill(AggregateBuckets buckets, long[] values, long nowMillis) {
+        int[] reads = new int[buckets.size()];
+        int readCount = 0;
+        int hitCount = 0;
+        int openCount = 0;
+
+        // Consecutive buckets mostly share a block, it is only looked up when that changes
+        AggregateLevel blockLevel = null;
+        long blockIndex = 0;
+        Block block = null;
+        for (int i = 0; i < buckets.size(); i++) {
+            AggregateLevel level = buckets.level(i);
+            long minute = buckets.minute(i);
+            if (!isClosed(level, minute, nowMillis)) {
+                openCount++;
+                reads[readCount++] = i;
+                continue;
+            }
+            if (level != blockLevel || blockIndex(level, minute) != blockIndex) {
+                blockLevel = level;
+                blockIndex = blockIndex(level, minute);
+                block = cache.getIfPresent(blockKey(level, blockIndex, buckets.keySuffix()));
+            }
+            if (block != null && block.get(slot(level, minute), values, i * VALUES)) {
+                hitCount++;
+            } else {
+                reads[readCount++] = i;
+            }
+        }
+
+        hits.increment(hitCount);
+        misses.increment(readCount - openCount);
+        open.increment(openCount);
+        return Arrays.copyOf(reads, readCount);
+    }
+
+    // Caches the values of the closed buckets among the given ones, read after nowMillis. They
+    // are not cached if blocks were dropped since, the reads may predate the correction.
+    void store(AggregateBuckets buckets, int[] indexes, long[] values, long nowMillis) {
+        if (invalidatedAtMillis >= nowMillis) {
+            return;
+        }
+        AggregateLevel blockLevel = null;
+        long blockIndex = 0;
+        Block block = null;
+        for (int i : indexes) {
+            AggregateLevel level = buckets.level(i);
+            long minute = buckets.minute(i);
+            if (!isClosed(level, minute, nowMillis)) {
+                continue;
+            }
+            if (level != blockLevel || blockIndex(level, minute) != blockIndex) {
+                blockLevel = level;
+                blockIndex = blockIndex(level, minute);
+                long endMillis = (blockIndex + 1) * SLOTS * level.minutes() * 60_000;
+                block = cache.get(blockKey(level, blockIndex, buckets.keySuffix()), key -> new Block(endMillis));
+            }
+            block.put(slot(level, minute), values, i * VALUES);
+        }
+    }
+
+    private boolean isClosed(AggregateLevel level, long minute, long nowMillis) {
+        long endMillis = (minute + level.minutes()) * 60_000;
+        return endMillis + closeLagMillis <= nowMillis || endMillis <= closedUntilMillis;
+    }
+
+    private static long blockIndex(AggregateLevel level, long minute) {
+        return Math.floorDiv(minute, (long) SLOTS * level.minutes());
+    }
+
+    private static String blockKey(AggregateLevel level, long blockIndex, String keySuffix) {
+        return level.label() + blockIndex + keySuffix;
+    }
+
+    private static int slot(AggregateLevel level, long minute) {
+        return (int) Math.floorMod(Math.floorDiv(minute, level.minutes()), SLOTS);
+    }
+}
@@ -0,0 +1,222 @@
+package alejandro.salazar.mejia.dao;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// The newest `capacity` events of one action of a profile, newest first.
+//
+// Events are kept next to a primitive array of their epoch millis, so the position of a new
+// event and the bounds of a time range are found by binary search. Inserting shifts the
+// older events by one and drops the oldest once the buffer is full. Events with equal times
+// keep their insertion order: the one added later comes later and is evicted first.
+// The arrays grow up to the capacity as events are added.
+public class EventBuffer {
+
+    private static final int INITIAL_LENGTH = 16;
+
+    private static final Comparator<UserTagEvent> NEWEST_FIRST = Comparator
+            .comparingLong((UserTagEvent event) -> event.getTime().toEpochMilli()).reversed();
+
+    private final int capacity;
+    private long[] times;
+    private UserTagEvent[] events;
+    private int size;
+
+    // Target arrays of addAll, swapped with the live ones after a merge
+    private long[] mergeTimes;
+    private UserTagEvent[] mergeEvents;
+
+    public EventBuffer(int capacity) {
+        this.capacity = capacity;
+        this.times = new long[Math.min(capacity, INITIAL_LENGTH)];
+        this.events = new UserTagEvent[times.length];
+    }
+
+    private EventBuffer(EventBuffer other) {
+        this.capacity = other.capacity;
+        this.times = Arrays.copyOf(other.times, other.size);
+        this.events = Arrays.copyOf(other.events, other.size);
+        this.size = other.size;
+    }
+
+    // Independent copy with arrays trimmed to the events it holds
+    public EventBuffer copy() {
+        return new EventBuffer(this);
+    }
+
+    public static EventBuffer of(List<UserTagEvent> events, int capacity) {
+        EventBuffer buffer = new EventBuffer(capacity);
+        buffer.addAll(events);
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Allocated slots, for memory estimates
+    public int length() {
+        return times.length;
+    }
+
+    // False if the buffer is full and the event is not newer than the oldest one
+    public boolean add(UserTagEvent event) {
+        return add(event.getTime().toEpochMilli(), event);
+    }
+
+    private boolean add(long time, UserTagEvent event) {
+        int position = firstOlderThan(time);
+        if (position == capacity) {
+            return false;
+        }
+        ensureLength(Math.min(size + 1, capacity));
+        int moved = Math.min(size, capacity - 1) - position;
+        System.arraycopy(times, position, times, position + 1, moved);
+        System.arraycopy(events, position, events, position + 1, moved);
+        times[position] = time;
+        events[position] = event;
+        size = Math.min(size + 1, capacity);
+        return true;
+    }
+
+    // Used while decoding a profile, which is stored newest first: appends in O(1)
+    boolean addOldest(long time, UserTagEvent event) {
+        if (size > 0 && time > times[size - 1]) {
+            return add(time, event);
+        }
+        if (size == capacity) {
+            return false;
+        }
+        ensureLength(size + 1);
+        times[size] = time;
+        events[size++] = event;
+        return true;
+    }
+
+    // Merges a batch of events in any order, a batch already newest first is not sorted again
+    public void addAll(List<UserTagEvent> batch) {
+        if (batch.size() <= 1) {
+            batch.forEach(this::add);
+            return;
+        }
+        if (size == 0 && load(batch)) {
+            return;
+        }
+        List<UserTagEvent> newestFirst = batch;
+        if (!isNewestFirst(batch)) {
+            newestFirst = new ArrayList<>(batch);
+            newestFirst.sort(NEWEST_FIRST);
+        }
+
+        int merged = Math.min(capacity, size + newestFirst.size());
+        if (mergeTimes == null || mergeTimes.length < merged) {
+            mergeTimes = new long[merged];
+            mergeEvents = new UserTagEvent[merged];
+        }
+        int i = 0;
+        int j = 0;
+        // On equal times the events already present come first
+        for (int k = 0; k < merged; k++) {
+            long batchTime = j < newestFirst.size() ? newestFirst.get(j).getTime().toEpochMilli() : Long.MIN_VALUE;
+            if (i < size && (j == newestFirst.size() || times[i] >= batchTime)) {
+                mergeTimes[k] = times[i];
+                mergeEvents[k] = events[i++];
+            } else {
+                mergeTimes[k] = batchTime;
+                mergeEvents[k] = newestFirst.get(j++);
+            }
+        }
+
+        long[] swapTimes = times;
+        UserTagEvent[] swapEvents = events;
+        times = mergeTimes;
+        events = mergeEvents;
+        mergeTimes = swapTimes;
+        mergeEvents = swapEvents;
+        size = merged;
+    }
+
+    // Copies a batch into the empty buffer, false (and still empty) if it is not newest first
+    private boolean load(List<UserTagEvent> batch) {
+        ensureLength(Math.min(capacity, batch.size()));
+        long previous = Long.MAX_VALUE;
+        for (int k = 0; k < batch.size(); k++) {
+            UserTagEvent event = batch.get(k);
+            long time = event.getTime().toEpochMilli();
+            if (time > previous) {
+                return false;
+            }
+            if (k < capacity) {
+                times[k] = time;
+                events[k] = event;
+            }
+            previous = time;
+        }
+        size = Math.min(capacity, batch.size());
+        return true;
+    }
+
+    private void ensureLength(int length) {
+        if (times.length < length) {
+            int grown = Math.min(capacity, Math.max(length, times.length * 2));
+            times = Arrays.copyOf(times, grown);
+            events = Arrays.copyOf(events, grown);
+        }
+    }
+
+    // At most `limit` events in [start, end), newest first
+    public List<UserTagEvent> range(Instant start, Instant end, int limit) {
+        int from = firstOlderThan(end.toEpochMilli());
+        int to = Math.min(firstOlderThan(start.toEpochMilli()), from + Math.min(limit, size));
+        List<UserTagEvent> result = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            result.add(events[i]);
+        }
+        return result;
+    }
+
+    public List<UserTagEvent> toList() {
+        List<UserTagEvent> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(events[i]);
+        }
+        return result;
+    }
+
+    // Index of the first event with a time < the given one
+    private int firstOlderThan(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] >= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isNewestFirst(List<UserTagEvent> events) {
+        long previous = Long.MAX_VALUE;
+        for (UserTagEvent event : events) {
+            long time = event.getTime().toEpochMilli();
+            if (time > previous) {
+                return false;
+            }
+            previous = time;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
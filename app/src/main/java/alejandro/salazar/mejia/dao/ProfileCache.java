@@ -0,0 +1,128 @@
+package alejandro.salazar.mejia.dao;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+// Decoded profiles of recently read or written cookies, bounded by their estimated size and
+// evicted by Caffeine's W-TinyLFU policy, whose frequency sketch also decides whether a new
+// entry is admitted at the expense of the one it would evict.
+//
+// An entry is only used while its generation equals the one of the Aerospike record, which
+// UserDao checks with a header-only read. Entries are never modified: writes on this node
+// put a new entry holding copies of the buffers.
+public class ProfileCache {
+
+    // Rough heap cost of one decoded event and its product, Instant and cookie String; the
+    // other strings are shared
+    private static final int EVENT_BYTES = 200;
+    private static final int SLOT_BYTES = 12;
+    private static final int ENTRY_BYTES = 150;
+
+    public static final class Entry {
+        final int generation;
+        final EventBuffer views;
+        final EventBuffer buys;
+
+        Entry(int generation, EventBuffer views, EventBuffer buys) {
+            this.generation = generation;
+            this.views = views;
+            this.buys = buys;
+        }
+
+        int weight() {
+            return ENTRY_BYTES + (views.size() + buys.size()) * EVENT_BYTES
+                    + (views.length() + buys.length()) * SLOT_BYTES;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter stale;
+    private final DistributionSummary staleness;
+
+    public ProfileCache(long maxBytes, MeterRegistry registry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String cookie, Entry entry) -> entry.weight())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "profiles");
+
+        this.hits = Counter.builder("profile.cache.requests").tag("result", "hit")
+                .description("Profile reads served from the cache after a generation check")
+                .register(registry);
+        this.misses = Counter.builder("profile.cache.requests").tag("result", "miss")
+                .description("Profile reads of cookies not in the cache")
+                .register(registry);
+        this.stale = Counter.builder("profile.cache.requests").tag("result", "stale")
+                .description("Profile reads whose cached entry was outdated by a write on another node")
+                .register(registry);
+        this.staleness = DistributionSummary.builder("profile.cache.staleness")
+                .description("Record generations a stale cached profile was behind")
+                .baseUnit("generations")
+                .register(registry);
+        Gauge.builder("profile.cache.hit.ratio", this, ProfileCache::hitRatio)
+                .description("Share of profile reads served from the cache")
+                .register(registry);
+        Gauge.builder("profile.cache.weight", cache, c -> c.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L))
+                .description("Estimated heap used by cached profiles")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    // The cached entry, whatever its generation
+    Entry get(String cookie) {
+        return cache.getIfPresent(cookie);
+    }
+
+    // Keeps the newer of the cached and the given entry, so a slow read cannot replace the
+    // result of a write that completed after it
+    void put(String cookie, int generation, EventBuffer views, EventBuffer buys) {
+        Entry entry = new Entry(generation, views.copy(), buys.copy());
+        cache.asMap().merge(cookie, entry, (cached, candidate) -> isNewer(candidate, cached) ? candidate : cached);
+    }
+
+    void invalidate(String cookie) {
+        cache.invalidate(cookie);
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordStale(Entry entry, int generation) {
+        stale.increment();
+        staleness.record(generationsBetween(entry.generation, generation));
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count() + stale.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    // Record generations are 16 bit and wrap around
+    private static boolean isNewer(Entry candidate, Entry cached) {
+        return generationsBetween(cached.generation, candidate.generation) >= 0;
+    }
+
+    private static int generationsBetween(int from, int to) {
+        return (short) (to - from);
+    }
+
+    static int nextGeneration(int generation) {
+        return generation == 0xFFFF ? 1 : generation + 1;
+    }
+}
@@ -0,0 +1,428 @@
+package alejandro.salazar.mejia.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xerial.snappy.Snappy;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Encoding of the event lists stored in the profile bins.
+//
+// Binary layout, events newest first. Strings are kept once in a dictionary:
+//   varint dictionary size, then per entry: varint length + UTF-8 bytes
+// and events are encoded as:
+//   varlong   zigzag(previous time - time), the first one relative to a base time
+//   byte      device (bits 0-1) | action (bits 2-3), 3 meaning null
+//   varint    dictionary index + 1 (0 meaning null) of cookie, country, origin, brand_id, category_id
+//   varint    zigzag(product_id), zigzag(price)
+//
+// Version 1, still used for single events: 0x00, 1, varint event count, dictionary, varlong
+// base time (the newest epoch millis), events.
+//
+// Version 2, used for profiles: 0x00, 2, varint event count, dictionary, varint block count,
+// then per block of up to BLOCK_SIZE events a header of varlong newest epoch millis (the
+// block's base time), varlong newest - oldest, varint event count and varint byte length,
+// followed by the blocks' events. A range read skips the blocks outside the range without
+// decoding them, stops once it has collected `limit` events and only materializes the
+// dictionary strings of the events it returns.
+//
+// The leading 0x00 never starts a legacy value: Snappy begins with the varint of the
+// uncompressed length, which is at least 2 for "[]", and raw JSON begins with '[' or '{'.
+public final class ProfileCodec {
+
+    private static final byte MAGIC = 0x00;
+    private static final byte SINGLE_VERSION = 1;
+    private static final byte BLOCK_VERSION = 2;
+    private static final int BLOCK_SIZE = 32;
+    private static final int NULL_ORDINAL = 3;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private static final Device[] DEVICES = Device.values();
+    private static final Action[] ACTIONS = Action.values();
+
+    private ProfileCodec() {
+    }
+
+    public static byte[] encode(List<UserTagEvent> events, ProfileFormat format) throws Exception {
+        if (format == ProfileFormat.JSON_SNAPPY) {
+            return Snappy.compress(objectMapper.writeValueAsBytes(events));
+        }
+        return encodeBlocks(events);
+    }
+
+    public static List<UserTagEvent> decode(byte[] data) throws Exception {
+        if (isBinary(data)) {
+            List<UserTagEvent> events = new ArrayList<>();
+            decodeBinary(data, Long.MIN_VALUE, Long.MAX_VALUE, (time, event) -> events.add(event));
+            return events;
+        }
+        return objectMapper.readValue(Snappy.uncompress(data), new TypeReference<List<UserTagEvent>>() {
+        });
+    }
+
+    // Decodes straight into the buffer, reusing the times the binary format already holds
+    public static EventBuffer decode(byte[] data, int capacity) throws Exception {
+        EventBuffer events = new EventBuffer(capacity);
+        if (isBinary(data)) {
+            decodeBinary(data, Long.MIN_VALUE, Long.MAX_VALUE, events::addOldest);
+        } else {
+            events.addAll(decode(data));
+        }
+        return events;
+    }
+
+    // At most `limit` events in [start, end), newest first. Only the binary format avoids
+    // decoding the events outside the range.
+    public static List<UserTagEvent> decodeRange(byte[] data, Instant start, Instant end, int limit)
+            throws Exception {
+        List<UserTagEvent> events = new ArrayList<>();
+        if (limit <= 0) {
+            return events;
+        }
+        long startMillis = start.toEpochMilli();
+        long endMillis = end.toEpochMilli();
+        if (isBinary(data)) {
+            decodeBinary(data, startMillis, endMillis, (time, event) -> {
+                events.add(event);
+                return events.size() < limit;
+            });
+            return events;
+        }
+        for (UserTagEvent event : decode(data)) {
+            long time = event.getTime().toEpochMilli();
+            if (time >= startMillis && time < endMillis) {
+                events.add(event);
+                if (events.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return events;
+    }
+
+    // Single events are stored uncompressed, the legacy form being plain JSON
+    public static byte[] encodeEvent(UserTagEvent event, ProfileFormat format) throws Exception {
+        if (format == ProfileFormat.JSON_SNAPPY) {
+            return objectMapper.writeValueAsBytes(event);
+        }
+        List<UserTagEvent> events = List.of(event);
+        long time = event.getTime().toEpochMilli();
+        Output out = new Output(64);
+        out.write(MAGIC);
+        out.write(SINGLE_VERSION);
+        out.writeVarInt(1);
+        int[] refs = writeDictionary(out, events);
+        out.writeVarLong(time);
+        writeEvents(out, events, 0, 1, time, refs);
+        return out.toByteArray();
+    }
+
+    public static UserTagEvent decodeEvent(byte[] data) throws Exception {
+        if (isBinary(data)) {
+            return decode(data).get(0);
+        }
+        return objectMapper.readValue(data, UserTagEvent.class);
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data.length > 1 && data[0] == MAGIC;
+    }
+
+    private static byte[] encodeBlocks(List<UserTagEvent> events) {
+        int blocks = (events.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        Output header = new Output(64 + blocks * 16);
+        Output body = new Output(32 + events.size() * 12);
+        header.write(MAGIC);
+        header.write(BLOCK_VERSION);
+        header.writeVarInt(events.size());
+        int[] refs = writeDictionary(header, events);
+        header.writeVarInt(blocks);
+
+        for (int from = 0; from < events.size(); from += BLOCK_SIZE) {
+            int to = Math.min(from + BLOCK_SIZE, events.size());
+            long newest = Long.MIN_VALUE;
+            long oldest = Long.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                long time = events.get(i).getTime().toEpochMilli();
+                newest = Math.max(newest, time);
+                oldest = Math.min(oldest, time);
+            }
+
+            int blockStart = body.size;
+            writeEvents(body, events, from, to, newest, refs);
+
+            header.writeVarLong(newest);
+            header.writeVarLong(newest - oldest);
+            header.writeVarInt(to - from);
+            header.writeVarInt(body.size - blockStart);
+        }
+
+        header.write(body.buffer, 0, body.size);
+        return header.toByteArray();
+    }
+
+    // Returns the dictionary references of the strings of each event, 5 per event
+    private static int[] writeDictionary(Output out, List<UserTagEvent> events) {
+        Map<String, Integer> indexes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] refs = new int[events.size() * 5];
+        int r = 0;
+        for (UserTagEvent event : events) {
+            Product product = event.getProductInfo();
+            refs[r++] = intern(event.getCookie(), indexes, dictionary);
+            refs[r++] = intern(event.getCountry(), indexes, dictionary);
+            refs[r++] = intern(event.getOrigin(), indexes, dictionary);
+            refs[r++] = intern(product == null ? null : product.getBrandId(), indexes, dictionary);
+            refs[r++] = intern(product == null ? null : product.getCategoryId(), indexes, dictionary);
+        }
+
+        out.writeVarInt(dictionary.size());
+        for (String value : dictionary) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeVarInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return refs;
+    }
+
+    private static void writeEvents(Output out, List<UserTagEvent> events, int from, int to, long baseTime,
+            int[] refs) {
+        long previous = baseTime;
+        int r = from * 5;
+        for (int i = from; i < to; i++) {
+            UserTagEvent event = events.get(i);
+            long time = event.getTime().toEpochMilli();
+            out.writeVarLong(zigzag(previous - time));
+            previous = time;
+
+            int device = event.getDevice() == null ? NULL_ORDINAL : event.getDevice().ordinal();
+            int action = event.getAction() == null ? NULL_ORDINAL : event.getAction().ordinal();
+            out.write(device | action << 2);
+            for (int k = 0; k < 5; k++) {
+                out.writeVarInt(refs[r++]);
+            }
+
+            Product product = event.getProductInfo();
+            out.writeVarLong(zigzag(product == null ? 0 : product.getProductId()));
+            out.writeVarLong(zigzag(product == null ? 0 : product.getPrice()));
+        }
+    }
+
+    // Receives the decoded events newest first, returns false to stop decoding
+    private interface EventSink {
+        boolean accept(long time, UserTagEvent event);
+    }
+
+    // Passes the events with a time in [start, end) to the sink
+    private static void decodeBinary(byte[] data, long start, long end, EventSink sink) {
+        Input in = new Input(data, 1);
+        int version = in.read();
+        if (version == SINGLE_VERSION) {
+            int count = in.readVarInt();
+            Dictionary dictionary = new Dictionary(in);
+            decodeEvents(in, dictionary, count, in.readVarLong(), start, end, sink);
+            return;
+        }
+        if (version != BLOCK_VERSION) {
+            throw new IllegalArgumentException("Unsupported profile format version: " + version);
+        }
+
+        in.readVarInt(); // event count
+        Dictionary dictionary = new Dictionary(in);
+        int blocks = in.readVarInt();
+        long[] newest = new long[blocks];
+        long[] oldest = new long[blocks];
+        int[] counts = new int[blocks];
+        int[] lengths = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            newest[b] = in.readVarLong();
+            oldest[b] = newest[b] - in.readVarLong();
+            counts[b] = in.readVarInt();
+            lengths[b] = in.readVarInt();
+        }
+
+        int offset = in.position;
+        for (int b = 0; b < blocks; b++) {
+            if (newest[b] < start) {
+                // Blocks are newest first, the rest is older still
+                return;
+            }
+            if (oldest[b] < end) {
+                if (!decodeEvents(new Input(data, offset), dictionary, counts[b], newest[b], start, end, sink)) {
+                    return;
+                }
+            }
+            offset += lengths[b];
+        }
+    }
+
+    private static boolean decodeEvents(Input in, Dictionary dictionary, int count, long baseTime, long start,
+            long end, EventSink sink) {
+        long time = baseTime;
+        for (int i = 0; i < count; i++) {
+            time -= unzigzag(in.readVarLong());
+            int flags = in.read();
+            int cookie = in.readVarInt();
+            int country = in.readVarInt();
+            int origin = in.readVarInt();
+            int brandId = in.readVarInt();
+            int categoryId = in.readVarInt();
+            long productId = in.readVarLong();
+            long price = in.readVarLong();
+            if (time < start || time >= end) {
+                // Strings of skipped events are never materialized
+                continue;
+            }
+
+            int device = flags & 0x3;
+            int action = flags >>> 2 & 0x3;
+            UserTagEvent event = new UserTagEvent(Instant.ofEpochMilli(time), dictionary.get(cookie),
+                    dictionary.get(country), device == NULL_ORDINAL ? null : DEVICES[device],
+                    action == NULL_ORDINAL ? null : ACTIONS[action], dictionary.get(origin),
+                    new Product((int) unzigzag(productId), dictionary.get(brandId), dictionary.get(categoryId),
+                            (int) unzigzag(price)));
+            if (!sink.accept(time, event)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int intern(String value, Map<String, Integer> indexes, List<String> dictionary) {
+        if (value == null) {
+            return 0;
+        }
+        Integer index = indexes.get(value);
+        if (index == null) {
+            dictionary.add(value);
+            index = dictionary.size();
+            indexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Strings of a profile, decoded on first use
+    private static final class Dictionary {
+
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final String[] values;
+
+        Dictionary(Input in) {
+            int size = in.readVarInt();
+            this.data = in.data;
+            this.offsets = new int[size + 1];
+            this.lengths = new int[size + 1];
+            this.values = new String[size + 1];
+            for (int i = 1; i <= size; i++) {
+                lengths[i] = in.readVarInt();
+                offsets[i] = in.position;
+                in.position += lengths[i];
+            }
+        }
+
+        // Null for reference 0
+        String get(int ref) {
+            String value = values[ref];
+            if (value == null && ref != 0) {
+                value = new String(data, offsets[ref], lengths[ref], StandardCharsets.UTF_8);
+                values[ref] = value;
+            }
+            return value;
+        }
+    }
+
+    // Unsynchronized replacement of ByteArrayOutputStream
+    private static final class Output {
+
+        private byte[] buffer;
+        private int size;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void write(int b) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] data;
+        private int position;
+
+        Input(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int read() {
+            return data[position++] & 0xFF;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
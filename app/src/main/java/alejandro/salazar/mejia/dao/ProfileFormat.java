@@ -0,0 +1,9 @@
+package alejandro.salazar.mejia.dao;
+
+public enum ProfileFormat {
+
+    // Jackson JSON of the event list, Snappy compressed
+    JSON_SNAPPY,
+    // Versioned binary layout of ProfileCodec
+    BINARY
+}
@@ -0,0 +1,159 @@
+package alejandro.salazar.mejia.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Merges concurrent profile writes of the same cookie into one Aerospike write.
+//
+// Per cookie there is at most one batch being written and one batch collecting events.
+// The request that opens the collecting batch becomes its leader: it waits for the write
+// in flight, then writes every event collected in the meantime in one go. All requests
+// of a batch return once that write has landed.
+public class ProfileWriteCoalescer {
+
+    public interface BatchWriter {
+        void write(String cookie, List<UserTagEvent> events) throws Exception;
+    }
+
+    private static final class Batch {
+        final List<UserTagEvent> events = new ArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    private static final class CookieState {
+        Batch inFlight;
+        Batch collecting;
+    }
+
+    private final BatchWriter writer;
+    private final long maxWaitMillis;
+    private final Object[] locks;
+    private final List<Map<String, CookieState>> states;
+
+    private final DistributionSummary batchSize;
+    private final Counter mergedEvents;
+    private final Counter waitTimeouts;
+
+    public ProfileWriteCoalescer(BatchWriter writer, int stripes, long maxWaitMillis, MeterRegistry registry) {
+        this.writer = writer;
+        this.maxWaitMillis = maxWaitMillis;
+        this.locks = new Object[stripes];
+        this.states = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+            states.add(new HashMap<>());
+        }
+
+        this.batchSize = DistributionSummary.builder("profile.coalescer.batch.size")
+                .description("Events applied by one coalesced profile write")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.mergedEvents = Counter.builder("profile.coalescer.merged")
+                .description("Events merged into another request's write, i.e. profile writes and retries avoided")
+                .register(registry);
+        this.waitTimeouts = Counter.builder("profile.coalescer.wait.timeouts")
+                .description("Batches written without waiting for the previous write of the cookie")
+                .register(registry);
+    }
+
+    public void submit(UserTagEvent event) throws Exception {
+        String cookie = event.getCookie();
+        int stripe = Math.floorMod(cookie.hashCode(), locks.length);
+        Map<String, CookieState> stripeStates = states.get(stripe);
+
+        Batch batch;
+        Batch predecessor = null;
+        boolean leader = false;
+        synchronized (locks[stripe]) {
+            CookieState state = stripeStates.get(cookie);
+            if (state == null) {
+                state = new CookieState();
+                stripeStates.put(cookie, state);
+            }
+            if (state.collecting != null) {
+                batch = state.collecting;
+                mergedEvents.increment();
+            } else {
+                batch = new Batch();
+                leader = true;
+                if (state.inFlight == null) {
+                    state.inFlight = batch;
+                } else {
+                    predecessor = state.inFlight;
+                    state.collecting = batch;
+                }
+            }
+            batch.events.add(event);
+        }
+
+        if (leader) {
+            lead(cookie, stripe, batch, predecessor);
+        }
+        await(batch);
+    }
+
+    private void lead(String cookie, int stripe, Batch batch, Batch predecessor) {
+        if (predecessor != null) {
+            try {
+                predecessor.done.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Stay within the SLA, overlapping writes are resolved by the DAO itself
+                waitTimeouts.increment();
+            } catch (Exception e) {
+                // The outcome of the previous batch is reported to its own requests
+            }
+        }
+
+        List<UserTagEvent> events;
+        synchronized (locks[stripe]) {
+            CookieState state = states.get(stripe).get(cookie);
+            if (state.collecting == batch) {
+                state.collecting = null;
+                state.inFlight = batch;
+            }
+            events = new ArrayList<>(batch.events);
+        }
+
+        try {
+            batchSize.record(events.size());
+            writer.write(cookie, events);
+            batch.done.complete(null);
+        } catch (Throwable e) {
+            batch.done.completeExceptionally(e);
+        } finally {
+            synchronized (locks[stripe]) {
+                CookieState state = states.get(stripe).get(cookie);
+                if (state.inFlight == batch) {
+                    state.inFlight = null;
+                    if (state.collecting == null) {
+                        states.get(stripe).remove(cookie);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void await(Batch batch) throws Exception {
+        try {
+            batch.done.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
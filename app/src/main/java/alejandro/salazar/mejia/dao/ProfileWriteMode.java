@@ -0,0 +1,9 @@
+package alejandro.salazar.mejia.dao;
+
+public enum ProfileWriteMode {
+
+    // Read the whole profile, insert the event and write both bins back under a generation check
+    GET_PUT,
+    // Ordered list append and trim in a single operate call, no read and no generation check
+    OPERATE
+}
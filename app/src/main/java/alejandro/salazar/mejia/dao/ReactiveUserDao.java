@@ -0,0 +1,263 @@
+package alejandro.salazar.mejia.dao;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.listener.RecordArrayListener;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.client.listener.WriteListener;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.WritePolicy;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Aggregate;
+import alejandro.salazar.mejia.domain.AggregatesQueryResult;
+import alejandro.salazar.mejia.domain.UserProfileResult;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+// Non-blocking variant of UserDao. Aerospike commands run on the client's event loops
+// (aerospike.event-loops) and complete the returned Mono from their listeners.
+@Component
+@ConditionalOnProperty(name = "front.mode", havingValue = "REACTIVE")
+public class ReactiveUserDao {
+
+    private final UserDao userDao;
+    private final AerospikeClient client;
+
+    public ReactiveUserDao(UserDao userDao) {
+        if (!userDao.hasEventLoops()) {
+            throw new IllegalStateException("front.mode=REACTIVE requires aerospike.event-loops > 0");
+        }
+        this.userDao = userDao;
+        this.client = userDao.client();
+    }
+
+    public Mono<Void> addUserTag(UserTagEvent userTagEvent) {
+        // Does not block: sends that Kafka cannot take right away go to the local spool
+        userDao.publish(userTagEvent);
+
+        String cookie = userTagEvent.getCookie();
+        Key key = UserDao.profileKey(cookie);
+        List<UserTagEvent> events = List.of(userTagEvent);
+        if (userDao.writeMode() == ProfileWriteMode.OPERATE) {
+            return Mono.fromCallable(() -> userDao.appendOperations(events))
+                    .flatMap(operations -> operate(userDao.appendPolicy(), key, operations))
+                    .publishOn(Schedulers.parallel())
+                    .doOnNext(record -> userDao.appended(cookie, record.orElse(null), events))
+                    .then();
+        }
+        return replaceProfile(cookie, key, events, userDao.cachedProfile(cookie));
+    }
+
+    // Same optimistic concurrency control and profile cache as UserDao, retried without
+    // blocking from a fresh read
+    private Mono<Void> replaceProfile(String cookie, Key key, List<UserTagEvent> events, ProfileCache.Entry cached) {
+        Mono<Optional<Record>> read = cached != null ? Mono.just(Optional.empty())
+                : get(new Policy(client.readPolicyDefault), key);
+        return read
+                // Decoding, merging and encoding the profile is CPU work, off the event loop too
+                .publishOn(Schedulers.parallel())
+                .flatMap(record -> Mono.fromCallable(() -> userDao.draftProfile(cached, record.orElse(null), events)))
+                .flatMap(draft -> Mono.fromCallable(() -> userDao.profileBins(draft))
+                        .flatMap(bins -> put(userDao.replacePolicy(draft), key, bins))
+                        .publishOn(Schedulers.parallel())
+                        .then(Mono.fromRunnable(() -> userDao.replaced(cookie, draft)))
+                        .onErrorResume(e -> e instanceof AerospikeException
+                                && userDao.isReplaceConflict(draft, (AerospikeException) e),
+                                e -> replaceProfile(cookie, key, events, null)))
+                .then();
+    }
+
+    // A cached profile is used if a header read tells the record has not been written since
+    public Mono<UserProfileResult> getUserProfile(String cookie, String timeRangeStr, int limit,
+            UserProfileResult expectedResult) {
+        Policy readPolicy = new Policy(client.readPolicyDefault);
+        Key key = UserDao.profileKey(cookie);
+        ProfileCache.Entry cached = userDao.cachedProfile(cookie);
+        if (cached == null) {
+            userDao.recordProfileMiss();
+            return readUserProfile(readPolicy, key, cookie, timeRangeStr, limit, expectedResult);
+        }
+        return getHeader(readPolicy, key)
+                .publishOn(Schedulers.parallel())
+                .flatMap(header -> userDao.isCurrent(cached, header.orElse(null))
+                        ? Mono.fromCallable(() -> userDao.buildUserProfile(cookie, cached, timeRangeStr, limit,
+                                expectedResult))
+                        : readUserProfile(readPolicy, key, cookie, timeRangeStr, limit, expectedResult));
+    }
+
+    private Mono<UserProfileResult> readUserProfile(Policy readPolicy, Key key, String cookie, String timeRangeStr,
+            int limit, UserProfileResult expectedResult) {
+        return get(readPolicy, key)
+                // Decoding is CPU work, do not hold the event loop for it
+                .publishOn(Schedulers.parallel())
+                .flatMap(record -> Mono.fromCallable(() -> userDao.readUserProfile(cookie, record.orElse(null),
+                        timeRangeStr, limit, expectedResult)));
+    }
+
+    public boolean canAggregate(String[] filters) {
+        return userDao.canAggregate(filters);
+    }
+
+    public boolean canTop(Dimension dimension) {
+        return userDao.canTop(dimension);
+    }
+
+    public Mono<AggregatesQueryResult> getAggregates(String timeRangeStr, Action action, List<Aggregate> aggregates,
+            String[] filters, AggregateLevel bucketSize, AggregatesQueryResult expectedResult) {
+        AggregateBuckets buckets = userDao.aggregateBuckets(timeRangeStr, bucketSize, action, filters);
+        long now = System.currentTimeMillis();
+        long[] values = new long[buckets.size() * AggregateCache.VALUES];
+        byte[][] sketches = userDao.sketches(buckets, aggregates);
+        if (!userDao.isMaterialized(filters)) {
+            return rollUp(timeRangeStr, bucketSize, action, aggregates, filters, buckets, values, sketches, now)
+                    .then(Mono.fromCallable(() -> userDao.buildAggregates(timeRangeStr, bucketSize, buckets, values,
+                            sketches, action, aggregates, filters, expectedResult)));
+        }
+        int[] reads = userDao.cachedAggregates(buckets, values, sketches, now);
+        int[] recordOf = new int[reads.length];
+        Key[] keys = buckets.recordKeys(reads, recordOf);
+        String[] bins = userDao.aggregateBins(aggregates, buckets, reads);
+        userDao.recordQuery(filters, keys.length);
+
+        return get(keys, bins)
+                .map(records -> {
+                    userDao.readAggregates(buckets, reads, recordOf, records, values, sketches, now);
+                    return userDao.buildAggregates(timeRangeStr, bucketSize, buckets, values, sketches, action,
+                            aggregates, filters, expectedResult);
+                });
+    }
+
+    // Reads the tuples listed, then the records of the cells, planning and summing them off the
+    // event loops: there may be thousands
+    private Mono<Void> rollUp(String timeRangeStr, AggregateLevel bucketSize, Action action,
+            List<Aggregate> aggregates, String[] filters, AggregateBuckets buckets, long[] values, byte[][] sketches,
+            long now) {
+        UserDao.RollUp rollUp = userDao.rollUp(timeRangeStr, bucketSize, action, filters);
+        return get(rollUp.tupleKeys, new String[] { rollUp.tuplesBin })
+                .publishOn(Schedulers.parallel())
+                .flatMap(tupleRecords -> {
+                    userDao.planRollUp(rollUp, tupleRecords, timeRangeStr, bucketSize, action, aggregates, filters,
+                            buckets, values, sketches, now);
+                    return get(rollUp.keys, rollUp.bins);
+                })
+                .publishOn(Schedulers.parallel())
+                .doOnNext(records -> userDao.readRollUp(rollUp, records, values, sketches, now))
+                .then();
+    }
+
+    public Mono<AggregatesQueryResult> getTop(String timeRangeStr, Action action, Dimension dimension,
+            Aggregate metric, int limit) {
+        Key[] keys = userDao.topKeys(userDao.topBuckets(timeRangeStr, action));
+        String[] bins = userDao.topBins(dimension, metric);
+        return get(keys, bins).map(records -> userDao.buildTop(dimension, metric, limit, records));
+    }
+
+    // Chunks of keys are fetched with concurrent batch reads, results are kept in key order
+    private Mono<Record[]> get(Key[] keys, String[] bins) {
+        int chunkSize = userDao.aggregateChunkSize();
+        return Flux.range(0, (keys.length + chunkSize - 1) / chunkSize)
+                .flatMapSequential(chunk -> get(userDao.aggregateBatchPolicy(),
+                        Arrays.copyOfRange(keys, chunk * chunkSize, Math.min((chunk + 1) * chunkSize, keys.length)),
+                        bins))
+                .collectList()
+                .map(chunks -> concat(chunks, keys.length));
+    }
+
+    // Records of buckets without aggregates are null, which a Flux cannot hold
+    private static Record[] concat(List<Record[]> chunks, int size) {
+        Record[] records = new Record[size];
+        int offset = 0;
+        for (Record[] chunk : chunks) {
+            System.arraycopy(chunk, 0, records, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return records;
+    }
+
+    private Mono<Optional<Record>> get(Policy policy, Key key) {
+        return Mono.create(sink -> client.get(null, new RecordListener() {
+            @Override
+            public void onSuccess(Key key, Record record) {
+                sink.success(Optional.ofNullable(record));
+            }
+
+            @Override
+            public void onFailure(AerospikeException exception) {
+                sink.error(exception);
+            }
+        }, policy, key));
+    }
+
+    private Mono<Optional<Record>> getHeader(Policy policy, Key key) {
+        return Mono.create(sink -> client.getHeader(null, new RecordListener() {
+            @Override
+            public void onSuccess(Key key, Record record) {
+                sink.success(Optional.ofNullable(record));
+            }
+
+            @Override
+            public void onFailure(AerospikeException exception) {
+                sink.error(exception);
+            }
+        }, policy, key));
+    }
+
+    private Mono<Record[]> get(BatchPolicy policy, Key[] keys, String[] bins) {
+        return Mono.create(sink -> client.get(null, new RecordArrayListener() {
+            @Override
+            public void onSuccess(Key[] keys, Record[] records) {
+                sink.success(records);
+            }
+
+            @Override
+            public void onFailure(AerospikeException exception) {
+                sink.error(exception);
+            }
+        }, policy, keys, bins));
+    }
+
+    private Mono<Void> put(WritePolicy policy, Key key, Bin[] bins) {
+        return Mono.create(sink -> client.put(null, new WriteListener() {
+            @Override
+            public void onSuccess(Key key) {
+                sink.success();
+            }
+
+            @Override
+            public void onFailure(AerospikeException exception) {
+                sink.error(exception);
+            }
+        }, policy, key, bins));
+    }
+
+    private Mono<Optional<Record>> operate(WritePolicy policy, Key key, Operation[] operations) {
+        return Mono.create(sink -> client.operate(null, new RecordListener() {
+            @Override
+            public void onSuccess(Key key, Record record) {
+                sink.success(Optional.ofNullable(record));
+            }
+
+            @Override
+            public void onFailure(AerospikeException exception) {
+                sink.error(exception);
+            }
+        }, policy, key, operations));
+    }
+}
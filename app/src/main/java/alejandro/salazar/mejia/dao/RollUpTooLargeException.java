@@ -0,0 +1,11 @@
+package alejandro.salazar.mejia.dao;
+
+// A rolled up /aggregates query would read the records of more tuples than allowed, or one of
+// its buckets had more tuples than are listed (see DimensionLattice.MAX_TUPLES). Such queries are
+// refused rather than answered in part.
+public class RollUpTooLargeException extends RuntimeException {
+
+    RollUpTooLargeException(String message) {
+        super(message);
+    }
+}
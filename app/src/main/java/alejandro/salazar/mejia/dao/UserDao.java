@@ -1,13 +1,23 @@
 package alejandro.salazar.mejia.dao;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import javax.annotation.PreDestroy;
 
@@ -22,7 +32,17 @@ import com.aerospike.client.ResultCode;
 import com.aerospike.client.Bin;
 import com.aerospike.client.Host;
 import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
 import com.aerospike.client.Record;
+import com.aerospike.client.async.EventLoops;
+import com.aerospike.client.async.EventPolicy;
+import com.aerospike.client.async.NioEventLoops;
+import com.aerospike.client.cdt.ListOperation;
+import com.aerospike.client.cdt.ListOrder;
+import com.aerospike.client.cdt.ListPolicy;
+import com.aerospike.client.cdt.ListReturnType;
+import com.aerospike.client.cdt.ListWriteFlags;
+import com.aerospike.client.policy.BatchPolicy;
 import com.aerospike.client.policy.ClientPolicy;
 import com.aerospike.client.policy.CommitLevel;
 import com.aerospike.client.policy.Policy;
@@ -31,24 +51,24 @@ import com.aerospike.client.policy.Replica;
 import com.aerospike.client.policy.WritePolicy;
 import com.aerospike.client.policy.GenerationPolicy;
 
-import org.apache.kafka.common.serialization.StringSerializer;
-import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.KafkaProducer;
-import org.apache.kafka.clients.producer.ProducerConfig;
-import org.apache.kafka.clients.producer.ProducerRecord;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.core.type.TypeReference;
-import org.xerial.snappy.Snappy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 
+import alejandro.salazar.mejia.audit.ResultAuditor;
 import alejandro.salazar.mejia.domain.Action;
 import alejandro.salazar.mejia.domain.Aggregate;
 import alejandro.salazar.mejia.domain.AggregatesQueryResult;
+import alejandro.salazar.mejia.domain.BatchResult;
+import alejandro.salazar.mejia.domain.Device;
 import alejandro.salazar.mejia.domain.UserProfileResult;
 import alejandro.salazar.mejia.domain.UserTagEvent;
-import java.util.Comparator;
-import java.util.HashMap;
+import alejandro.salazar.mejia.kafka.EventPublisher;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.HyperLogLog;
+import alejandro.salazar.mejia.schema.SpaceSaving;
 
 @Component
 public class UserDao {
@@ -59,29 +79,50 @@ public class UserDao {
     private static final String NAMESPACE = "mimuw";
     private static final String SET = "users";
     private static final String SET_AGREGGATES = "aggregates";
+    // Written by the processor, a record per partition of user_tags
+    private static final String SET_FLUSHES = "flushes";
+    private static final String CLOSED_UNTIL_BIN = "closed_until";
+    // Last flushes of a partition that added late events, [epoch, start of the earliest bucket
+    // they added to], as many as the processor keeps
+    private static final String CORRECTIONS_BIN = "corrections";
+    private static final int KEPT_CORRECTIONS = 16;
     private static final String VIEW_BIN = "views";
     private static final String BUY_BIN = "buys";
+    // Bins used by ProfileWriteMode.OPERATE: ordered lists of [epochMillis, event] entries
+    private static final String VIEW_LIST_BIN = "view_list";
+    private static final String BUY_LIST_BIN = "buy_list";
     private static final int MAX_EVENTS = 200;
-
-    // Kafka configuration
-    private static final String TOPIC = "user_tags";
-    private static final Map<String, Object> kafkaProperties = new HashMap<>();
-    static {
-        kafkaProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        kafkaProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        kafkaProperties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "st112vm103.rtb-lab.pl:9092");
-
-        kafkaProperties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "snappy"); // Set compression type to snappy
-        kafkaProperties.put(ProducerConfig.LINGER_MS_CONFIG, 5);
-    }
-
-    private static final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private static final ListPolicy EVENT_LIST_POLICY = new ListPolicy(ListOrder.ORDERED, ListWriteFlags.DEFAULT);
 
     private AerospikeClient client;
-    private Producer<String, String> producer = new KafkaProducer<>(kafkaProperties);
+    private final EventLoops eventLoops;
+    private final ProfileWriteMode writeMode;
+    private final ProfileFormat format;
+    private final ProfileWriteCoalescer coalescer;
+    private final Counter generationRetries;
+    private final ExecutorService batchExecutor;
+    private final EventPublisher publisher;
+    private final ProfileCache profileCache;
+    private final ResultAuditor auditor;
+    private final BatchPolicy aggregateBatchPolicy;
+    private final int aggregateChunkSize;
+    private final ExecutorService aggregateExecutor;
+    private final AggregateCache aggregateCache;
+    private final long packedSinceMinute;
+    private final int aggregatePartitions;
+    private final ScheduledExecutorService closedRefresher;
+    // Epoch of the last correction seen by flushes record digest
+    private final Map<ByteBuffer, Long> correctionEpochs = new ConcurrentHashMap<>();
+    private final DimensionLattice lattice;
+    // Records of tuples a rolled up query may read
+    private final int maxRollUpTuples;
+    // Records read by /aggregates queries, by combination of the dimensions filtered on, null
+    // for those no combination kept covers
+    private final DistributionSummary[] queryRecords = new DistributionSummary[1 << Dimension.values().length];
 
-    private static ClientPolicy defaultClientPolicy() {
+    private static ClientPolicy defaultClientPolicy(EventLoops eventLoops) {
         ClientPolicy defaultClientPolicy = new ClientPolicy();
+        defaultClientPolicy.eventLoops = eventLoops;
         defaultClientPolicy.readPolicyDefault.replica = Replica.MASTER_PROLES;
         defaultClientPolicy.readPolicyDefault.socketTimeout = 2000;
         defaultClientPolicy.readPolicyDefault.totalTimeout = 3000;
@@ -93,223 +134,932 @@ public class UserDao {
         return defaultClientPolicy;
     }
 
-    public UserDao(@Value("${aerospike.seeds}") String[] aerospikeSeeds, @Value("${aerospike.port}") int port) {
-        this.client = new AerospikeClient(defaultClientPolicy(),
+    public UserDao(@Value("${aerospike.seeds}") String[] aerospikeSeeds, @Value("${aerospike.port}") int port,
+            @Value("${aerospike.event-loops:0}") int eventLoopCount,
+            @Value("${profile.write-mode:GET_PUT}") ProfileWriteMode writeMode,
+            @Value("${profile.format:BINARY}") ProfileFormat format,
+            @Value("${profile.coalescing.enabled:true}") boolean coalescing,
+            @Value("${profile.coalescing.stripes:64}") int coalescingStripes,
+            @Value("${profile.coalescing.max-wait-ms:50}") long coalescingMaxWaitMillis,
+            @Value("${ingest.batch.parallelism:16}") int batchParallelism,
+            @Value("${profile.cache.enabled:true}") boolean caching,
+            @Value("${profile.cache.max-mb:256}") long cacheMaxMb,
+            @Value("${aggregates.fetch.chunk-size:60}") int aggregateChunkSize,
+            @Value("${aggregates.fetch.parallelism:16}") int aggregateParallelism,
+            @Value("${aggregates.cache.enabled:true}") boolean aggregateCaching,
+            @Value("${aggregates.cache.max-mb:64}") long aggregateCacheMaxMb,
+            @Value("${aggregates.cache.close-lag-ms:120000}") long aggregateCloseLagMillis,
+            @Value("${aggregates.cache.ttl-ms:600000}") long aggregateCacheTtlMillis,
+            @Value("${aggregates.packed-since:}") String packedSince,
+            @Value("${aggregates.cache.partitions:0}") int aggregatePartitions,
+            @Value("${aggregates.cache.closed-refresh-ms:5000}") long closedRefreshMillis,
+            @Value("${aggregates.combinations:" + DimensionLattice.DEFAULT + "}") String combinations,
+            @Value("${aggregates.rollup.max-tuples:10000}") int maxRollUpTuples,
+            EventPublisher publisher, ResultAuditor auditor, MeterRegistry meterRegistry) {
+        // Event loops are only needed by the async commands of ReactiveUserDao
+        this.eventLoops = eventLoopCount > 0 ? new NioEventLoops(new EventPolicy(), eventLoopCount) : null;
+        this.client = new AerospikeClient(defaultClientPolicy(eventLoops),
                 Arrays.stream(aerospikeSeeds).map(seed -> new Host(seed, port)).toArray(Host[]::new));
+        this.writeMode = writeMode;
+        this.format = format;
+        this.coalescer = coalescing
+                ? new ProfileWriteCoalescer(this::writeProfile, coalescingStripes, coalescingMaxWaitMillis, meterRegistry)
+                : null;
+        this.generationRetries = Counter.builder("profile.write.generation.retries")
+                .description("Profile writes retried after a generation or key exists conflict")
+                .register(meterRegistry);
+        this.batchExecutor = Executors.newFixedThreadPool(batchParallelism);
+        this.publisher = publisher;
+        this.profileCache = caching ? new ProfileCache(cacheMaxMb * 1024 * 1024, meterRegistry) : null;
+        this.auditor = auditor;
+        this.aggregateBatchPolicy = new BatchPolicy(client.batchPolicyDefault);
+        this.aggregateChunkSize = aggregateChunkSize;
+        this.aggregateExecutor = Executors.newFixedThreadPool(aggregateParallelism);
+        this.aggregateCache = aggregateCaching
+                ? new AggregateCache(aggregateCacheMaxMb * 1024 * 1024, aggregateCloseLagMillis,
+                        aggregateCacheTtlMillis, meterRegistry)
+                : null;
+        // Minutes from packed-since on are read from the minute maps of the hour records
+        this.packedSinceMinute = packedSince.isEmpty() ? Long.MAX_VALUE
+                : Math.floorDiv(Instant.parse(packedSince + "Z").getEpochSecond(), 60);
+        this.aggregatePartitions = aggregatePartitions;
+        this.closedRefresher = aggregateCache != null
+                ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "aggregate-closed-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+        if (closedRefresher != null) {
+            closedRefresher.scheduleWithFixedDelay(this::refreshClosedBuckets, 0, closedRefreshMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        this.lattice = DimensionLattice.parse(combinations);
+        this.maxRollUpTuples = maxRollUpTuples;
+        for (int requested = 0; requested < queryRecords.length; requested++) {
+            int materialized = lattice.nearest(requested);
+            if (materialized >= 0) {
+                queryRecords[requested] = DistributionSummary.builder("aggregates.query.records")
+                        .description("Records read by an /aggregates query, rolled up when materialized differs")
+                        .tag("requested", DimensionLattice.label(requested))
+                        .tag("materialized", DimensionLattice.label(materialized))
+                        .register(meterRegistry);
+            }
+        }
+        log.info("Aggregate combinations: {}", lattice);
+        log.info("User profile write mode: {}, format: {}, coalescing: {}, cache: {}", writeMode, format, coalescing,
+                caching);
     }
 
     public void addUserTag(UserTagEvent userTagEvent) throws Exception {
+        publish(userTagEvent);
 
-        // Send the event to Kafka
-        try {
-            Instant time = userTagEvent.getTime();
-            String timeBucket = time.atZone(ZoneOffset.UTC).withSecond(0).withNano(0)
-                    .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-            String value = objectMapper.writeValueAsString(userTagEvent);
-
-            producer.send(new ProducerRecord<>(TOPIC, timeBucket, value), (metadata, exception) -> {
-                if (exception != null) {
-                    log.error("Error while sending message to Kafka", exception);
-                }
-            });
-        } catch (Exception e) {
-            log.error("Failed to send the event to Kafka", e);
+        if (coalescer != null) {
+            coalescer.submit(userTagEvent);
+        } else {
+            writeProfile(userTagEvent.getCookie(), List.of(userTagEvent));
         }
+    }
 
-        // Cookie is the unique identifier for the user
-        Key key = new Key(NAMESPACE, SET, userTagEvent.getCookie());
-        Policy readPolicy = new Policy(client.readPolicyDefault);
-        WritePolicy writePolicy = new WritePolicy(client.writePolicyDefault);
+    // Writes the profile of every cookie of the batch once, failures are reported per item
+    public void addUserTags(UserTagBatch batch, BatchResult result) {
+        // Hand all events to the producer first, it batches them by partition
+        batch.events().forEach(this::publish);
 
-        // Optimistic concurrency control
-        while (true) {
-            Record record = client.get(readPolicy, key);
-            List<UserTagEvent> viewEvents;
-            List<UserTagEvent> buyEvents;
+        Map<String, Future<?>> writes = new LinkedHashMap<>();
+        batch.eventsByCookie().forEach((cookie, events) -> writes.put(cookie, batchExecutor.submit(() -> {
+            writeProfile(cookie, events);
+            return null;
+        })));
 
-            if (record == null) {
-                // No existing record, create new lists
-                viewEvents = new ArrayList<>();
-                buyEvents = new ArrayList<>();
+        writes.forEach((cookie, write) -> {
+            List<Integer> indexes = batch.indexes(cookie);
+            try {
+                write.get();
+                result.setAccepted(result.getAccepted() + indexes.size());
+            } catch (Exception e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                log.error("Error while adding user tag events for cookie: {}", cookie, cause);
+                indexes.forEach(index -> result.addFailure(index, String.valueOf(cause.getMessage())));
+            }
+        });
+    }
 
-                // Set the write policy to create only if the record does not exist
-                writePolicy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+    // Send the event to Kafka, never blocks for long, see EventPublisher
+    void publish(UserTagEvent userTagEvent) {
+        publisher.publish(userTagEvent);
+    }
 
-            } else {
-                // Existing record, decompress and parse JSON
-                viewEvents = parseEvents(record.getValue(VIEW_BIN));
-                buyEvents = parseEvents(record.getValue(BUY_BIN));
+    // Applies events of one cookie to its profile with a single Aerospike write
+    private void writeProfile(String cookie, List<UserTagEvent> events) throws Exception {
+        Key key = profileKey(cookie);
+        if (writeMode == ProfileWriteMode.OPERATE) {
+            appendEvents(cookie, key, events);
+        } else {
+            replaceProfile(cookie, key, events);
+        }
+    }
 
-                // Set the write policy to replace the record
-                writePolicy.recordExistsAction = RecordExistsAction.REPLACE;
+    // Single round trip: ordered insert into the actions' list bins and trim them to the
+    // MAX_EVENTS newest entries. Bins of actions without new events are left untouched.
+    private void appendEvents(String cookie, Key key, List<UserTagEvent> events) throws Exception {
+        Record record = client.operate(appendPolicy(), key, appendOperations(events));
+        appended(cookie, record, events);
+    }
 
-                // Set the generation policy and expected generation
-                writePolicy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
-                writePolicy.generation = record.generation;
+    // Adds the events appended to the cached profile, the record being the one the append
+    // returned. The cached profile can be carried forward only if no other write came in between.
+    void appended(String cookie, Record record, List<UserTagEvent> events) {
+        if (profileCache == null) {
+            return;
+        }
+        ProfileCache.Entry cached = profileCache.get(cookie);
+        if (cached != null && record != null && ProfileCache.nextGeneration(cached.generation) == record.generation) {
+            EventBuffer views = cached.views.copy();
+            EventBuffer buys = cached.buys.copy();
+            addEvents(views, buys, events);
+            profileCache.put(cookie, record.generation, views, buys);
+        } else if (cached != null) {
+            profileCache.invalidate(cookie);
+        }
+    }
 
-            }
+    WritePolicy appendPolicy() {
+        WritePolicy writePolicy = new WritePolicy(client.writePolicyDefault);
+        writePolicy.recordExistsAction = RecordExistsAction.UPDATE;
+        return writePolicy;
+    }
 
-            // Add the new event to the appropriate list. Only keep the most recent
-            // MAX_EVENTS events.
-            if (userTagEvent.getAction() == Action.VIEW) {
-                insertEvent(viewEvents, userTagEvent);
-            } else {
-                insertEvent(buyEvents, userTagEvent);
-            }
+    Operation[] appendOperations(List<UserTagEvent> events) throws Exception {
+        List<com.aerospike.client.Value> viewEntries = new ArrayList<>();
+        List<com.aerospike.client.Value> buyEntries = new ArrayList<>();
+        for (UserTagEvent event : events) {
+            com.aerospike.client.Value entry = com.aerospike.client.Value.get(
+                    Arrays.asList(event.getTime().toEpochMilli(), ProfileCodec.encodeEvent(event, format)));
+            (event.getAction() == Action.VIEW ? viewEntries : buyEntries).add(entry);
+        }
+
+        List<Operation> operations = new ArrayList<>(4);
+        addAppendOperations(operations, VIEW_LIST_BIN, viewEntries);
+        addAppendOperations(operations, BUY_LIST_BIN, buyEntries);
+        return operations.toArray(new Operation[0]);
+    }
+
+    private static void addAppendOperations(List<Operation> operations, String binName,
+            List<com.aerospike.client.Value> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        operations.add(entries.size() == 1
+                ? ListOperation.append(EVENT_LIST_POLICY, binName, entries.get(0))
+                : ListOperation.appendItems(EVENT_LIST_POLICY, binName, entries));
+        operations.add(ListOperation.removeByRankRange(binName, -MAX_EVENTS,
+                ListReturnType.NONE | ListReturnType.INVERTED));
+    }
+
+    // Profile replacing the record of the given generation, 0 if there is none
+    static final class ProfileDraft {
+        final int generation;
+        final EventBuffer views;
+        final EventBuffer buys;
+        // Made from the cached profile instead of a read
+        final boolean cached;
 
-            // log.info("\nAdding user tag event: {} \n", userTagEvent);
+        ProfileDraft(int generation, EventBuffer views, EventBuffer buys, boolean cached) {
+            this.generation = generation;
+            this.views = views;
+            this.buys = buys;
+            this.cached = cached;
+        }
+    }
 
-            // Convert lists to JSON and compress
-            byte[] compressedViewEventsJson = compressEvents(viewEvents);
-            byte[] compressedBuyEventsJson = compressEvents(buyEvents);
+    // Read-modify-write of both blob bins under a generation check. A profile cached on this
+    // node stands in for the read: if another node wrote the profile since, the generation
+    // check fails and the write is retried from a fresh read.
+    private void replaceProfile(String cookie, Key key, List<UserTagEvent> newEvents) throws Exception {
+        Policy readPolicy = new Policy(client.readPolicyDefault);
+        ProfileCache.Entry cached = cachedProfile(cookie);
 
-            Bin viewBin = new Bin(VIEW_BIN, compressedViewEventsJson);
-            Bin buyBin = new Bin(BUY_BIN, compressedBuyEventsJson);
+        // Optimistic concurrency control
+        while (true) {
+            ProfileDraft draft = draftProfile(cached, cached == null ? client.get(readPolicy, key) : null, newEvents);
 
-            // Write to the database
+            // Write to the database. REPLACE also drops the list bins of a profile written in
+            // OPERATE mode, their events were merged into the blobs.
             try {
-                client.put(writePolicy, key, viewBin, buyBin);
+                client.put(replacePolicy(draft), key, profileBins(draft));
+                replaced(cookie, draft);
                 break;
             } catch (AerospikeException e) {
-                if (e.getResultCode() == ResultCode.GENERATION_ERROR
-                        || e.getResultCode() == ResultCode.KEY_EXISTS_ERROR) {
-                    // Retry on generation error or key exists error
-                    log.warn("Optimistic concurrency control failed, retrying");
-                } else {
+                if (!isReplaceConflict(draft, e)) {
                     throw e; // If it's another exception, rethrow it
                 }
-
+                cached = null;
             }
 
         }
 
     }
 
+    // The profile cached on this node whatever its generation, null if there is none
+    ProfileCache.Entry cachedProfile(String cookie) {
+        return profileCache != null ? profileCache.get(cookie) : null;
+    }
+
+    // The new events added to copies of the cached profile, or to the record read without one
+    ProfileDraft draftProfile(ProfileCache.Entry cached, Record record, List<UserTagEvent> newEvents)
+            throws Exception {
+        ProfileDraft draft;
+        if (cached != null) {
+            draft = new ProfileDraft(cached.generation, cached.views.copy(), cached.buys.copy(), true);
+        } else if (record == null) {
+            // No existing record, create new buffers
+            draft = new ProfileDraft(0, new EventBuffer(MAX_EVENTS), new EventBuffer(MAX_EVENTS), false);
+        } else {
+            // Existing record, decode both profile bins
+            draft = new ProfileDraft(record.generation, readEvents(record, Action.VIEW),
+                    readEvents(record, Action.BUY), false);
+        }
+        addEvents(draft.views, draft.buys, newEvents);
+        return draft;
+    }
+
+    // Create the record if it does not exist (generation 0), otherwise replace it if it was
+    // not modified since it has been read
+    WritePolicy replacePolicy(ProfileDraft draft) {
+        WritePolicy writePolicy = new WritePolicy(client.writePolicyDefault);
+        if (draft.generation == 0) {
+            writePolicy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+        } else {
+            writePolicy.recordExistsAction = RecordExistsAction.REPLACE;
+            writePolicy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+            writePolicy.generation = draft.generation;
+        }
+        return writePolicy;
+    }
+
+    // Caches the profile written, as of the generation the write gave the record
+    void replaced(String cookie, ProfileDraft draft) {
+        if (profileCache != null) {
+            profileCache.put(cookie, ProfileCache.nextGeneration(draft.generation), draft.views, draft.buys);
+        }
+    }
+
+    // Whether the replace failed because the record changed since the draft, and is retried
+    // from a fresh read. A cached profile may also belong to a record that no longer exists.
+    boolean isReplaceConflict(ProfileDraft draft, AerospikeException e) {
+        return draft.cached && e.getResultCode() == ResultCode.KEY_NOT_FOUND_ERROR || isWriteConflict(e);
+    }
+
+    // Add the new events to the appropriate buffer. Only the most recent MAX_EVENTS events
+    // are kept.
+    private static void addEvents(EventBuffer viewEvents, EventBuffer buyEvents, List<UserTagEvent> newEvents) {
+        for (UserTagEvent userTagEvent : newEvents) {
+            if (userTagEvent.getAction() == Action.VIEW) {
+                viewEvents.add(userTagEvent);
+            } else {
+                buyEvents.add(userTagEvent);
+            }
+        }
+    }
+
+    // Encode the buffers in the configured profile format
+    Bin[] profileBins(ProfileDraft draft) throws Exception {
+        return new Bin[] { new Bin(VIEW_BIN, compressEvents(draft.views)),
+                new Bin(BUY_BIN, compressEvents(draft.buys)) };
+    }
+
+    boolean isWriteConflict(AerospikeException e) {
+        if (e.getResultCode() == ResultCode.GENERATION_ERROR || e.getResultCode() == ResultCode.KEY_EXISTS_ERROR) {
+            // Retry on generation error or key exists error
+            log.warn("Optimistic concurrency control failed, retrying");
+            generationRetries.increment();
+            return true;
+        }
+        return false;
+    }
+
     public UserProfileResult getUserProfile(String cookie, String timeRangeStr, int limit,
             UserProfileResult expectedResult) throws Exception {
-        // Parse the time range
-        String[] timeRange = timeRangeStr.split("_");
-        Instant startTime = Instant.parse(timeRange[0] + "Z");
-        Instant endTime = Instant.parse(timeRange[1] + "Z");
-
-        // Retrieve the user record
-        Key key = new Key(NAMESPACE, SET, cookie);
         Policy readPolicy = new Policy(client.readPolicyDefault);
-        Record record = client.get(readPolicy, key);
+        Key key = profileKey(cookie);
+
+        // A cached profile is used if the record has not been written since, which a header
+        // read tells without transferring the bins
+        ProfileCache.Entry cached = cachedProfile(cookie);
+        if (cached != null) {
+            if (isCurrent(cached, client.getHeader(readPolicy, key))) {
+                return buildUserProfile(cookie, cached, timeRangeStr, limit, expectedResult);
+            }
+        } else {
+            recordProfileMiss();
+        }
+        return readUserProfile(cookie, client.get(readPolicy, key), timeRangeStr, limit, expectedResult);
+    }
+
+    // Whether the cached profile is still that of the record whose header was read, counted
+    // as a hit or a stale entry
+    boolean isCurrent(ProfileCache.Entry cached, Record header) {
+        if (header != null && header.generation == cached.generation) {
+            profileCache.recordHit();
+            return true;
+        }
+        profileCache.recordStale(cached, header == null ? 0 : header.generation);
+        return false;
+    }
+
+    void recordProfileMiss() {
+        if (profileCache != null) {
+            profileCache.recordMiss();
+        }
+    }
+
+    UserProfileResult buildUserProfile(String cookie, ProfileCache.Entry cached, String timeRangeStr, int limit,
+            UserProfileResult expectedResult) {
+        return buildUserProfile(cookie, cached.views, cached.buys, timeRangeStr, limit, expectedResult);
+    }
+
+    // With the cache the record is decoded in full and offered to the cache, whose TinyLFU
+    // admission keeps one-off reads from evicting profiles read again; without it only the
+    // requested range is decoded.
+    UserProfileResult readUserProfile(String cookie, Record record, String timeRangeStr, int limit,
+            UserProfileResult expectedResult) throws Exception {
+        if (record == null || profileCache == null) {
+            return buildUserProfile(cookie, record, timeRangeStr, limit, expectedResult);
+        }
+        EventBuffer viewEvents = readEvents(record, Action.VIEW);
+        EventBuffer buyEvents = readEvents(record, Action.BUY);
+        profileCache.put(cookie, record.generation, viewEvents, buyEvents);
+        return buildUserProfile(cookie, viewEvents, buyEvents, timeRangeStr, limit, expectedResult);
+    }
+
+    static Key profileKey(String cookie) {
+        // Cookie is the unique identifier for the user
+        return new Key(NAMESPACE, SET, cookie);
+    }
 
+    private UserProfileResult buildUserProfile(String cookie, Record record, String timeRangeStr, int limit,
+            UserProfileResult expectedResult) throws Exception {
         if (record == null) {
             return new UserProfileResult(cookie, new ArrayList<>(), new ArrayList<>());
         }
 
-        // Decompress and parse events
-        List<UserTagEvent> viewEvents = parseEvents(record.getValue(VIEW_BIN));
-        List<UserTagEvent> buyEvents = parseEvents(record.getValue(BUY_BIN));
+        // Decode only the events in the range
+        Instant[] timeRange = parseTimeRange(timeRangeStr);
+        List<UserTagEvent> filteredViews = readRange(record, Action.VIEW, timeRange[0], timeRange[1], limit);
+        List<UserTagEvent> filteredBuys = readRange(record, Action.BUY, timeRange[0], timeRange[1], limit);
+        return auditUserProfile(new UserProfileResult(cookie, filteredViews, filteredBuys), timeRangeStr, limit,
+                expectedResult);
+    }
 
+    private UserProfileResult buildUserProfile(String cookie, EventBuffer viewEvents, EventBuffer buyEvents,
+            String timeRangeStr, int limit, UserProfileResult expectedResult) {
         // Filter and limit events
-        List<UserTagEvent> filteredViews = filterAndLimitEvents(viewEvents, startTime, endTime, limit);
-        List<UserTagEvent> filteredBuys = filterAndLimitEvents(buyEvents, startTime, endTime, limit);
+        Instant[] timeRange = parseTimeRange(timeRangeStr);
+        List<UserTagEvent> filteredViews = viewEvents.range(timeRange[0], timeRange[1], limit);
+        List<UserTagEvent> filteredBuys = buyEvents.range(timeRange[0], timeRange[1], limit);
+        return auditUserProfile(new UserProfileResult(cookie, filteredViews, filteredBuys), timeRangeStr, limit,
+                expectedResult);
+    }
 
-        UserProfileResult result = new UserProfileResult(cookie, filteredViews, filteredBuys);
+    private UserProfileResult auditUserProfile(UserProfileResult result, String timeRangeStr, int limit,
+            UserProfileResult expectedResult) {
+        auditor.auditUserProfile(expectedResult, result, timeRangeStr, limit);
+        return result;
+    }
 
-        if (!expectedResult.toString().equals(result.toString())) {
-            log.error("Different results for cookie: {}, time range: {}, limit: {}", cookie, timeRangeStr, limit);
-            log.info("Expected result: \t{}", expectedResult);
-            log.info("Actual result: \t{}\n", result);
-            log.info("View events: \t{}", viewEvents);
-            log.info("Buy events: \t{}", buyEvents);
-        }
+    private static Instant[] parseTimeRange(String timeRangeStr) {
+        String[] timeRange = timeRangeStr.split("_");
+        return new Instant[] { Instant.parse(timeRange[0] + "Z"), Instant.parse(timeRange[1] + "Z") };
+    }
 
-        return result;
+    // Events of one action in [start, end), newest first. Blob bins are decoded only for the
+    // range, profiles with list bins are merged in full first.
+    private static List<UserTagEvent> readRange(Record record, Action action, Instant start, Instant end, int limit)
+            throws Exception {
+        if (record.getList(action == Action.VIEW ? VIEW_LIST_BIN : BUY_LIST_BIN) != null) {
+            return readEvents(record, action).range(start, end, limit);
+        }
+        Object blob = record.getValue(action == Action.VIEW ? VIEW_BIN : BUY_BIN);
+        if (blob == null) {
+            return new ArrayList<>();
+        }
+        return ProfileCodec.decodeRange((byte[]) blob, start, end, limit);
     }
 
-    private static List<UserTagEvent> filterAndLimitEvents(List<UserTagEvent> events, Instant startTime,
-            Instant endTime, int limit) {
-        return events.stream()
-                .filter(event -> !event.getTime().isBefore(startTime) && event.getTime().isBefore(endTime))
-                .limit(limit)
-                .collect(Collectors.toList());
+    // Events of one action, newest first. A profile may hold both the blob bin written in
+    // GET_PUT mode and the list bin written in OPERATE mode while it is being migrated.
+    private static EventBuffer readEvents(Record record, Action action) throws Exception {
+        Object blob = record.getValue(action == Action.VIEW ? VIEW_BIN : BUY_BIN);
+        List<?> entries = record.getList(action == Action.VIEW ? VIEW_LIST_BIN : BUY_LIST_BIN);
+
+        EventBuffer events = blob != null ? parseEvents(blob) : new EventBuffer(MAX_EVENTS);
+        if (entries != null) {
+            List<UserTagEvent> listEvents = new ArrayList<>(entries.size());
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                // Entries are kept in ascending [epochMillis, event] order
+                List<?> entry = (List<?>) entries.get(i);
+                listEvents.add(ProfileCodec.decodeEvent((byte[]) entry.get(1)));
+            }
+            events.addAll(listEvents);
+        }
+        return events;
     }
 
-    private static List<UserTagEvent> parseEvents(Object compressedData) throws Exception {
+    private static EventBuffer parseEvents(Object compressedData) throws Exception {
         if (compressedData == null) {
             log.error("Compressed data is null");
-            return new ArrayList<>();
+            return new EventBuffer(MAX_EVENTS);
         }
-        byte[] decompressedData = Snappy.uncompress((byte[]) compressedData);
-        return objectMapper.readValue(decompressedData, new TypeReference<List<UserTagEvent>>() {
-        });
+        // Both the binary format and the legacy Snappy JSON are accepted
+        return ProfileCodec.decode((byte[]) compressedData, MAX_EVENTS);
+    }
+
+    private byte[] compressEvents(EventBuffer events) throws Exception {
+        return ProfileCodec.encode(events.toList(), format);
     }
 
-    private static void insertEvent(List<UserTagEvent> events, UserTagEvent newEvent) {
-        events.add(newEvent);
-        events.sort(Comparator.comparing(UserTagEvent::getTime).reversed());
-        if (events.size() > MAX_EVENTS) {
-            events.subList(MAX_EVENTS, events.size()).clear();
+    // Buckets are closed up to the earliest end the processor recorded, once every partition
+    // recorded one. Cached buckets the processor added late events to since are dropped.
+    private void refreshClosedBuckets() {
+        AtomicInteger partitions = new AtomicInteger();
+        AtomicLong closedUntil = new AtomicLong(Long.MAX_VALUE);
+        AtomicLong correctedFrom = new AtomicLong(Long.MAX_VALUE);
+        try {
+            client.scanAll(null, NAMESPACE, SET_FLUSHES, (key, record) -> {
+                Object value = record.getValue(CLOSED_UNTIL_BIN);
+                if (value != null) {
+                    partitions.incrementAndGet();
+                    closedUntil.accumulateAndGet((Long) value, Math::min);
+                }
+                List<?> corrections = record.getList(CORRECTIONS_BIN);
+                if (corrections != null && !corrections.isEmpty()) {
+                    correctedFrom.accumulateAndGet(correctedSince(key, corrections), Math::min);
+                }
+            }, CLOSED_UNTIL_BIN, CORRECTIONS_BIN);
+        } catch (AerospikeException e) {
+            log.warn("Error while reading the buckets closed by the processor", e);
+            return;
+        }
+        if (correctedFrom.get() != Long.MAX_VALUE) {
+            aggregateCache.invalidateFrom(correctedFrom.get());
+        }
+        if (aggregatePartitions > 0 && partitions.get() >= aggregatePartitions) {
+            aggregateCache.closedUntil(closedUntil.get());
         }
     }
 
-    private static byte[] compressEvents(List<UserTagEvent> events) throws Exception {
-        String json = objectMapper.writeValueAsString(events);
-        return Snappy.compress(json);
+    // Start of the earliest bucket corrected by the flushes of the record not seen yet, the
+    // corrections being in epoch order. Long.MIN_VALUE if some may have been dropped unseen.
+    private long correctedSince(Key key, List<?> corrections) {
+        ByteBuffer digest = ByteBuffer.wrap(key.digest);
+        Long seen = correctionEpochs.get(digest);
+        long from = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Object correction : corrections) {
+            List<?> entry = (List<?>) correction;
+            long epoch = (Long) entry.get(0);
+            if (seen == null || epoch > seen) {
+                from = Math.min(from, (Long) entry.get(1));
+            }
+            last = Math.max(last, epoch);
+        }
+        correctionEpochs.put(digest, last);
+        long oldest = (Long) ((List<?>) corrections.get(0)).get(0);
+        if (seen != null && oldest > seen && corrections.size() >= KEPT_CORRECTIONS) {
+            return Long.MIN_VALUE;
+        }
+        return from;
     }
 
     @PreDestroy
     public void close() {
+        if (closedRefresher != null) {
+            closedRefresher.shutdownNow();
+        }
+        batchExecutor.shutdown();
+        aggregateExecutor.shutdown();
         client.close();
-        producer.close();
+        if (eventLoops != null) {
+            eventLoops.close();
+        }
+    }
+
+    AerospikeClient client() {
+        return client;
+    }
+
+    boolean hasEventLoops() {
+        return eventLoops != null;
+    }
+
+    ProfileWriteMode writeMode() {
+        return writeMode;
+    }
+
+    // Queries filter on a combination of dimensions, by Dimension ordinal, null for the others
+    public static String[] filters(String origin, String brandId, String categoryId, String country, Device device) {
+        return new String[] { origin, brandId, categoryId, country, device != null ? device.name() : null };
+    }
+
+    static int combination(String[] filters) {
+        int combination = 0;
+        for (Dimension dimension : Dimension.values()) {
+            if (filters[dimension.ordinal()] != null) {
+                combination |= dimension.bit();
+            }
+        }
+        return combination;
+    }
+
+    // Whether a combination kept covers the filters, directly or rolled up
+    public boolean canAggregate(String[] filters) {
+        return lattice.nearest(combination(filters)) >= 0;
+    }
+
+    // Whether values of the dimension are ranked, only records of it alone keep their tops
+    public boolean canTop(Dimension dimension) {
+        return lattice.contains(dimension.bit());
+    }
+
+    // Whether the records of the filters are kept, else the query is rolled up
+    boolean isMaterialized(String[] filters) {
+        return lattice.contains(combination(filters));
+    }
+
+    void recordQuery(String[] filters, int records) {
+        queryRecords[combination(filters)].record(records);
     }
 
     public AggregatesQueryResult getAggregates(String timeRangeStr, Action action, List<Aggregate> aggregates,
-            String origin, String brandId, String categoryId, AggregatesQueryResult expectedResult) {
+            String[] filters, AggregateLevel bucketSize, AggregatesQueryResult expectedResult) throws Exception {
 
-        // Parse the time range into start and end Instants
-        String[] timeRange = timeRangeStr.split("_");
-        Instant startTime = Instant.parse(timeRange[0] + "Z");
-        Instant endTime = Instant.parse(timeRange[1] + "Z");
+        AggregateBuckets buckets = aggregateBuckets(timeRangeStr, bucketSize, action, filters);
+        long now = System.currentTimeMillis();
+        long[] values = new long[buckets.size() * AggregateCache.VALUES];
+        byte[][] sketches = sketches(buckets, aggregates);
+        if (!isMaterialized(filters)) {
+            rollUp(timeRangeStr, bucketSize, action, aggregates, filters, buckets, values, sketches, now);
+        } else {
+            int[] reads = cachedAggregates(buckets, values, sketches, now);
+            int[] recordOf = new int[reads.length];
+            Key[] keys = buckets.recordKeys(reads, recordOf);
+            String[] bins = aggregateBins(aggregates, buckets, reads);
+            Record[] records = readAggregateRecords(keys, bins);
+            recordQuery(filters, keys.length);
+
+            readAggregates(buckets, reads, recordOf, records, values, sketches, now);
+        }
+        return buildAggregates(timeRangeStr, bucketSize, buckets, values, sketches, action, aggregates, filters,
+                expectedResult);
+    }
+
+    // Reads of a rolled up query: the buckets of the nearest combination kept, for every tuple of
+    // its values that occurred with the values filtered on, as listed in the tuples bins of the
+    // records without dimensions. Buckets of the rolled up records line up with those of the
+    // query, being of the same range and bucket size.
+    static final class RollUp {
+        final String tuplesBin;
+        final AggregateBuckets tupleBuckets;
+        final Key[] tupleKeys;
+        final int[] tupleRecordOf;
+        // By cell, a tuple occurring in some bucket: its buckets, the indexes of those read and
+        // for each the index in keys of its record
+        AggregateBuckets[] cellBuckets;
+        int[][] reads;
+        int[][] recordOf;
+        Key[] keys;
+        String[] bins;
+
+        RollUp(String tuplesBin, AggregateBuckets tupleBuckets) {
+            this.tuplesBin = tuplesBin;
+            this.tupleBuckets = tupleBuckets;
+            int[] all = IntStream.range(0, tupleBuckets.size()).toArray();
+            this.tupleRecordOf = new int[all.length];
+            this.tupleKeys = tupleBuckets.recordKeys(all, tupleRecordOf);
+        }
+    }
+
+    private void rollUp(String timeRangeStr, AggregateLevel bucketSize, Action action, List<Aggregate> aggregates,
+            String[] filters, AggregateBuckets buckets, long[] values, byte[][] sketches, long now) throws Exception {
+        RollUp rollUp = rollUp(timeRangeStr, bucketSize, action, filters);
+        Record[] tupleRecords = readAggregateRecords(rollUp.tupleKeys, new String[] { rollUp.tuplesBin });
+        planRollUp(rollUp, tupleRecords, timeRangeStr, bucketSize, action, aggregates, filters, buckets, values,
+                sketches, now);
+        readRollUp(rollUp, readAggregateRecords(rollUp.keys, rollUp.bins), values, sketches, now);
+    }
+
+    // Minutes list their tuples in their own records
+    RollUp rollUp(String timeRangeStr, AggregateLevel bucketSize, Action action, String[] filters) {
+        return new RollUp(DimensionLattice.tuplesBin(lattice.nearest(combination(filters))),
+                new AggregateBuckets(NAMESPACE, timeRangeStr, bucketSize, "_" + action.name(), Long.MAX_VALUE));
+    }
+
+    // Finds the cells from the tuples listed, and fills values with the aggregates of the cells
+    // cached. Throws RollUpTooLargeException beyond maxRollUpTuples reads of tuples.
+    void planRollUp(RollUp rollUp, Record[] tupleRecords, String timeRangeStr, AggregateLevel bucketSize,
+            Action action, List<Aggregate> aggregates, String[] filters, AggregateBuckets buckets, long[] values,
+            byte[][] sketches, long now) {
+        int target = lattice.nearest(combination(filters));
+        Map<List<String>, List<Integer>> cells = new LinkedHashMap<>();
+        int tupleReads = 0;
+        for (int bucket = 0; bucket < buckets.size(); bucket++) {
+            Record record = tupleRecords[rollUp.tupleRecordOf[bucket]];
+            Map<?, ?> tuples = record != null ? (Map<?, ?>) record.getValue(rollUp.tuplesBin) : null;
+            if (tuples == null) {
+                continue;
+            }
+            if (tuples.size() > DimensionLattice.MAX_TUPLES) {
+                throw new RollUpTooLargeException("Bucket " + buckets.rows().get(bucket) + " has more than "
+                        + DimensionLattice.MAX_TUPLES + " tuples of " + DimensionLattice.label(target));
+            }
+            for (Object tuple : tuples.keySet()) {
+                String[] cell = DimensionLattice.values((String) tuple, target);
+                if (!matches(cell, filters)) {
+                    continue;
+                }
+                if (++tupleReads > maxRollUpTuples) {
+                    throw new RollUpTooLargeException("Rolling up " + DimensionLattice.label(combination(filters))
+                            + " reads more than " + maxRollUpTuples + " records");
+                }
+                cells.computeIfAbsent(Arrays.asList(cell), c -> new ArrayList<>()).add(bucket);
+            }
+        }
+
+        // Cells cached are summed right away, the buckets of the others are read at once
+        int size = cells.size();
+        rollUp.cellBuckets = new AggregateBuckets[size];
+        rollUp.reads = new int[size][];
+        rollUp.recordOf = new int[size][];
+        List<Key> keys = new ArrayList<>();
+        long[] cellValues = new long[values.length];
+        int c = 0;
+        for (Map.Entry<List<String>, List<Integer>> cell : cells.entrySet()) {
+            AggregateBuckets cellBuckets = aggregateBuckets(timeRangeStr, bucketSize, action,
+                    cell.getKey().toArray(new String[0]));
+            Arrays.fill(cellValues, 0);
+            boolean[] read = new boolean[buckets.size()];
+            for (int bucket : cachedAggregates(cellBuckets, cellValues, sketches, now)) {
+                read[bucket] = true;
+            }
+            // Buckets without the tuple have no record, nor anything to add
+            int[] reads = cell.getValue().stream().mapToInt(Integer::intValue).filter(bucket -> read[bucket]).toArray();
+            for (int bucket : cell.getValue()) {
+                if (!read[bucket]) {
+                    add(cellValues, values, bucket);
+                }
+            }
+            rollUp.cellBuckets[c] = cellBuckets;
+            rollUp.reads[c] = reads;
+            rollUp.recordOf[c] = new int[reads.length];
+            int offset = keys.size();
+            keys.addAll(Arrays.asList(cellBuckets.recordKeys(reads, rollUp.recordOf[c])));
+            for (int i = 0; i < reads.length; i++) {
+                rollUp.recordOf[c][i] += offset;
+            }
+            c++;
+        }
+        rollUp.keys = keys.toArray(new Key[0]);
+        int[] all = IntStream.range(0, buckets.size()).toArray();
+        rollUp.bins = aggregateBins(aggregates, buckets, all);
+        recordQuery(filters, rollUp.tupleKeys.length + rollUp.keys.length);
+    }
+
+    // Adds the aggregates of the cells read to those cached, records[recordOf[c][i]] being the one
+    // of bucket reads[c][i] of cell c
+    void readRollUp(RollUp rollUp, Record[] records, long[] values, byte[][] sketches, long now) {
+        long[] cellValues = new long[values.length];
+        byte[][] cellSketches = sketches != null ? new byte[sketches.length][] : null;
+        for (int c = 0; c < rollUp.cellBuckets.length; c++) {
+            readAggregates(rollUp.cellBuckets[c], rollUp.reads[c], rollUp.recordOf[c], records, cellValues,
+                    cellSketches, now);
+            for (int bucket : rollUp.reads[c]) {
+                add(cellValues, values, bucket);
+                Arrays.fill(cellValues, bucket * AggregateCache.VALUES, (bucket + 1) * AggregateCache.VALUES, 0);
+                if (sketches != null && cellSketches[bucket] != null) {
+                    sketches[bucket] = sketches[bucket] == null ? cellSketches[bucket]
+                            : HyperLogLog.fromBytes(cellSketches[bucket]).mergedWith(sketches[bucket]);
+                    cellSketches[bucket] = null;
+                }
+            }
+        }
+    }
+
+    private static boolean matches(String[] cell, String[] filters) {
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null && !filters[i].equals(cell[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(long[] from, long[] to, int bucket) {
+        for (int i = bucket * AggregateCache.VALUES; i < (bucket + 1) * AggregateCache.VALUES; i++) {
+            to[i] += from[i];
+        }
+    }
+
+    // Values of the dimension with the largest count or sum_price over the range, from the
+    // SpaceSaving sketches of the buckets covering it
+    public AggregatesQueryResult getTop(String timeRangeStr, Action action, Dimension dimension, Aggregate metric,
+            int limit) throws Exception {
+        AggregateBuckets buckets = topBuckets(timeRangeStr, action);
+        return buildTop(dimension, metric, limit, readAggregateRecords(topKeys(buckets), topBins(dimension, metric)));
+    }
+
+    // Buckets of the range without dimensions, minutes in their own records where their values
+    // are ranked, coarser buckets where they fit
+    AggregateBuckets topBuckets(String timeRangeStr, Action action) {
+        return new AggregateBuckets(NAMESPACE, timeRangeStr, AggregateLevel.DAY, "_" + action.name(), Long.MAX_VALUE);
+    }
+
+    Key[] topKeys(AggregateBuckets buckets) {
+        int[] all = IntStream.range(0, buckets.size()).toArray();
+        return buckets.recordKeys(all, new int[all.length]);
+    }
+
+    String[] topBins(Dimension dimension, Aggregate metric) {
+        return new String[] { dimension.topBin(metric == Aggregate.SUM_PRICE) };
+    }
+
+    // Columns are the dimension, the metric and the most the metric may be above the true value
+    AggregatesQueryResult buildTop(Dimension dimension, Aggregate metric, int limit, Record[] records) {
+        String bin = dimension.topBin(metric == Aggregate.SUM_PRICE);
+        SpaceSaving top = new SpaceSaving();
+        for (Record record : records) {
+            if (record != null && record.getValue(bin) != null) {
+                top.merge(SpaceSaving.fromBytes((byte[]) record.getValue(bin)));
+            }
+        }
+        List<List<String>> rows = new ArrayList<>();
+        for (SpaceSaving.Entry entry : top.top(limit)) {
+            rows.add(Arrays.asList(entry.value(), Long.toString(entry.weight()), Long.toString(entry.error())));
+        }
+        return new AggregatesQueryResult(Arrays.asList(dimension.label(), metric.name().toLowerCase(), "max_error"),
+                rows);
+    }
+
+    private Record[] readAggregateRecords(Key[] keys, String[] bins) throws Exception {
+        Record[] records = new Record[keys.length];
+
+        // Buckets are read with batch reads of at most aggregateChunkSize keys, the chunks after
+        // the first one concurrently on aggregateExecutor
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int from = aggregateChunkSize; from < keys.length; from += aggregateChunkSize) {
+            int chunkFrom = from;
+            chunks.add(aggregateExecutor.submit(() -> readAggregateChunk(keys, bins, records, chunkFrom)));
+        }
+        if (keys.length > 0) {
+            readAggregateChunk(keys, bins, records, 0);
+        }
+        for (Future<?> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return records;
+    }
+
+    // Sketches of the distinct users of every bucket if they are asked for, else null
+    byte[][] sketches(AggregateBuckets buckets, List<Aggregate> aggregates) {
+        return aggregates.stream().anyMatch(Aggregate::isSketch) ? new byte[buckets.size()][] : null;
+    }
+
+    // Values of the closed buckets cached on this node, returns the indexes of the buckets to
+    // read from Aerospike. Sketches are not cached, all buckets are read when they are needed.
+    int[] cachedAggregates(AggregateBuckets buckets, long[] values, byte[][] sketches, long now) {
+        if (aggregateCache != null && sketches == null) {
+            return aggregateCache.fill(buckets, values, now);
+        }
+        int[] reads = new int[buckets.size()];
+        Arrays.setAll(reads, i -> i);
+        return reads;
+    }
+
+    // Copies the read records into values, and sketches unless null, records[recordOf[i]] being
+    // the one of bucket reads[i]. Minutes in hour records are taken from its minute maps.
+    void readAggregates(AggregateBuckets buckets, int[] reads, int[] recordOf, Record[] records, long[] values,
+            byte[][] sketches, long now) {
+        for (int i = 0; i < reads.length; i++) {
+            Record record = records[recordOf[i]];
+            if (record == null) {
+                continue;
+            }
+            int minuteOfHour = buckets.minuteOfHour(reads[i]);
+            for (Aggregate aggregate : Aggregate.values()) {
+                String bin = aggregate.bin();
+                if (aggregate.isSketch()) {
+                    if (sketches != null) {
+                        Map<?, ?> minutes = minuteOfHour < 0 ? null
+                                : (Map<?, ?>) record.getValue(AggregateLevel.minuteBin(bin));
+                        sketches[reads[i]] = (byte[]) (minuteOfHour < 0 ? record.getValue(bin)
+                                : minutes != null ? minutes.get((long) minuteOfHour) : null);
+                    }
+                    continue;
+                }
+                long value;
+                if (minuteOfHour < 0) {
+                    value = record.getLong(bin);
+                } else {
+                    Map<?, ?> minutes = (Map<?, ?>) record.getValue(AggregateLevel.minuteBin(bin));
+                    Object minuteValue = minutes != null ? minutes.get((long) minuteOfHour) : null;
+                    value = minuteValue != null ? ((Number) minuteValue).longValue() : 0;
+                }
+                values[reads[i] * AggregateCache.VALUES + aggregate.ordinal()] = value;
+            }
+        }
+        if (aggregateCache != null) {
+            aggregateCache.store(buckets, reads, values, now);
+        }
+    }
+
+    private void readAggregateChunk(Key[] keys, String[] bins, Record[] records, int from) {
+        int to = Math.min(from + aggregateChunkSize, keys.length);
+        Record[] chunk = client.get(aggregateBatchPolicy, Arrays.copyOfRange(keys, from, to), bins);
+        System.arraycopy(chunk, 0, records, from, chunk.length);
+    }
+
+    int aggregateChunkSize() {
+        return aggregateChunkSize;
+    }
+
+    BatchPolicy aggregateBatchPolicy() {
+        return aggregateBatchPolicy;
+    }
+
+    AggregateBuckets aggregateBuckets(String timeRangeStr, AggregateLevel bucketSize, Action action,
+            String[] filters) {
+        // Construct the key suffix based on the parameters
+        String suffix = "_" + action.name();
+        for (Dimension dimension : Dimension.values()) {
+            if (filters[dimension.ordinal()] != null) {
+                suffix += "_" + dimension.keySegment(filters[dimension.ordinal()]);
+            }
+        }
+
+        return new AggregateBuckets(NAMESPACE, timeRangeStr, bucketSize, suffix, packedSinceMinute);
+    }
+
+    // Only the requested aggregates are read, or all of those cached when the buckets may be,
+    // and their minute maps if minutes are read from hour records
+    String[] aggregateBins(List<Aggregate> aggregates, AggregateBuckets buckets, int[] reads) {
+        List<String> bins = new ArrayList<>();
+        Stream<Aggregate> cached = aggregateCache != null
+                ? Arrays.stream(Aggregate.values()).filter(aggregate -> !aggregate.isSketch()) : Stream.empty();
+        Stream.concat(cached, aggregates.stream()).distinct().forEach(aggregate -> bins.add(aggregate.bin()));
+        if (Arrays.stream(reads).anyMatch(read -> buckets.minuteOfHour(read) >= 0)) {
+            for (int i = 0, count = bins.size(); i < count; i++) {
+                bins.add(AggregateLevel.minuteBin(bins.get(i)));
+            }
+        }
+        return bins.toArray(new String[0]);
+    }
+
+    // Rows of the result, values and sketches holding the aggregates of every bucket as filled
+    // in by cachedAggregates and readAggregates
+    AggregatesQueryResult buildAggregates(String timeRangeStr, AggregateLevel bucketSize, AggregateBuckets buckets,
+            long[] values, byte[][] sketches, Action action, List<Aggregate> aggregates, String[] filters,
+            AggregatesQueryResult expectedResult) {
 
         List<String> columns = new ArrayList<>();
-        columns.add("1m_bucket");
+        columns.add(bucketSize.label() + "_bucket");
         columns.add("action");
         // Dynamically add the columns based on the parameters provided
-        if (origin != null)
-            columns.add("origin");
-        if (brandId != null)
-            columns.add("brand_id");
-        if (categoryId != null)
-            columns.add("category_id");
+        for (Dimension dimension : Dimension.values()) {
+            if (filters[dimension.ordinal()] != null) {
+                columns.add(dimension.label());
+            }
+        }
         aggregates.forEach(aggregate -> columns.add(aggregate.name().toLowerCase()));
 
         List<List<String>> rows = new ArrayList<>();
 
-        // Loop through each minute bucket in the given time range
-        for (Instant current = startTime; current.isBefore(endTime); current = current.plusSeconds(60)) {
-            String timeBucket = current.atZone(ZoneOffset.UTC).withSecond(0).withNano(0)
-                    .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-
-            // Construct key based on the parameters
-            String key = timeBucket + "_" + action.name();
-            if (origin != null)     key += "_" + origin;
-            if (brandId != null)    key += "_" + brandId;
-            if (categoryId != null) key += "_" + categoryId;
-
-            Key aerospikeKey = new Key(NAMESPACE, SET_AGREGGATES, key);
-            Record record = client.get(null, aerospikeKey);
-
+        List<String> labels = buckets.rows();
+        for (int i = 0; i < labels.size(); i++) {
             List<String> row = new ArrayList<>();
-            row.add(timeBucket);
+            row.add(labels.get(i));
             row.add(action.name());
-            if (origin != null)     row.add(origin);
-            if (brandId != null)    row.add(brandId);
-            if (categoryId != null) row.add(categoryId);
-
-            // Query Aerospike
-            if (record != null) {
-                aggregates.forEach(aggregate -> {
-                    Long value = record.getLong(aggregate.name().toLowerCase());
-                    row.add(value != null ? value.toString() : "0");
-                });
-            } else {
-                aggregates.forEach(aggregate -> row.add("0"));
+            for (String filter : filters) {
+                if (filter != null) {
+                    row.add(filter);
+                }
+            }
+
+            // Sum of the buckets making up the row, missing ones count as 0, or for distinct users
+            // the estimate of their merged sketches
+            for (Aggregate aggregate : aggregates) {
+                long value = 0;
+                if (aggregate.isSketch()) {
+                    value = distinctUsers(sketches, buckets.firstKey(i), buckets.firstKey(i + 1));
+                } else {
+                    for (int key = buckets.firstKey(i); key < buckets.firstKey(i + 1); key++) {
+                        value += values[key * AggregateCache.VALUES + aggregate.ordinal()];
+                    }
+                }
+                row.add(Long.toString(value));
             }
 
             rows.add(row);
@@ -318,17 +1068,20 @@ public class UserDao {
 
         AggregatesQueryResult result = new AggregatesQueryResult(columns, rows);
 
-        // Compare with expectedResult and log differences
-        if (!expectedResult.getColumns().equals(result.getColumns()) ||
-                !expectedResult.getRows().equals(result.getRows())) {
-
-            log.error(
-                    "Differences found in AggregatesQueryResult for time range: {}, action: {}, origin: {}, brand_id: {}, category_id: {}",
-                    timeRangeStr, action, origin, brandId, categoryId);
-            log.info("Expected Result: {}", expectedResult);
-            log.info("Actual Result: {}", result);
-        }
+        // A sample of results is compared with expectedResult in the background
+        auditor.auditAggregates(expectedResult, result, timeRangeStr, bucketSize, action, filters);
 
         return result;
     }
+
+    // Estimate of the cookies of the buckets from first to end, their sketches merged
+    private static long distinctUsers(byte[][] sketches, int first, int end) {
+        HyperLogLog users = new HyperLogLog();
+        for (int key = first; key < end; key++) {
+            if (sketches[key] != null) {
+                users.merge(HyperLogLog.fromBytes(sketches[key]));
+            }
+        }
+        return users.estimate();
+    }
 }
@@ -0,0 +1,38 @@
+package alejandro.salazar.mejia.dao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Events of a batch request grouped by cookie, each remembering its position in the request
+public class UserTagBatch {
+
+    private final Map<String, List<UserTagEvent>> eventsByCookie = new LinkedHashMap<>();
+    private final Map<String, List<Integer>> indexesByCookie = new LinkedHashMap<>();
+    private final List<UserTagEvent> events = new ArrayList<>();
+
+    public void add(int index, UserTagEvent event) {
+        eventsByCookie.computeIfAbsent(event.getCookie(), cookie -> new ArrayList<>()).add(event);
+        indexesByCookie.computeIfAbsent(event.getCookie(), cookie -> new ArrayList<>()).add(index);
+        events.add(event);
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    List<UserTagEvent> events() {
+        return events;
+    }
+
+    Map<String, List<UserTagEvent>> eventsByCookie() {
+        return eventsByCookie;
+    }
+
+    List<Integer> indexes(String cookie) {
+        return indexesByCookie.get(cookie);
+    }
+}
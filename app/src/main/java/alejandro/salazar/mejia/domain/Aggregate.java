@@ -2,6 +2,24 @@ package alejandro.salazar.mejia.domain;
 
 public enum Aggregate {
 
-    COUNT,
-    SUM_PRICE
+    COUNT("count"),
+    SUM_PRICE("sum_price"),
+    // Estimated from HyperLogLog sketches of the cookies, see HyperLogLog
+    COUNT_DISTINCT_USERS("users");
+
+    private final String bin;
+
+    Aggregate(String bin) {
+        this.bin = bin;
+    }
+
+    // Bin of the aggregate records holding it, bin names are limited to 15 characters
+    public String bin() {
+        return bin;
+    }
+
+    // Sketches of the buckets of a row are merged, other values added up
+    public boolean isSketch() {
+        return this == COUNT_DISTINCT_USERS;
+    }
 }
@@ -0,0 +1,72 @@
+package alejandro.salazar.mejia.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchResult {
+
+    private int accepted;
+    private List<Failure> failures = new ArrayList<>();
+
+    public BatchResult() {
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public void setAccepted(int accepted) {
+        this.accepted = accepted;
+    }
+
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    public void setFailures(List<Failure> failures) {
+        this.failures = failures;
+    }
+
+    public void addFailure(int index, String error) {
+        failures.add(new Failure(index, error));
+    }
+
+    public static class Failure {
+
+        // Position of the item in the request body, starting at 0
+        private int index;
+        private String error;
+
+        public Failure() {
+        }
+
+        public Failure(int index, String error) {
+            this.index = index;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "accepted=" + accepted +
+                ", failures=" + failures.size() +
+                '}';
+    }
+}
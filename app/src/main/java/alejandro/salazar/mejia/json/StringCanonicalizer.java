@@ -0,0 +1,51 @@
+package alejandro.salazar.mejia.json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Maps UTF-8 byte ranges to shared String instances, so values with few distinct values
+// (countries, origins, brands, categories) are not allocated again for every request.
+//
+// A direct-mapped cache: a colliding value replaces the previous one. Entries are immutable
+// and published by a single reference write, so concurrent readers see either the old or the
+// new entry and no locking is needed.
+public class StringCanonicalizer {
+
+    private static final class Entry {
+        final byte[] bytes;
+        final String value;
+
+        Entry(byte[] bytes, String value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] entries;
+    private final int maxLength;
+
+    public StringCanonicalizer(int slots, int maxLength) {
+        this.entries = new Entry[Integer.highestOneBit(Math.max(slots - 1, 1)) << 1];
+        this.maxLength = maxLength;
+    }
+
+    public String get(byte[] data, int offset, int length) {
+        if (length > maxLength) {
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ data[i]) * 0x01000193;
+        }
+        int slot = (hash ^ hash >>> 16) & (entries.length - 1);
+
+        Entry entry = entries[slot];
+        if (entry != null && Arrays.equals(entry.bytes, 0, entry.bytes.length, data, offset, offset + length)) {
+            return entry.value;
+        }
+        byte[] bytes = Arrays.copyOfRange(data, offset, offset + length);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        entries[slot] = new Entry(bytes, value);
+        return value;
+    }
+}
@@ -0,0 +1,78 @@
+package alejandro.salazar.mejia.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Binds @RequestBody UserTagEvent with UserTagEventReader instead of Jackson. Spring Boot puts
+// converter beans ahead of its defaults; a UserTagEvent written as a response goes to the
+// application's ObjectMapper, as it would without this converter.
+@Component
+@ConditionalOnProperty(name = "front.mode", havingValue = "SERVLET", matchIfMissing = true)
+public class UserTagEventHttpMessageConverter extends AbstractHttpMessageConverter<UserTagEvent> {
+
+    // Request bodies are a few hundred bytes, each Jetty thread keeps one buffer for them
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[1024]);
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final UserTagEventReader reader;
+    private final ObjectMapper objectMapper;
+
+    public UserTagEventHttpMessageConverter(@Value("${ingest.json.canonical-strings:4096}") int canonicalStrings,
+            ObjectMapper objectMapper) {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.reader = new UserTagEventReader(new StringCanonicalizer(canonicalStrings, 64));
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return UserTagEvent.class == clazz;
+    }
+
+    @Override
+    protected UserTagEvent readInternal(Class<? extends UserTagEvent> clazz, HttpInputMessage inputMessage)
+            throws IOException {
+        byte[] buffer = buffers.get();
+        int length = 0;
+        try (InputStream body = inputMessage.getBody()) {
+            int read;
+            while ((read = body.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    if (buffer.length <= MAX_RETAINED_BUFFER) {
+                        buffers.set(buffer);
+                    }
+                }
+            }
+        }
+
+        try {
+            return reader.read(buffer, 0, length);
+        } catch (IllegalArgumentException e) {
+            throw new HttpMessageNotReadableException("JSON parse error: " + e.getMessage(), e, inputMessage);
+        }
+    }
+
+    @Override
+    protected void writeInternal(UserTagEvent userTagEvent, HttpOutputMessage outputMessage) throws IOException {
+        // The body stream belongs to the container, as in Spring's Jackson converter
+        objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(outputMessage.getBody(), userTagEvent);
+    }
+}
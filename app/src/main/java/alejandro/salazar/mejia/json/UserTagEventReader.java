@@ -0,0 +1,442 @@
+package alejandro.salazar.mejia.json;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Reads one <user_tag> JSON object from UTF-8 bytes without going through Jackson.
+//
+// The only allocations are the event, its product, its Instant and the cookie: the time
+// "yyyy-MM-ddTHH:mm:ss.SSSZ" is converted to epoch millis digit by digit, device and action
+// are matched on their bytes and the other strings come from a StringCanonicalizer. Other
+// time formats fall back to Instant.parse, unknown fields are skipped like Spring's
+// ObjectMapper does. Malformed input throws IllegalArgumentException.
+public class UserTagEventReader {
+
+    private static final byte[] TIME = bytes("time");
+    private static final byte[] COOKIE = bytes("cookie");
+    private static final byte[] COUNTRY = bytes("country");
+    private static final byte[] DEVICE = bytes("device");
+    private static final byte[] ACTION = bytes("action");
+    private static final byte[] ORIGIN = bytes("origin");
+    private static final byte[] PRODUCT_INFO = bytes("product_info");
+    private static final byte[] PRODUCT_ID = bytes("product_id");
+    private static final byte[] BRAND_ID = bytes("brand_id");
+    private static final byte[] CATEGORY_ID = bytes("category_id");
+    private static final byte[] PRICE = bytes("price");
+
+    private static final Device[] DEVICES = Device.values();
+    private static final Action[] ACTIONS = Action.values();
+    private static final byte[][] DEVICE_NAMES = names(DEVICES);
+    private static final byte[][] ACTION_NAMES = names(ACTIONS);
+
+    private final StringCanonicalizer strings;
+
+    public UserTagEventReader(StringCanonicalizer strings) {
+        this.strings = strings;
+    }
+
+    // Null for a JSON null
+    public UserTagEvent read(byte[] data, int offset, int length) {
+        Parser parser = new Parser(data, offset, offset + length);
+        UserTagEvent event = parser.readEvent();
+        parser.skipWhitespace();
+        if (parser.position != parser.end) {
+            throw parser.error("Unexpected content after the object");
+        }
+        return event;
+    }
+
+    private final class Parser {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        // Bounds of the last string read by readRawString, escapes not yet resolved
+        private int stringStart;
+        private int stringEnd;
+        private boolean escaped;
+
+        Parser(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        UserTagEvent readEvent() {
+            if (readNull()) {
+                return null;
+            }
+            UserTagEvent event = new UserTagEvent();
+            expect('{');
+            if (!endOfObject()) {
+                do {
+                    readRawString();
+                    int nameStart = stringStart;
+                    int nameLength = stringEnd - stringStart;
+                    expect(':');
+                    if (nameIs(TIME, nameStart, nameLength)) {
+                        event.setTime(readTime());
+                    } else if (nameIs(COOKIE, nameStart, nameLength)) {
+                        // High cardinality, not worth canonicalizing
+                        event.setCookie(readString(false));
+                    } else if (nameIs(COUNTRY, nameStart, nameLength)) {
+                        event.setCountry(readString(true));
+                    } else if (nameIs(DEVICE, nameStart, nameLength)) {
+                        event.setDevice(readEnum(DEVICES, DEVICE_NAMES));
+                    } else if (nameIs(ACTION, nameStart, nameLength)) {
+                        event.setAction(readEnum(ACTIONS, ACTION_NAMES));
+                    } else if (nameIs(ORIGIN, nameStart, nameLength)) {
+                        event.setOrigin(readString(true));
+                    } else if (nameIs(PRODUCT_INFO, nameStart, nameLength)) {
+                        event.setProductInfo(readProduct());
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember());
+            }
+            return event;
+        }
+
+        private Product readProduct() {
+            if (readNull()) {
+                return null;
+            }
+            Product product = new Product();
+            expect('{');
+            if (!endOfObject()) {
+                do {
+                    readRawString();
+                    int nameStart = stringStart;
+                    int nameLength = stringEnd - stringStart;
+                    expect(':');
+                    if (nameIs(PRODUCT_ID, nameStart, nameLength)) {
+                        product.setProductId(readInt());
+                    } else if (nameIs(BRAND_ID, nameStart, nameLength)) {
+                        product.setBrandId(readString(true));
+                    } else if (nameIs(CATEGORY_ID, nameStart, nameLength)) {
+                        product.setCategoryId(readString(true));
+                    } else if (nameIs(PRICE, nameStart, nameLength)) {
+                        product.setPrice(readInt());
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember());
+            }
+            return product;
+        }
+
+        private Instant readTime() {
+            if (readNull()) {
+                return null;
+            }
+            readRawString();
+            int s = stringStart;
+            if (!escaped && stringEnd - s == 24 && data[s + 4] == '-' && data[s + 7] == '-' && data[s + 10] == 'T'
+                    && data[s + 13] == ':' && data[s + 16] == ':' && data[s + 19] == '.' && data[s + 23] == 'Z') {
+                int year = digits(s, 4);
+                int month = digits(s + 5, 2);
+                int day = digits(s + 8, 2);
+                int hour = digits(s + 11, 2);
+                int minute = digits(s + 14, 2);
+                int second = digits(s + 17, 2);
+                int millis = digits(s + 20, 3);
+                if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+                        && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60
+                        && millis >= 0) {
+                    long seconds = epochDay(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+                    return Instant.ofEpochMilli(seconds * 1000 + millis);
+                }
+            }
+            String text = stringValue(false);
+            try {
+                return Instant.parse(text);
+            } catch (DateTimeParseException e) {
+                throw error("Invalid time: " + text);
+            }
+        }
+
+        // -1 if any of the bytes is not a digit
+        private int digits(int offset, int count) {
+            int value = 0;
+            for (int i = offset; i < offset + count; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        private <E extends Enum<E>> E readEnum(E[] values, byte[][] names) {
+            if (readNull()) {
+                return null;
+            }
+            readRawString();
+            int length = stringEnd - stringStart;
+            for (int i = 0; i < values.length; i++) {
+                if (!escaped && nameIs(names[i], stringStart, length)) {
+                    return values[i];
+                }
+            }
+            throw error("Unknown value \"" + stringValue(false) + "\", expected one of "
+                    + Arrays.toString(values));
+        }
+
+        private String readString(boolean canonical) {
+            if (readNull()) {
+                return null;
+            }
+            readRawString();
+            return stringValue(canonical);
+        }
+
+        private String stringValue(boolean canonical) {
+            if (escaped) {
+                return unescape();
+            }
+            int length = stringEnd - stringStart;
+            return canonical ? strings.get(data, stringStart, length)
+                    : new String(data, stringStart, length, StandardCharsets.UTF_8);
+        }
+
+        // Leaves the position after the closing quote
+        private void readRawString() {
+            expect('"');
+            stringStart = position;
+            escaped = false;
+            while (true) {
+                if (position >= end) {
+                    throw error("Unterminated string");
+                }
+                byte b = data[position];
+                if (b == '"') {
+                    break;
+                }
+                if (b == '\\') {
+                    escaped = true;
+                    position++;
+                }
+                position++;
+            }
+            stringEnd = position++;
+        }
+
+        private String unescape() {
+            StringBuilder builder = new StringBuilder(stringEnd - stringStart);
+            int runStart = stringStart;
+            int i = stringStart;
+            while (i < stringEnd) {
+                if (data[i] != '\\') {
+                    i++;
+                    continue;
+                }
+                builder.append(new String(data, runStart, i - runStart, StandardCharsets.UTF_8));
+                char c = (char) data[i + 1];
+                switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 6 > stringEnd) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(new String(data, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    // \" \\ \/
+                    builder.append(c);
+                }
+                i += 2;
+                runStart = i;
+            }
+            builder.append(new String(data, runStart, stringEnd - runStart, StandardCharsets.UTF_8));
+            return builder.toString();
+        }
+
+        // Also accepts a quoted number, as Jackson does
+        private int readInt() {
+            skipWhitespace();
+            boolean quoted = position < end && data[position] == '"';
+            if (quoted) {
+                position++;
+            }
+            boolean negative = position < end && data[position] == '-';
+            if (negative) {
+                position++;
+            }
+            int start = position;
+            long value = 0;
+            while (position < end && data[position] >= '0' && data[position] <= '9') {
+                value = value * 10 + (data[position++] - '0');
+                if (value > (long) Integer.MAX_VALUE + 1) {
+                    throw error("Number out of int range");
+                }
+            }
+            if (position == start) {
+                throw error("Expected a number");
+            }
+            if (quoted) {
+                expect('"');
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw error("Number out of int range");
+            }
+            return (int) value;
+        }
+
+        private void skipValue() {
+            skipWhitespace();
+            if (position >= end) {
+                throw error("Unexpected end of input");
+            }
+            byte b = data[position];
+            if (b == '"') {
+                readRawString();
+            } else if (b == '{' || b == '[') {
+                // Strings are skipped as a whole so brackets inside them do not count
+                int depth = 0;
+                do {
+                    if (position >= end) {
+                        throw error("Unexpected end of input");
+                    }
+                    b = data[position];
+                    if (b == '"') {
+                        readRawString();
+                        continue;
+                    }
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                    position++;
+                } while (depth > 0);
+            } else {
+                // Number, true, false or null
+                while (position < end && data[position] != ',' && data[position] != '}' && data[position] != ']'
+                        && !isWhitespace(data[position])) {
+                    position++;
+                }
+            }
+        }
+
+        private boolean readNull() {
+            skipWhitespace();
+            if (position + 4 <= end && data[position] == 'n' && data[position + 1] == 'u' && data[position + 2] == 'l'
+                    && data[position + 3] == 'l') {
+                position += 4;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean endOfObject() {
+            skipWhitespace();
+            if (position < end && data[position] == '}') {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean nextMember() {
+            skipWhitespace();
+            if (position < end && data[position] == ',') {
+                position++;
+                return true;
+            }
+            expect('}');
+            return false;
+        }
+
+        private void expect(char c) {
+            skipWhitespace();
+            if (position >= end || data[position] != c) {
+                throw error("Expected '" + c + "'");
+            }
+            position++;
+        }
+
+        void skipWhitespace() {
+            while (position < end && isWhitespace(data[position])) {
+                position++;
+            }
+        }
+
+        private boolean nameIs(byte[] name, int start, int length) {
+            if (name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at byte " + position);
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date
+    private static long epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] names(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = bytes(values[i].name());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,206 @@
+package alejandro.salazar.mejia.kafka;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+
+// Publishes user tags to Kafka without ever blocking the caller for long.
+//
+// At most maxInFlight sends are outstanding and the producer gives up after maxBlockMs when
+// it has no metadata or buffer space. Events that cannot be sent, because the budget is used
+// up or the send failed, are appended to a local spool file and replayed in the background
+// once Kafka accepts sends again. Only when the spool is full is an event dropped. Appending
+// to the spool takes time in the size of the event only, failed sends are spooled from the
+// producer's network thread.
+@Component
+public class EventPublisher {
+
+    private static final Logger log = LoggerFactory.getLogger(EventPublisher.class);
+
+    private static final String TOPIC = "user_tags";
+    private static final long DROP_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // A mapped file is at most 2 GB
+    private static final int MAX_SPOOL_SIZE_MB = 2047;
+
+    private final Producer<String, byte[]> producer;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final SpoolFile spool;
+    private final ScheduledExecutorService replayer;
+
+    private final Counter spooled;
+    private final Counter replayed;
+    private final Counter dropped;
+    private final AtomicLong lastFailureNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastDropLogNanos = new AtomicLong();
+    private final long replayIntervalMillis;
+
+    public EventPublisher(@Value("${kafka.bootstrap-servers:st112vm103.rtb-lab.pl:9092}") String bootstrapServers,
+            @Value("${kafka.publish.max-in-flight:10000}") int maxInFlight,
+            @Value("${kafka.publish.max-block-ms:5}") long maxBlockMillis,
+            @Value("${kafka.spool.path:spool/user_tags.spool}") String spoolPath,
+            @Value("${kafka.spool.size-mb:256}") int spoolSizeMb,
+            @Value("${kafka.spool.replay-interval-ms:1000}") long replayIntervalMillis,
+            MeterRegistry meterRegistry) throws IOException {
+
+        Map<String, Object> kafkaProperties = new HashMap<>();
+        kafkaProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        kafkaProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        kafkaProperties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+
+        kafkaProperties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "snappy"); // Set compression type to snappy
+        kafkaProperties.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+        // Fail fast instead of the default 60 s wait for metadata or buffer space
+        kafkaProperties.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, maxBlockMillis);
+
+        this.producer = new KafkaProducer<>(kafkaProperties);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        if (spoolSizeMb < 1 || spoolSizeMb > MAX_SPOOL_SIZE_MB) {
+            throw new IllegalArgumentException("kafka.spool.size-mb must be between 1 and " + MAX_SPOOL_SIZE_MB
+                    + ", got " + spoolSizeMb);
+        }
+        this.spool = new SpoolFile(Paths.get(spoolPath), (int) (spoolSizeMb * 1024L * 1024));
+        this.replayIntervalMillis = replayIntervalMillis;
+
+        this.spooled = Counter.builder("kafka.publish.spooled")
+                .description("Events written to the local spool instead of Kafka")
+                .register(meterRegistry);
+        this.replayed = Counter.builder("kafka.spool.replayed")
+                .description("Events taken from the spool and handed to Kafka again")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("kafka.publish.dropped")
+                .description("Events lost because the spool was full")
+                .register(meterRegistry);
+        Gauge.builder("kafka.spool.depth", spool, SpoolFile::records)
+                .description("Events waiting in the spool")
+                .register(meterRegistry);
+        Gauge.builder("kafka.spool.bytes", spool, SpoolFile::bytes)
+                .description("Bytes waiting in the spool")
+                .register(meterRegistry);
+        Gauge.builder("kafka.publish.in.flight", inFlight, semaphore -> maxInFlight - semaphore.availablePermits())
+                .description("Sends not yet acknowledged by Kafka")
+                .register(meterRegistry);
+
+        if (spool.records() > 0) {
+            log.info("Spool holds {} events from a previous run, replaying them", spool.records());
+        }
+        this.replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-spool-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(this::replay, replayIntervalMillis, replayIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void publish(UserTagEvent userTagEvent) {
+        // Records are keyed by cookie so the load spreads evenly over the partitions, the
+        // processor takes the minute bucket from the event time.
+        String key = userTagEvent.getCookie();
+        byte[] value = UserTagEventFormat.encode(userTagEvent);
+        if (!inFlight.tryAcquire()) {
+            spool(key, value);
+            return;
+        }
+        send(key, value);
+    }
+
+    private void send(String key, byte[] value) {
+        try {
+            producer.send(new ProducerRecord<>(TOPIC, key, value), (metadata, exception) -> {
+                inFlight.release();
+                if (exception != null) {
+                    log.error("Error while sending message to Kafka", exception);
+                    lastFailureNanos.set(System.nanoTime());
+                    spool(key, value);
+                }
+            });
+        } catch (Exception e) {
+            // Metadata or buffer space not available within max.block.ms
+            inFlight.release();
+            lastFailureNanos.set(System.nanoTime());
+            spool(key, value);
+        }
+    }
+
+    private void spool(String key, byte[] value) {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+        byte[] record = ByteBuffer.allocate(2 + keyBytes.length + value.length)
+                .putShort((short) keyBytes.length).put(keyBytes).put(value).array();
+        if (spool.append(record)) {
+            spooled.increment();
+            return;
+        }
+
+        dropped.increment();
+        long now = System.nanoTime();
+        long lastLog = lastDropLogNanos.get();
+        if (now - lastLog > DROP_LOG_INTERVAL_NANOS && lastDropLogNanos.compareAndSet(lastLog, now)) {
+            log.error("Kafka spool is full, dropping events ({} dropped so far)", (long) dropped.count());
+        }
+    }
+
+    // Hands spooled events back to the producer while sends succeed. A failed send goes back
+    // to the spool, so replay pauses until Kafka has been healthy for a whole interval.
+    private void replay() {
+        try {
+            while (System.nanoTime() - lastFailureNanos.get() > TimeUnit.MILLISECONDS.toNanos(replayIntervalMillis)) {
+                // Leave half of the budget to live traffic
+                if (maxInFlight - inFlight.availablePermits() > maxInFlight / 2 || !inFlight.tryAcquire()) {
+                    return;
+                }
+                byte[] record = spool.poll();
+                if (record == null) {
+                    inFlight.release();
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte[] keyBytes = new byte[buffer.getShort()];
+                buffer.get(keyBytes);
+                byte[] value = new byte[buffer.remaining()];
+                buffer.get(value);
+
+                replayed.increment();
+                send(keyBytes.length == 0 ? null : new String(keyBytes, StandardCharsets.UTF_8), value);
+            }
+        } catch (Exception e) {
+            log.error("Error while replaying the Kafka spool", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        replayer.shutdownNow();
+        producer.close();
+        spool.close();
+    }
+}
@@ -0,0 +1,158 @@
+package alejandro.salazar.mejia.kafka;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Queue of records in a memory-mapped ring buffer, surviving restarts of the process.
+//
+// Layout: a header of write position, read position and ring size (3 longs), followed by the
+// ring of records, each an int length and the record bytes, wrapping around the end of the
+// file. Positions only grow, position p being at HEADER_SIZE + (p - HEADER_SIZE) % ring size.
+// Until the write position passes the end the layout does not depend on the ring size, so such
+// files are read whatever the size they were written with, those of the former append-only
+// spool included.
+//
+// Records are never moved. An append writes the record then the write position, a poll reads
+// the record then writes the read position: each commits with a single aligned long, so a
+// process dying at any point leaves the previous or the next state.
+public class SpoolFile implements Closeable {
+
+    private static final int HEADER_SIZE = 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int ringSize;
+
+    private long writePosition;
+    private long readPosition;
+    // Counted from the records in the ring when the file is opened
+    private long records;
+
+    public SpoolFile(Path path, int capacity) throws IOException {
+        if (capacity <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Spool capacity " + capacity + " leaves no room for records");
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.ringSize = capacity - HEADER_SIZE;
+
+        this.writePosition = buffer.getLong(0);
+        this.readPosition = buffer.getLong(8);
+        boolean sameLayout = buffer.getLong(16) == ringSize || writePosition <= capacity;
+        if (readPosition < HEADER_SIZE || writePosition < readPosition || writePosition - readPosition > ringSize
+                || !sameLayout || !countRecords()) {
+            // New or foreign file, or one wrapped around a ring of another size
+            writePosition = HEADER_SIZE;
+            readPosition = HEADER_SIZE;
+            records = 0;
+            buffer.putLong(0, writePosition);
+            buffer.putLong(8, readPosition);
+        }
+        buffer.putLong(16, ringSize);
+    }
+
+    // Walks the lengths from the read position, false unless they end at the write position
+    private boolean countRecords() {
+        records = 0;
+        for (long position = readPosition; position < writePosition; records++) {
+            if (writePosition - position < 4) {
+                return false;
+            }
+            int length = getInt(position);
+            if (length < 0 || writePosition - position - 4 < length) {
+                return false;
+            }
+            position += 4 + length;
+        }
+        return true;
+    }
+
+    // False if the record does not fit, the caller decides whether to drop it
+    public synchronized boolean append(byte[] record) {
+        long size = 4L + record.length;
+        if (writePosition - readPosition + size > ringSize) {
+            return false;
+        }
+        putInt(writePosition, record.length);
+        put(writePosition + 4, record);
+
+        // The position is written last so a record is never visible half written
+        writePosition += size;
+        records++;
+        buffer.putLong(0, writePosition);
+        return true;
+    }
+
+    // The oldest record, removed from the spool, or null if it is empty
+    public synchronized byte[] poll() {
+        if (readPosition == writePosition) {
+            return null;
+        }
+        byte[] record = new byte[getInt(readPosition)];
+        get(readPosition + 4, record);
+
+        readPosition += 4 + record.length;
+        records--;
+        buffer.putLong(8, readPosition);
+        return record;
+    }
+
+    public synchronized long records() {
+        return records;
+    }
+
+    public synchronized long bytes() {
+        return writePosition - readPosition;
+    }
+
+    private int offset(long position) {
+        return HEADER_SIZE + (int) ((position - HEADER_SIZE) % ringSize);
+    }
+
+    private void putInt(long position, int value) {
+        put(position, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private int getInt(long position) {
+        byte[] bytes = new byte[4];
+        get(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    // Bytes from the position on, the part past the end of the file at the start of the ring
+    private void put(long position, byte[] bytes) {
+        int offset = offset(position);
+        int first = Math.min(bytes.length, HEADER_SIZE + ringSize - offset);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(bytes, 0, first);
+        target.position(HEADER_SIZE);
+        target.put(bytes, first, bytes.length - first);
+    }
+
+    private void get(long position, byte[] bytes) {
+        int offset = offset(position);
+        int first = Math.min(bytes.length, HEADER_SIZE + ringSize - offset);
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes, 0, first);
+        source.position(HEADER_SIZE);
+        source.get(bytes, first, bytes.length - first);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
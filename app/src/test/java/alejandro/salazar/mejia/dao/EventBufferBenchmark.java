@@ -0,0 +1,123 @@
+package alejandro.salazar.mejia.dao;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// EventBuffer against the ArrayList sorted on every insert it replaces, on a full 200 event
+// profile. IN_ORDER tags are newer than the whole profile, the common case; OUT_OF_ORDER ones
+// fall anywhere in it. The decode benchmarks load a binary profile bin.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=alejandro.salazar.mejia.dao.EventBufferBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBufferBenchmark {
+
+    private static final int MAX_EVENTS = 200;
+
+    public enum Order {
+        IN_ORDER, OUT_OF_ORDER
+    }
+
+    @Param({ "IN_ORDER", "OUT_OF_ORDER" })
+    private Order order;
+
+    private List<UserTagEvent> list;
+    private EventBuffer buffer;
+    private UserTagEvent[] newEvents;
+    private int next;
+    private byte[] encoded;
+    private Instant start;
+    private Instant end;
+
+    @Setup
+    public void setup() throws Exception {
+        List<UserTagEvent> profile = ProfileCodecBenchmark.sampleEvents(MAX_EVENTS);
+        list = new ArrayList<>(profile);
+        buffer = EventBuffer.of(profile, MAX_EVENTS);
+        encoded = ProfileCodec.encode(profile, ProfileFormat.BINARY);
+
+        // Tags one second apart, OUT_OF_ORDER ones shifted back into the last 200 seconds
+        Random random = new Random(7);
+        long clock = profile.get(0).getTime().toEpochMilli();
+        newEvents = new UserTagEvent[1 << 16];
+        for (int i = 0; i < newEvents.length; i++) {
+            clock += 1000;
+            long time = order == Order.IN_ORDER ? clock : clock - random.nextInt(MAX_EVENTS * 1000);
+            UserTagEvent event = profile.get(i % MAX_EVENTS);
+            newEvents[i] = new UserTagEvent(Instant.ofEpochMilli(time), event.getCookie(), event.getCountry(),
+                    event.getDevice(), event.getAction(), event.getOrigin(), event.getProductInfo());
+        }
+        start = profile.get(150).getTime();
+        end = profile.get(50).getTime();
+    }
+
+    private UserTagEvent nextEvent() {
+        return newEvents[next++ & (newEvents.length - 1)];
+    }
+
+    @Benchmark
+    public List<UserTagEvent> insertSortedList() {
+        list.add(nextEvent());
+        list.sort(Comparator.comparing(UserTagEvent::getTime).reversed());
+        if (list.size() > MAX_EVENTS) {
+            list.subList(MAX_EVENTS, list.size()).clear();
+        }
+        return list;
+    }
+
+    @Benchmark
+    public boolean insertEventBuffer() {
+        return buffer.add(nextEvent());
+    }
+
+    @Benchmark
+    public List<UserTagEvent> rangeStream() {
+        return list.stream()
+                .filter(event -> !event.getTime().isBefore(start) && event.getTime().isBefore(end))
+                .limit(20)
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<UserTagEvent> rangeEventBuffer() {
+        return buffer.range(start, end, 20);
+    }
+
+    @Benchmark
+    public List<UserTagEvent> decodeList() throws Exception {
+        return ProfileCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public EventBuffer decodeEventBuffer() throws Exception {
+        return ProfileCodec.decode(encoded, MAX_EVENTS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(EventBufferBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,107 @@
+package alejandro.salazar.mejia.dao;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Encode/decode cost of a full 200 event profile bin in both formats, and of decoding only a
+// recent range of it as getUserProfile does.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=alejandro.salazar.mejia.dao.ProfileCodecBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfileCodecBenchmark {
+
+    @Param({ "JSON_SNAPPY", "BINARY" })
+    private ProfileFormat format;
+
+    private List<UserTagEvent> events;
+    private byte[] encoded;
+    private Instant rangeStart;
+    private Instant rangeEnd;
+
+    @Setup
+    public void setup() throws Exception {
+        events = sampleEvents(200);
+        encoded = ProfileCodec.encode(events, format);
+        rangeStart = events.get(40).getTime();
+        rangeEnd = events.get(10).getTime();
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return ProfileCodec.encode(events, format);
+    }
+
+    @Benchmark
+    public List<UserTagEvent> decode() throws Exception {
+        return ProfileCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public List<UserTagEvent> decodeAndFilterRange() throws Exception {
+        return ProfileCodec.decode(encoded, events.size()).range(rangeStart, rangeEnd, 20);
+    }
+
+    @Benchmark
+    public List<UserTagEvent> decodeRange() throws Exception {
+        return ProfileCodec.decodeRange(encoded, rangeStart, rangeEnd, 20);
+    }
+
+    // Read-modify-write of one bin, as done by UserDao.addUserTag in GET_PUT mode
+    @Benchmark
+    public byte[] decodeAndEncode() throws Exception {
+        return ProfileCodec.encode(ProfileCodec.decode(encoded), format);
+    }
+
+    static List<UserTagEvent> sampleEvents(int count) {
+        Random random = new Random(42);
+        String[] countries = { "PL", "DE", "US", "FR", "GB" };
+        String[] origins = { "NIKE_WOMEN_SHOES_CAMPAIGN", "ADIDAS_SUMMER", "PUMA_RUNNING", "DIRECT" };
+        String[] brands = { "Nike", "Adidas", "Puma", "Reebok", "Asics", "NewBalance" };
+        String[] categories = { "WOMEN_SHOES", "MEN_SHOES", "KIDS", "ACCESSORIES" };
+
+        List<UserTagEvent> events = new ArrayList<>(count);
+        long time = Instant.parse("2022-03-22T12:15:00.000Z").toEpochMilli();
+        for (int i = 0; i < count; i++) {
+            time -= random.nextInt(60_000);
+            events.add(new UserTagEvent(Instant.ofEpochMilli(time), "c7fd7a0c-6d3b-4b27-8f1e-6f0f4e0b2a11",
+                    countries[random.nextInt(countries.length)], Device.values()[random.nextInt(3)], Action.VIEW,
+                    origins[random.nextInt(origins.length)],
+                    new Product(random.nextInt(100_000), brands[random.nextInt(brands.length)],
+                            categories[random.nextInt(categories.length)], random.nextInt(10_000))));
+        }
+        return events;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (ProfileFormat format : ProfileFormat.values()) {
+            System.out.println(format + " bin size: " + ProfileCodec.encode(sampleEvents(200), format).length + " bytes");
+        }
+        new Runner(new OptionsBuilder().include(ProfileCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,112 @@
+package alejandro.salazar.mejia.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+class ProfileCodecTest {
+
+    private static final Instant START = Instant.parse("2022-03-01T00:00:00Z");
+
+    @Test
+    void blocksRoundTripAcrossTheirBoundaries() throws Exception {
+        // Blocks hold 32 events
+        for (int size : new int[] { 0, 1, 31, 32, 33, 64, 65, 200 }) {
+            List<UserTagEvent> events = events(size);
+            byte[] data = ProfileCodec.encode(events, ProfileFormat.BINARY);
+
+            assertTrue(ProfileCodec.isBinary(data));
+            assertEvents(events, ProfileCodec.decode(data));
+            assertEvents(events, ProfileCodec.decode(data, 1_000).toList());
+            assertEvents(events.subList(0, Math.min(size, 20)), ProfileCodec.decode(data, 20).toList());
+        }
+    }
+
+    @Test
+    void singleEventRoundTrips() throws Exception {
+        for (UserTagEvent event : events(8)) {
+            byte[] data = ProfileCodec.encodeEvent(event, ProfileFormat.BINARY);
+
+            assertTrue(ProfileCodec.isBinary(data));
+            assertEvents(List.of(event), List.of(ProfileCodec.decodeEvent(data)));
+            assertEvents(List.of(event), ProfileCodec.decode(data));
+        }
+    }
+
+    @Test
+    void legacySnappyJsonIsRead() throws Exception {
+        List<UserTagEvent> events = events(40);
+        byte[] data = ProfileCodec.encode(events, ProfileFormat.JSON_SNAPPY);
+
+        assertFalse(ProfileCodec.isBinary(data));
+        assertEvents(events, ProfileCodec.decode(data));
+        assertEvents(events, ProfileCodec.decode(data, 100).toList());
+        assertEvents(events.subList(5, 8), ProfileCodec.decodeRange(data, time(events.get(7)),
+                time(events.get(4)), 3));
+
+        byte[] single = ProfileCodec.encodeEvent(events.get(0), ProfileFormat.JSON_SNAPPY);
+        assertFalse(ProfileCodec.isBinary(single));
+        assertEvents(events.subList(0, 1), List.of(ProfileCodec.decodeEvent(single)));
+    }
+
+    @Test
+    void rangeIsNewestFirstUpToTheLimit() throws Exception {
+        List<UserTagEvent> events = events(100);
+        for (ProfileFormat format : ProfileFormat.values()) {
+            byte[] data = ProfileCodec.encode(events, format);
+
+            // [start, end) over blocks 1 to 2
+            Instant start = time(events.get(70));
+            Instant end = time(events.get(20));
+            assertEvents(events.subList(21, 71), ProfileCodec.decodeRange(data, start, end, 1_000));
+            assertEvents(events.subList(21, 61), ProfileCodec.decodeRange(data, start, end, 40));
+            assertEvents(events.subList(21, 22), ProfileCodec.decodeRange(data, start, end, 1));
+            assertEvents(List.of(), ProfileCodec.decodeRange(data, start, end, 0));
+            assertEvents(List.of(), ProfileCodec.decodeRange(data, end, end, 10));
+            assertEvents(events, ProfileCodec.decodeRange(data, Instant.EPOCH, START.plusSeconds(3_600), 100));
+        }
+    }
+
+    // Newest first as profiles keep them, with times, strings and nulls varying within blocks
+    private static List<UserTagEvent> events(int count) {
+        List<UserTagEvent> events = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i--) {
+            Product product = new Product(i, i % 3 == 0 ? null : "brand-" + i % 5, "category-" + i % 2,
+                    i % 7 == 0 ? -i : 1_000 * i);
+            events.add(new UserTagEvent(START.plusMillis(i * 997L), "cookie", i % 4 == 0 ? null : "PL",
+                    i % 5 == 0 ? null : Device.values()[i % 3], Action.values()[i % 2], "origin-" + i % 11,
+                    product));
+        }
+        return events;
+    }
+
+    private static Instant time(UserTagEvent event) {
+        return event.getTime();
+    }
+
+    private static void assertEvents(List<UserTagEvent> expected, List<UserTagEvent> actual) {
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    private static List<String> describe(List<UserTagEvent> events) {
+        return events.stream().map(event -> {
+            Product product = event.getProductInfo();
+            return String.join(" ", String.valueOf(event.getTime()), event.getCookie(), event.getCountry(),
+                    String.valueOf(event.getDevice()), String.valueOf(event.getAction()), event.getOrigin(),
+                    String.valueOf(product.getProductId()), product.getBrandId(), product.getCategoryId(),
+                    String.valueOf(product.getPrice()));
+        }).collect(Collectors.toList());
+    }
+}
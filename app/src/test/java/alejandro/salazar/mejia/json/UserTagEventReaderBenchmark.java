@@ -0,0 +1,67 @@
+package alejandro.salazar.mejia.json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Binding one <user_tag> request body, UserTagEventReader against Jackson configured like
+// Spring's ObjectMapper. Allocation per call is shown with the gc profiler.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=alejandro.salazar.mejia.json.UserTagEventReaderBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserTagEventReaderBenchmark {
+
+    private static final String BODY = "{\"time\":\"2022-03-22T12:15:00.000Z\","
+            + "\"cookie\":\"c7fd7a0c-6d3b-4b27-8f1e-6f0f4e0b2a11\",\"country\":\"PL\",\"device\":\"PC\","
+            + "\"action\":\"VIEW\",\"origin\":\"NIKE_WOMEN_SHOES_CAMPAIGN\",\"product_info\":{\"product_id\":4567,"
+            + "\"brand_id\":\"Nike\",\"category_id\":\"WOMEN_SHOES\",\"price\":1234}}";
+
+    private byte[] body;
+    private ObjectMapper objectMapper;
+    private UserTagEventReader reader;
+
+    @Setup
+    public void setup() {
+        body = BODY.getBytes(StandardCharsets.UTF_8);
+        objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        reader = new UserTagEventReader(new StringCanonicalizer(4096, 64));
+    }
+
+    @Benchmark
+    public UserTagEvent jackson() throws Exception {
+        return objectMapper.readValue(body, UserTagEvent.class);
+    }
+
+    @Benchmark
+    public UserTagEvent reader() {
+        return reader.read(body, 0, body.length);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(UserTagEventReaderBenchmark.class.getSimpleName())
+                .addProfiler("gc").build()).run();
+    }
+}
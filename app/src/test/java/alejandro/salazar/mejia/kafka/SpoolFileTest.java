@@ -0,0 +1,118 @@
+package alejandro.salazar.mejia.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordsWrapAroundTheEndOfTheFile() throws IOException {
+        Random random = new Random(42);
+        Deque<byte[]> expected = new ArrayDeque<>();
+        try (SpoolFile spool = new SpoolFile(directory.resolve("spool"), 24 + 1000)) {
+            // Many times the ring size, at lengths that split records and their lengths at the end
+            for (int i = 0; i < 5_000; i++) {
+                if (random.nextBoolean()) {
+                    byte[] record = new byte[random.nextInt(120)];
+                    random.nextBytes(record);
+                    if (spool.append(record)) {
+                        expected.add(record);
+                    }
+                } else {
+                    assertBytes(expected.poll(), spool.poll());
+                }
+                assertEquals(expected.size(), spool.records());
+            }
+        }
+    }
+
+    @Test
+    void fullSpoolRejectsRecords() throws IOException {
+        try (SpoolFile spool = new SpoolFile(directory.resolve("spool"), 24 + 100)) {
+            assertTrue(spool.append(new byte[46]));
+            assertTrue(spool.append(new byte[46]));
+            assertFalse(spool.append(new byte[0]));
+            assertEquals(46, spool.poll().length);
+            assertTrue(spool.append(new byte[46]));
+            assertEquals(100, spool.bytes());
+        }
+    }
+
+    @Test
+    void reopenedSpoolKeepsUnreadRecords() throws IOException {
+        Path path = directory.resolve("spool");
+        try (SpoolFile spool = new SpoolFile(path, 24 + 64)) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(spool.append(new byte[] { (byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+            }
+            spool.poll();
+            spool.poll();
+            // Wrap around
+            assertTrue(spool.append(new byte[] { 4, 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+            assertTrue(spool.append(new byte[] { 5, 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+        }
+        try (SpoolFile spool = new SpoolFile(path, 24 + 64)) {
+            assertEquals(4, spool.records());
+            for (int i = 2; i <= 5; i++) {
+                assertEquals(i, spool.poll()[0]);
+            }
+            assertNull(spool.poll());
+        }
+    }
+
+    @Test
+    void spoolMappedWithAnotherCapacityStartsEmpty() throws IOException {
+        Path path = directory.resolve("spool");
+        try (SpoolFile spool = new SpoolFile(path, 24 + 64)) {
+            for (int i = 0; i < 6; i++) {
+                spool.append(new byte[10]);
+                spool.poll();
+            }
+            spool.append(new byte[10]);
+        }
+        try (SpoolFile spool = new SpoolFile(path, 24 + 32)) {
+            assertEquals(0, spool.records());
+            assertNull(spool.poll());
+        }
+    }
+
+    @Test
+    void appendOnlySpoolIsRead() throws IOException {
+        // Header of write position, read position and record count, then the records
+        Path path = directory.resolve("spool");
+        ByteBuffer file = ByteBuffer.allocate(24 + 18).putLong(24 + 18).putLong(24 + 9).putLong(1)
+                .putInt(5).put(new byte[] { 1, 2, 3, 4, 5 }).putInt(5).put(new byte[] { 6, 7, 8, 9, 10 });
+        Files.write(path, file.array());
+        try (SpoolFile spool = new SpoolFile(path, 24 + 64)) {
+            assertEquals(1, spool.records());
+            assertArrayEquals(new byte[] { 6, 7, 8, 9, 10 }, spool.poll());
+            assertNull(spool.poll());
+        }
+    }
+
+    private static void assertBytes(byte[] expected, byte[] actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertArrayEquals(expected, actual, () -> Arrays.toString(actual));
+        }
+    }
+}
@@ -1,5 +0,0 @@
-package myapps;
-
-public enum Action {
-    VIEW, BUY
-}
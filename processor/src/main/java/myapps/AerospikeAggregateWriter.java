@@ -0,0 +1,280 @@
+package myapps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.client.cdt.ListOperation;
+import com.aerospike.client.cdt.ListOrder;
+import com.aerospike.client.cdt.ListPolicy;
+import com.aerospike.client.cdt.ListReturnType;
+import com.aerospike.client.cdt.ListWriteFlags;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapOrder;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cdt.MapWriteFlags;
+import com.aerospike.client.exp.Exp;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.Sketch;
+
+// Epochs of the flushes of a partition are kept in the flushes set, in an ordered list without
+// repeats keyed by topic and partition. Records keep the epoch of each partition in an epoch_<partition> bin, set by the
+// same operate as the adds; a filter expression skips the operate if it is not older. The same
+// flushes record has the end of the closed buckets of the partition in a closed_until bin, and
+// the last flushes that added late events, as [epoch, start of the earliest bucket they added
+// to], in an ordered corrections list: front nodes drop the closed buckets they cached from it.
+//
+// Adds are async operates, at most maxInFlight of them at a time: add() waits for one to
+// complete beyond that. Epochs are read and written synchronously, once per task and batch.
+//
+// Sketches are bytes bins, and maps of them by minute in hour records. Aerospike cannot merge
+// them, so adds with sketches read the record first and write the merged sketches with the
+// adds, failing if the record changed in between: other partitions merge theirs into the same
+// records. The epoch filter applies to the write as to the adds, so a sketch is merged once.
+// A merge that lost the race is read and written again after a random delay, up to a bound
+// doubling with each attempt, so the partitions merging into a record spread out instead of
+// colliding again. The retries are scheduled on the event loops, nothing waits for them.
+final class AerospikeAggregateWriter implements AggregateWriter {
+
+    private static final String NAMESPACE = "mimuw";
+    private static final String FLUSHES_SET = "flushes";
+    private static final String EPOCHS_BIN = "epochs";
+    private static final String CLOSED_UNTIL_BIN = "closed_until";
+    private static final String CORRECTIONS_BIN = "corrections";
+    // Far more than the flushes between two commits, failed ones included
+    private static final int KEPT_EPOCHS = 16;
+    private static final ListPolicy EPOCHS_POLICY =
+            new ListPolicy(ListOrder.ORDERED, ListWriteFlags.ADD_UNIQUE | ListWriteFlags.NO_FAIL);
+
+    private static final String MINUTE_COUNT_BIN = AggregateLevel.minuteBin("count");
+    private static final String MINUTE_SUM_BIN = AggregateLevel.minuteBin("sum_price");
+    private static final MapPolicy MINUTE_MAP_POLICY = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.DEFAULT);
+    private static final MapPolicy VALUES_MAP_POLICY = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.DEFAULT);
+    private static final Value SEEN = Value.get(1);
+    // Reads and writes of a sketch merge before handing the conflict to the caller, which tries
+    // the add again later
+    private static final int MERGE_ATTEMPTS = 10;
+    private static final long MERGE_BACKOFF_MILLIS = 2;
+    private static final long MAX_MERGE_BACKOFF_MILLIS = 500;
+
+    private final AerospikeClient client;
+    private final String topic;
+    private final Semaphore inFlight;
+
+    // Write policies by level for the epoch of the current flush
+    private final WritePolicy[] policies = new WritePolicy[AggregateLevel.values().length];
+    private int policiesPartition = -1;
+    private long policiesEpoch = -1;
+
+    AerospikeAggregateWriter(AerospikeClient client, String topic, int maxInFlight) {
+        this.client = client;
+        this.topic = topic;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public List<Long> flushEpochs(int partition) {
+        Record record = client.get(null, flushesKey(partition), EPOCHS_BIN);
+        List<Long> epochs = new ArrayList<>();
+        if (record != null && record.getList(EPOCHS_BIN) != null) {
+            for (Object epoch : record.getList(EPOCHS_BIN)) {
+                epochs.add((Long) epoch);
+            }
+        }
+        return epochs;
+    }
+
+    @Override
+    public void startFlush(int partition, long epoch) {
+        client.operate(null, flushesKey(partition),
+                ListOperation.append(EPOCHS_POLICY, EPOCHS_BIN, Value.get(epoch)),
+                ListOperation.removeByIndexRange(EPOCHS_BIN, -KEPT_EPOCHS, ListReturnType.INVERTED));
+    }
+
+    @Override
+    public void closedUntil(int partition, long closedUntilMillis) {
+        client.put(null, flushesKey(partition), new Bin(CLOSED_UNTIL_BIN, closedUntilMillis));
+    }
+
+    @Override
+    public void corrected(int partition, long epoch, long fromMillis) {
+        client.operate(null, flushesKey(partition),
+                ListOperation.append(EPOCHS_POLICY, CORRECTIONS_BIN, Value.get(Arrays.asList(epoch, fromMillis))),
+                ListOperation.removeByIndexRange(CORRECTIONS_BIN, -KEPT_EPOCHS, ListReturnType.INVERTED));
+    }
+
+    @Override
+    public void add(AggregateLevel level, String key, int partition, long epoch, long count, long sum,
+            long[] minuteCounts, long[] minuteSums, Map<String, Sketch> sketches, Map<String, Sketch[]> minuteSketches,
+            Map<String, Set<String>> valueSets, Consumer<AerospikeException> done) {
+        List<Operation> operations = new ArrayList<>();
+        operations.add(Operation.add(new Bin("count", count)));
+        operations.add(Operation.add(new Bin("sum_price", sum)));
+        operations.add(Operation.put(new Bin(epochBin(partition), epoch)));
+        if (minuteCounts != null) {
+            for (int minute = 0; minute < minuteCounts.length; minute++) {
+                if (minuteCounts[minute] != 0) {
+                    operations.add(MapOperation.increment(MINUTE_MAP_POLICY, MINUTE_COUNT_BIN, Value.get(minute),
+                            Value.get(minuteCounts[minute])));
+                    operations.add(MapOperation.increment(MINUTE_MAP_POLICY, MINUTE_SUM_BIN, Value.get(minute),
+                            Value.get(minuteSums[minute])));
+                }
+            }
+        }
+        valueSets.forEach((bin, values) -> {
+            Map<Value, Value> items = new HashMap<>();
+            values.forEach(value -> items.put(Value.get(value), SEEN));
+            operations.add(MapOperation.putItems(VALUES_MAP_POLICY, bin, items));
+            // Trimmed to one more than readers take, which tells them some were dropped
+            operations.add(MapOperation.removeByIndexRange(bin, DimensionLattice.MAX_TUPLES + 1, MapReturnType.NONE));
+        });
+        WritePolicy policy = policy(level, partition, epoch);
+        Key recordKey = new Key(NAMESPACE, level.set(), key);
+
+        inFlight.acquireUninterruptibly();
+        Consumer<AerospikeException> completed = error -> {
+            inFlight.release();
+            done.accept(error);
+        };
+        if (sketches.isEmpty() && minuteSketches.isEmpty()) {
+            operate(recordKey, policy, operations, completed);
+        } else {
+            mergeSketches(recordKey, policy, operations, sketches, minuteSketches, 1, completed);
+        }
+    }
+
+    private void operate(Key key, WritePolicy policy, List<Operation> operations, Consumer<AerospikeException> done) {
+        RecordListener listener = new RecordListener() {
+            @Override
+            public void onSuccess(Key key, Record record) {
+                done.accept(null);
+            }
+
+            @Override
+            public void onFailure(AerospikeException e) {
+                done.accept(e);
+            }
+        };
+        try {
+            client.operate(null, listener, policy, key, operations.toArray(new Operation[0]));
+        } catch (AerospikeException e) {
+            // Not sent, e.g. the event loop queue is full
+            listener.onFailure(e);
+        }
+    }
+
+    private void mergeSketches(Key key, WritePolicy policy, List<Operation> operations, Map<String, Sketch> sketches,
+            Map<String, Sketch[]> minuteSketches, int attempt, Consumer<AerospikeException> done) {
+        RecordListener listener = new RecordListener() {
+            @Override
+            public void onSuccess(Key key, Record record) {
+                List<Operation> merged = new ArrayList<>(operations);
+                sketches.forEach((bin, sketch) -> merged.add(Operation.put(new Bin(bin,
+                        merge(record != null ? (byte[]) record.getValue(bin) : null, sketch)))));
+                minuteSketches.forEach((bin, sketch) -> {
+                    String minuteBin = AggregateLevel.minuteBin(bin);
+                    Map<?, ?> stored = record != null ? record.getMap(minuteBin) : null;
+                    Map<Value, Value> minutes = new HashMap<>();
+                    for (int minute = 0; minute < sketch.length; minute++) {
+                        if (sketch[minute] != null) {
+                            byte[] storedMinute = stored != null ? (byte[]) stored.get((long) minute) : null;
+                            minutes.put(Value.get(minute), Value.get(merge(storedMinute, sketch[minute])));
+                        }
+                    }
+                    merged.add(MapOperation.putItems(MINUTE_MAP_POLICY, minuteBin, minutes));
+                });
+
+                WritePolicy unchanged = new WritePolicy(policy);
+                if (record == null) {
+                    unchanged.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+                } else {
+                    unchanged.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+                    unchanged.generation = record.generation;
+                }
+                operate(key, unchanged, merged, error -> {
+                    if (AggregateWriter.lostRace(error) && attempt < MERGE_ATTEMPTS) {
+                        retryMerge(key, policy, operations, sketches, minuteSketches, attempt + 1, done);
+                    } else {
+                        done.accept(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(AerospikeException e) {
+                done.accept(e);
+            }
+        };
+        try {
+            List<String> bins = new ArrayList<>(sketches.keySet());
+            minuteSketches.keySet().forEach(bin -> bins.add(AggregateLevel.minuteBin(bin)));
+            client.get(null, listener, null, key, bins.toArray(new String[0]));
+        } catch (AerospikeException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private void retryMerge(Key key, WritePolicy policy, List<Operation> operations, Map<String, Sketch> sketches,
+            Map<String, Sketch[]> minuteSketches, int attempt, Consumer<AerospikeException> done) {
+        long bound = Math.min(MAX_MERGE_BACKOFF_MILLIS, MERGE_BACKOFF_MILLIS << attempt);
+        long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        try {
+            client.getCluster().eventLoops.next().schedule(
+                    () -> mergeSketches(key, policy, operations, sketches, minuteSketches, attempt, done),
+                    delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            done.accept(e instanceof AerospikeException ? (AerospikeException) e : new AerospikeException(e));
+        }
+    }
+
+    private static byte[] merge(byte[] stored, Sketch sketch) {
+        return stored != null ? sketch.mergedWith(stored) : sketch.toBytes();
+    }
+
+    private WritePolicy policy(AggregateLevel level, int partition, long epoch) {
+        if (partition != policiesPartition || epoch != policiesEpoch) {
+            String epochBin = epochBin(partition);
+            for (AggregateLevel each : AggregateLevel.values()) {
+                WritePolicy policy = new WritePolicy(client.writePolicyDefault);
+                policy.expiration = each.expirationSeconds();
+                // Filtered out records are skipped silently, failOnFilteredOut is false
+                policy.filterExp = Exp.build(Exp.or(
+                        Exp.not(Exp.binExists(epochBin)),
+                        Exp.lt(Exp.intBin(epochBin), Exp.val(epoch))));
+                policies[each.ordinal()] = policy;
+            }
+            policiesPartition = partition;
+            policiesEpoch = epoch;
+        }
+        return policies[level.ordinal()];
+    }
+
+    private Key flushesKey(int partition) {
+        return new Key(NAMESPACE, FLUSHES_SET, topic + "-" + partition);
+    }
+
+    private static String epochBin(int partition) {
+        return "epoch_" + partition;
+    }
+}
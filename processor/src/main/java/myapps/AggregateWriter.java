@@ -0,0 +1,55 @@
+package myapps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Sketch;
+
+// Where PartitionAggregator writes its flushes: Aerospike, or a stand-in in tests.
+//
+// Every flush of a partition has an epoch, the offset after its last event. A record keeps the
+// last epoch of each partition added to it and ignores adds of that partition up to it, so a
+// flush written again only changes the records it had not reached.
+interface AggregateWriter {
+
+    // Epochs of the last flushes started for the partition, in any order
+    List<Long> flushEpochs(int partition);
+
+    // Records the epoch of a flush of the partition, before any of its adds
+    void startFlush(int partition, long epoch);
+
+    // Adds count and sum to the record of the level and key, and for hour records the deltas by
+    // minute of the hour to its minute maps, null for other levels. Sketches are merged into the
+    // bins they are mapped to, and minute sketches into the minute maps of those bins by minute of
+    // the hour, null ones skipped. Value sets are added to the keys of the map bins they are
+    // mapped to, which keep at most the DimensionLattice.MAX_TUPLES + 1 first in key order.
+    // Nothing is added if the record has an epoch of the partition at least epoch.
+    //
+    // Returns once the add is sent, possibly before it completes; done is then called, from any
+    // thread, with null or the AerospikeException the add failed with. A failed add may have
+    // been applied anyway. Adds with sketches may fail because other partitions kept changing the
+    // record while merging them, see lostRace(): nothing was added, and a later attempt succeeds.
+    void add(AggregateLevel level, String key, int partition, long epoch, long count, long sum,
+            long[] minuteCounts, long[] minuteSums, Map<String, Sketch> sketches, Map<String, Sketch[]> minuteSketches,
+            Map<String, Set<String>> valueSets, Consumer<AerospikeException> done);
+
+    // Records that the minute buckets of the partition ending up to closedUntilMillis are closed:
+    // all of its events in them were added, apart from late ones
+    void closedUntil(int partition, long closedUntilMillis);
+
+    // Records that the flush of the epoch added late events to the buckets of the partition
+    // ending after fromMillis, which readers may have taken for closed
+    void corrected(int partition, long epoch, long fromMillis);
+
+    // Whether an add failed because the record changed between reading and writing its sketches
+    static boolean lostRace(AerospikeException error) {
+        return error != null && (error.getResultCode() == ResultCode.GENERATION_ERROR
+                || error.getResultCode() == ResultCode.KEY_EXISTS_ERROR);
+    }
+}
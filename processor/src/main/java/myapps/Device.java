@@ -1,5 +0,0 @@
-package myapps;
-
-public enum Device {
-    MOBILE, PC, TV
-}
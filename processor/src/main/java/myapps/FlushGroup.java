@@ -0,0 +1,55 @@
+package myapps;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Tasks of one stream thread, flushed together.
+//
+// Kafka Streams commits all the tasks of a thread once any of them requests a commit, and at a
+// rebalance those it keeps along with those revoked. The aggregates of the events after the last
+// flush of a task are only in memory: committing its offsets without flushing it first would lose
+// them. So whichever task flushes, all the tasks of its thread are flushed, and their snapshots
+// taken, before the commit.
+//
+// Flushes are share times as far apart as the last one took, so they take at most 1/share of
+// the thread, within the bounds given. Only used from the thread of the group.
+final class FlushGroup {
+
+    private final Set<Runnable> flushes = new LinkedHashSet<>();
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final int share;
+    private long interval;
+    private long lastFlush = System.currentTimeMillis();
+
+    FlushGroup(long minIntervalMillis, long maxIntervalMillis, int share) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.share = share;
+        this.interval = minIntervalMillis;
+    }
+
+    // Adds the flush of a task, which must write its aggregates and put its snapshot in its store
+    void join(Runnable flush) {
+        flushes.add(flush);
+    }
+
+    void leave(Runnable flush) {
+        flushes.remove(flush);
+    }
+
+    boolean isDue(long now) {
+        return now - lastFlush >= interval;
+    }
+
+    // Flushes every task of the group, throwing at the first that fails: its thread must then
+    // not commit
+    void flush() {
+        long start = System.currentTimeMillis();
+        for (Runnable flush : flushes) {
+            flush.run();
+        }
+        lastFlush = System.currentTimeMillis();
+        interval = Math.max(minIntervalMillis, Math.min(maxIntervalMillis, share * (lastFlush - start)));
+    }
+}
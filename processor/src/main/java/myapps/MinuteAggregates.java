@@ -0,0 +1,399 @@
+package myapps;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.HyperLogLog;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+import alejandro.salazar.mejia.schema.UserTagEventView;
+
+// Counts and price sums of the events since the last flush by minute, action and dimensions,
+// for each combination of dimensions kept (see DimensionLattice), kept in primitive arrays:
+// adding an event creates no objects once its strings are known. With distinctUsers, each key
+// also has a HyperLogLog sketch of the cookies of its events.
+//
+// Origin, brand, category and country are interned into ids by StringDictionary, the device is
+// its ordinal. A key is two longs. The high one packs, from the top bit: a used bit, the minute
+// relative to baseMinute, the action and the mask of the dimensions it is for. The low one packs
+// the ids of those dimensions, 0 for the others. Counts and sums are kept in arrays parallel to
+// the keys of an open-addressing table with linear probing.
+//
+// The aggregates can be written to a DataOutput and read back, dictionaries and ids included.
+final class MinuteAggregates {
+
+    interface Sink {
+        // minuteKey as in the aggregates set: yyyy-MM-ddTHH:mm:00_ACTION then the dimensions of
+        // the combination (see Dimension.keySegment), users null without distinctUsers
+        void accept(String minuteKey, int combination, long count, long sum, HyperLogLog users);
+
+        // The aggregates of keys with dimensions once more, by the key without dimensions,
+        // yyyy-MM-ddTHH:mm:00_ACTION, and the values of the dimensions by Dimension ordinal,
+        // null for those not in the key
+        default void acceptValues(String minuteKey, String[] values, long count, long sum) {
+        }
+    }
+
+    private static final DateTimeFormatter MINUTE_BUCKET = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:00")
+            .withZone(ZoneOffset.UTC);
+
+    private static final Dimension[] DIMENSIONS = Dimension.values();
+    // Event fields of the interned dimensions, by Dimension ordinal up to DEVICE
+    private static final int[] FIELDS = {
+            UserTagEventFormat.ORIGIN, UserTagEventFormat.BRAND_ID, UserTagEventFormat.CATEGORY_ID,
+            UserTagEventFormat.COUNTRY };
+    private static final int DEVICE = Dimension.DEVICE.ordinal();
+    private static final int NULL_DEVICE = 3;
+
+    private static final int ID_BITS = 14;
+    private static final int MINUTE_BITS = 17;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+    private static final int ACTION_SHIFT = DIMENSIONS.length;
+    private static final int MINUTE_SHIFT = ACTION_SHIFT + 1;
+    private static final long MINUTE_RANGE = 1L << MINUTE_BITS;
+    private static final long USED = 1L << 63;
+
+    private static final Action[] ACTIONS = Action.values();
+    private static final Device[] DEVICES = Device.values();
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final int[] combinations;
+    // Dimensions of any combination, the others are not interned
+    private final int usedDimensions;
+    private final StringDictionary[] dictionaries = new StringDictionary[FIELDS.length];
+    // Ids of the dimensions of the event being added, shifted into place in the low key
+    private final long[] ids = new long[DIMENSIONS.length];
+
+    // High and low longs of the key in each slot
+    private long[] keys = new long[2 * INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] sums = new long[INITIAL_CAPACITY];
+    // Sketches parallel to the keys, or null without distinctUsers
+    private HyperLogLog[] users;
+    private int size;
+    private long baseMinute;
+
+    MinuteAggregates() {
+        this(false);
+    }
+
+    MinuteAggregates(boolean distinctUsers) {
+        this(distinctUsers, DimensionLattice.parse(DimensionLattice.DEFAULT).combinations());
+    }
+
+    MinuteAggregates(boolean distinctUsers, int[] combinations) {
+        this.combinations = combinations;
+        this.usedDimensions = Arrays.stream(combinations).reduce(0, (a, b) -> a | b);
+        Arrays.setAll(dictionaries, i -> new StringDictionary(1 << ID_BITS));
+        this.users = distinctUsers ? new HyperLogLog[INITIAL_CAPACITY] : null;
+    }
+
+    // Adds the event to each combination of its minute. Returns false, adding nothing, if its
+    // minute is too far from the others or a dictionary is full; it fits once the aggregates
+    // are flushed and cleared.
+    boolean add(UserTagEventView event) {
+        long minute = Math.floorDiv(event.time(), 60_000);
+        if (size == 0) {
+            baseMinute = minute - MINUTE_RANGE / 2;
+        }
+        long offset = minute - baseMinute;
+        if (offset < 0 || offset >= MINUTE_RANGE) {
+            return false;
+        }
+
+        for (int dimension = 0; dimension < FIELDS.length; dimension++) {
+            if ((usedDimensions & 1 << dimension) != 0) {
+                int id = id(dictionaries[dimension], event, FIELDS[dimension]);
+                if (id < 0) {
+                    return false;
+                }
+                ids[dimension] = (long) id << shift(dimension);
+            }
+        }
+        Device device = event.device();
+        ids[DEVICE] = (long) (device != null ? device.ordinal() : NULL_DEVICE) << shift(DEVICE);
+
+        long high = USED | offset << MINUTE_SHIFT | (long) event.action().ordinal() << ACTION_SHIFT;
+        long price = event.price();
+        long cookie = users != null ? cookieHash(event) : 0;
+        for (int combination : combinations) {
+            long low = 0;
+            for (int bits = combination; bits != 0; bits &= bits - 1) {
+                low |= ids[Integer.numberOfTrailingZeros(bits)];
+            }
+            int slot = increment(high | combination, low, 1, price);
+            if (users != null) {
+                if (users[slot] == null) {
+                    users[slot] = new HyperLogLog();
+                }
+                users[slot].add(cookie);
+            }
+        }
+        return true;
+    }
+
+    private static int shift(int dimension) {
+        return dimension * ID_BITS;
+    }
+
+    private static long cookieHash(UserTagEventView event) {
+        int length = event.length(UserTagEventFormat.COOKIE);
+        return HyperLogLog.hash(event.data(), length < 0 ? 0 : event.offset(UserTagEventFormat.COOKIE),
+                Math.max(0, length));
+    }
+
+    private static int id(StringDictionary dictionary, UserTagEventView event, int field) {
+        int length = event.length(field);
+        return dictionary.id(event.data(), length < 0 ? 0 : event.offset(field), length);
+    }
+
+    // Returns the slot of the key
+    private int increment(long high, long low, long count, long sum) {
+        int slot = find(high, low);
+        if (keys[2 * slot] == 0) {
+            // Kept at most half full
+            if ((size + 1) * 2 > counts.length) {
+                grow();
+                slot = find(high, low);
+            }
+            keys[2 * slot] = high;
+            keys[2 * slot + 1] = low;
+            size++;
+        }
+        counts[slot] += count;
+        sums[slot] += sum;
+        return slot;
+    }
+
+    private void increment(long high, long low, long count, long sum, HyperLogLog keyUsers) {
+        int slot = increment(high, low, count, sum);
+        if (keyUsers != null) {
+            if (users[slot] == null) {
+                users[slot] = keyUsers;
+            } else {
+                users[slot].merge(keyUsers);
+            }
+        }
+    }
+
+    // Slot of the key, or the empty slot where it belongs
+    private int find(long high, long low) {
+        int mask = counts.length - 1;
+        // Many keys only differ in their high bits, minute, action or dimensions, so the whole
+        // key is mixed (murmur3 finalizer) before being masked
+        long hash = mix(high ^ mix(low));
+        int slot = (int) hash & mask;
+        while (keys[2 * slot] != 0 && (keys[2 * slot] != high || keys[2 * slot + 1] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long mix(long key) {
+        long hash = (key ^ key >>> 33) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ hash >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldSums = sums;
+        HyperLogLog[] oldUsers = users;
+        keys = new long[oldKeys.length * 2];
+        counts = new long[oldCounts.length * 2];
+        sums = new long[counts.length];
+        users = oldUsers != null ? new HyperLogLog[counts.length] : null;
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldKeys[2 * i] != 0) {
+                int slot = find(oldKeys[2 * i], oldKeys[2 * i + 1]);
+                keys[2 * slot] = oldKeys[2 * i];
+                keys[2 * slot + 1] = oldKeys[2 * i + 1];
+                counts[slot] = oldCounts[i];
+                sums[slot] = oldSums[i];
+                if (users != null) {
+                    users[slot] = oldUsers[i];
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(Sink sink) {
+        forEachBefore(Long.MAX_VALUE, sink);
+    }
+
+    private void forEachBefore(long minute, Sink sink) {
+        // Minute and action prefixes are formatted once per call
+        Map<Long, String> prefixes = new HashMap<>();
+        StringBuilder minuteKey = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            long high = keys[2 * i];
+            long low = keys[2 * i + 1];
+            if (high == 0 || minuteOf(high) >= minute) {
+                continue;
+            }
+            String prefix = prefixes.computeIfAbsent(high >>> ACTION_SHIFT, this::prefix);
+            int combination = (int) (high & ((1 << ACTION_SHIFT) - 1));
+            minuteKey.setLength(0);
+            minuteKey.append(prefix);
+            String[] values = combination != 0 ? new String[DIMENSIONS.length] : null;
+            for (int bits = combination; bits != 0; bits &= bits - 1) {
+                int dimension = Integer.numberOfTrailingZeros(bits);
+                values[dimension] = value(dimension, low);
+                minuteKey.append('_').append(DIMENSIONS[dimension].keySegment(values[dimension]));
+            }
+            sink.accept(minuteKey.toString(), combination, counts[i], sums[i], users != null ? users[i] : null);
+            if (values != null) {
+                sink.acceptValues(prefix, values, counts[i], sums[i]);
+            }
+        }
+    }
+
+    private String value(int dimension, long low) {
+        int id = (int) (low >>> shift(dimension) & ID_MASK);
+        if (dimension == DEVICE) {
+            return id == NULL_DEVICE ? "null" : DEVICES[id].name();
+        }
+        return dictionaries[dimension].value(id);
+    }
+
+    private long minuteOf(long high) {
+        return baseMinute + (high >>> MINUTE_SHIFT & (MINUTE_RANGE - 1));
+    }
+
+    // Passes the aggregates of minutes before the given one to the sink and removes them. The
+    // dictionaries are rebuilt from the values still used once one of them is half full.
+    void removeBefore(long minute, Sink sink) {
+        forEachBefore(minute, sink);
+
+        StringDictionary[] oldDictionaries = dictionaries.clone();
+        boolean compact = isHalfFull();
+        if (compact) {
+            Arrays.setAll(dictionaries, i -> new StringDictionary(1 << ID_BITS));
+        }
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldSums = sums;
+        HyperLogLog[] oldUsers = users;
+        keys = new long[oldKeys.length];
+        counts = new long[oldCounts.length];
+        sums = new long[counts.length];
+        users = oldUsers != null ? new HyperLogLog[counts.length] : null;
+        size = 0;
+        for (int i = 0; i < oldCounts.length; i++) {
+            long high = oldKeys[2 * i];
+            long low = oldKeys[2 * i + 1];
+            if (high == 0 || minuteOf(high) < minute) {
+                continue;
+            }
+            if (compact) {
+                for (int dimension = 0; dimension < FIELDS.length; dimension++) {
+                    if ((high & 1 << dimension) != 0) {
+                        long id = dictionaries[dimension].id(
+                                oldDictionaries[dimension].value((int) (low >>> shift(dimension) & ID_MASK)));
+                        low = low & ~(ID_MASK << shift(dimension)) | id << shift(dimension);
+                    }
+                }
+            }
+            increment(high, low, oldCounts[i], oldSums[i], oldUsers != null ? oldUsers[i] : null);
+        }
+    }
+
+    private boolean isHalfFull() {
+        for (StringDictionary dictionary : dictionaries) {
+            if (dictionary.size() * 2 > 1 << ID_BITS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(users != null);
+        out.writeLong(baseMinute);
+        for (StringDictionary dictionary : dictionaries) {
+            out.writeInt(dictionary.size());
+            for (int id = 0; id < dictionary.size(); id++) {
+                out.writeUTF(dictionary.value(id));
+            }
+        }
+        out.writeInt(size);
+        for (int i = 0; i < counts.length; i++) {
+            if (keys[2 * i] != 0) {
+                out.writeLong(keys[2 * i]);
+                out.writeLong(keys[2 * i + 1]);
+                out.writeLong(counts[i]);
+                out.writeLong(sums[i]);
+                if (users != null) {
+                    byte[] sketch = users[i].toBytes();
+                    out.writeShort(sketch.length);
+                    out.write(sketch);
+                }
+            }
+        }
+    }
+
+    // Keys keep the combinations they were written with, events added later go to the given ones
+    static MinuteAggregates readFrom(DataInput in, int[] combinations) throws IOException {
+        MinuteAggregates aggregates = new MinuteAggregates(in.readBoolean(), combinations);
+        aggregates.baseMinute = in.readLong();
+        // Values are interned again in id order, so they get back their ids
+        for (StringDictionary dictionary : aggregates.dictionaries) {
+            int size = in.readInt();
+            for (int id = 0; id < size; id++) {
+                dictionary.id(in.readUTF());
+            }
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            long high = in.readLong();
+            long low = in.readLong();
+            long count = in.readLong();
+            long sum = in.readLong();
+            HyperLogLog keyUsers = null;
+            if (aggregates.users != null) {
+                byte[] sketch = new byte[in.readShort()];
+                in.readFully(sketch);
+                keyUsers = HyperLogLog.fromBytes(sketch);
+            }
+            aggregates.increment(high, low, count, sum, keyUsers);
+        }
+        return aggregates;
+    }
+
+    private String prefix(long minuteAndAction) {
+        long minute = baseMinute + (minuteAndAction >>> (MINUTE_SHIFT - ACTION_SHIFT) & (MINUTE_RANGE - 1));
+        Action action = ACTIONS[(int) (minuteAndAction & 1)];
+        return MINUTE_BUCKET.format(Instant.ofEpochSecond(minute * 60)) + "_" + action.name();
+    }
+
+    // Dictionaries are kept while they have room, so the next interval finds its strings
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(counts, 0);
+        Arrays.fill(sums, 0);
+        if (users != null) {
+            Arrays.fill(users, null);
+        }
+        size = 0;
+        if (isHalfFull()) {
+            for (StringDictionary dictionary : dictionaries) {
+                dictionary.clear();
+            }
+        }
+    }
+}
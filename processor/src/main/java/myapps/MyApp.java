@@ -1,5 +1,6 @@
 package myapps;
 
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 
@@ -7,39 +8,56 @@ import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.errors.StreamsUncaughtExceptionHandler.StreamThreadExceptionResponse;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
 import org.apache.kafka.streams.state.KeyValueStore;
 import org.apache.kafka.streams.state.StoreBuilder;
 import org.apache.kafka.streams.state.Stores;
 
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Host;
+import com.aerospike.client.async.EventLoops;
+import com.aerospike.client.async.EventPolicy;
+import com.aerospike.client.async.NioEventLoops;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.client.policy.CommitLevel;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.Replica;
+
+import alejandro.salazar.mejia.schema.AggregateLevel;
+
 public class MyApp {
-    private static final String TOPIC = "user_tags";
+    static final String TOPIC = "user_tags";
+    // Threads completing the async aggregate writes of all tasks
+    private static final int EVENT_LOOPS = Integer.getInteger("aerospike.event-loops", 2);
+    private static final String BOOTSTRAP_SERVERS = System.getProperty("kafka.bootstrap-servers", "st112vm103.rtb-lab.pl:9092");
+    // Stream threads of this instance. Each runs the tasks of some partitions of user_tags, so
+    // threads beyond the partitions left to this instance stay idle.
+    private static final int STREAM_THREADS = Integer.getInteger("streams.threads", Runtime.getRuntime().availableProcessors());
+    // Copies of the open buckets store kept up to date on other instances, one of them takes
+    // over a failed task without restoring the changelog
+    private static final int STANDBY_REPLICAS = Integer.getInteger("streams.standby-replicas", 1);
+    // Kept across restarts: a task whose store was checkpointed at a clean shutdown only
+    // restores the changelog records written after it
+    private static final String STATE_DIR = System.getProperty("streams.state-dir",
+            System.getProperty("user.home") + "/kafka-streams");
 
     public static void main(String[] args) {
-        Properties props = new Properties();
-        props.put(StreamsConfig.APPLICATION_ID_CONFIG, "aggregator");
-        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "st112vm103.rtb-lab.pl:9092");
-        props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
-        props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass());
+        Properties props = streamsProperties("aggregator", BOOTSTRAP_SERVERS, STREAM_THREADS, STANDBY_REPLICAS, STATE_DIR);
 
-        StoreBuilder<KeyValueStore<String, Long>> countStoreBuilder = Stores.keyValueStoreBuilder(
-                Stores.persistentKeyValueStore("actions-count"),
-                Serdes.String(),
-                Serdes.Long()
-        );
+        // One client for all tasks, they would otherwise open connections each
+        String[] aerospikeSeeds = { "st112vm106.rtb-lab.pl", "st112vm107.rtb-lab.pl" };
+        int port = 3000;
+        EventLoops eventLoops = new NioEventLoops(new EventPolicy(), EVENT_LOOPS);
+        AerospikeClient aerospikeClient = new AerospikeClient(defaultClientPolicy(eventLoops),
+                Arrays.stream(aerospikeSeeds).map(seed -> new Host(seed, port)).toArray(Host[]::new));
 
-        StoreBuilder<KeyValueStore<String, Long>> sumStoreBuilder = Stores.keyValueStoreBuilder(
-                Stores.persistentKeyValueStore("actions-sum"),
-                Serdes.String(),
-                Serdes.Long()
-        );
-
-        Topology builder = new Topology();
-        builder.addSource("source", TOPIC)
-                .addProcessor("processor", PurchaseProcessor::new, "source")
-                .addStateStore(countStoreBuilder, "processor")
-                .addStateStore(sumStoreBuilder, "processor");
+        Topology builder = topology(TOPIC, () -> new PurchaseProcessor(aerospikeClient));
 
         final KafkaStreams streams = new KafkaStreams(builder, props);
+        // Aggregate flushes that keep failing are thrown, the tasks of the thread start over
+        // from their last commit in a new one
+        streams.setUncaughtExceptionHandler(exception -> StreamThreadExceptionResponse.REPLACE_THREAD);
         final CountDownLatch latch = new CountDownLatch(1);
 
         // attach shutdown handler to catch control-c
@@ -47,6 +65,8 @@ public class MyApp {
             @Override
             public void run() {
                 streams.close();
+                aerospikeClient.close();
+                eventLoops.close();
                 latch.countDown();
             }
         });
@@ -59,4 +79,57 @@ public class MyApp {
         }
         System.exit(0);
     }
+
+    static Properties streamsProperties(String applicationId, String bootstrapServers, int threads, int standbyReplicas,
+            String stateDir) {
+        Properties props = new Properties();
+        props.put(StreamsConfig.APPLICATION_ID_CONFIG, applicationId);
+        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(StreamsConfig.NUM_STREAM_THREADS_CONFIG, threads);
+        props.put(StreamsConfig.NUM_STANDBY_REPLICAS_CONFIG, standbyReplicas);
+        props.put(StreamsConfig.STATE_DIR_CONFIG, stateDir);
+        props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
+        props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass());
+        // Offsets are committed by PurchaseProcessor after flushing all the tasks of the thread
+        // to Aerospike, the aggregates of events after the committed offsets are only held in
+        // memory
+        props.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, Long.MAX_VALUE);
+        // Exactly once in Aerospike is kept by the epochs of the aggregate writes, see
+        // PartitionAggregator. Transactions commit the snapshots of the open buckets in the
+        // changelog along with the offsets they were taken at.
+        props.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.EXACTLY_ONCE_V2);
+        return props;
+    }
+
+    static Topology topology(String topic, ProcessorSupplier<String, byte[], String, String> processors) {
+        // Snapshots of the open minute buckets, persistent so that restarts find them on disk
+        StoreBuilder<KeyValueStore<Integer, byte[]>> openBucketsStoreBuilder = Stores.keyValueStoreBuilder(
+                Stores.persistentKeyValueStore(PurchaseProcessor.OPEN_BUCKETS_STORE),
+                Serdes.Integer(),
+                Serdes.ByteArray()
+        );
+
+        Topology builder = new Topology();
+        // Values are binary encoded events, read in place by PurchaseProcessor
+        builder.addSource("source", Serdes.String().deserializer(), Serdes.ByteArray().deserializer(), topic)
+                .addProcessor("processor", processors, "source")
+                .addStateStore(openBucketsStoreBuilder, "processor");
+        return builder;
+    }
+
+    private static ClientPolicy defaultClientPolicy(EventLoops eventLoops) {
+        ClientPolicy defaultClientPolicy = new ClientPolicy();
+        defaultClientPolicy.eventLoops = eventLoops;
+        defaultClientPolicy.readPolicyDefault.replica = Replica.MASTER_PROLES;
+        defaultClientPolicy.readPolicyDefault.socketTimeout = 1000;
+        defaultClientPolicy.readPolicyDefault.totalTimeout = 1000;
+        defaultClientPolicy.writePolicyDefault.socketTimeout = 15000;
+        defaultClientPolicy.writePolicyDefault.totalTimeout = 15000;
+        defaultClientPolicy.writePolicyDefault.maxRetries = 1;
+        defaultClientPolicy.writePolicyDefault.commitLevel = CommitLevel.COMMIT_MASTER;
+        defaultClientPolicy.writePolicyDefault.recordExistsAction = RecordExistsAction.UPDATE;
+        defaultClientPolicy.writePolicyDefault.sendKey = true;
+        defaultClientPolicy.writePolicyDefault.expiration = AggregateLevel.MINUTE.expirationSeconds(); // 1 day
+        return defaultClientPolicy;
+    }
 }
@@ -0,0 +1,454 @@
+package myapps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.aerospike.client.AerospikeException;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.HyperLogLog;
+import alejandro.salazar.mejia.schema.Sketch;
+import alejandro.salazar.mejia.schema.SpaceSaving;
+import alejandro.salazar.mejia.schema.UserTagEventView;
+
+// Aggregates of the events of one partition, each minute bucket written once when it closes.
+//
+// Buckets close by event time. The watermark is the latest event time read minus the allowed
+// lateness, and a bucket closes at the end of a batch once the watermark passes its end by the
+// grace period. Until then its aggregates are only held here, and in snapshots taken at commits
+// (see snapshot()). Events of closed buckets are late: they are counted, and added to their
+// bucket in the next batch. A flush adding late events records the earliest minute they were in
+// (see AggregateWriter.corrected), so front nodes caching closed buckets drop them.
+// Every closed minute, with its hour and day, is one add per partition and combination of
+// dimensions kept: tasks hold partial aggregates of the partitions they read, the adds merge
+// them. With topValues, records without dimensions also get the values of each dimension kept
+// alone, ranked in SpaceSaving sketches from the exact aggregates of its keys, and the tuples of
+// values of the combinations queries roll up to (see DimensionLattice).
+//
+// Writes go in batches, each with an epoch (see AggregateWriter): the offset after the last event
+// read when the batch ended. Its buckets are those closed by then and the late events read
+// before, both fixed by the events up to the epoch. The epoch is recorded before the batch is
+// written. A task reading the partition again from the last commit ends its batches at the
+// recorded epochs: records reached by a batch before the failure ignore it, the others receive
+// it. Batches may end earlier than recorded, on a flush, but never span a recorded epoch, so
+// every record receives each event once.
+final class PartitionAggregator {
+
+    private static final int WRITE_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+    // Writes that only lost sketch merges to other partitions are tried again after a random
+    // delay up to this, without using up the attempts: the contention ends with their flushes
+    private static final long MAX_RACE_BACKOFF_MILLIS = 1_000;
+
+    // Changes of one record. Hour records also get the minutes of the hour that changed.
+    private static final class Write {
+        final AggregateLevel level;
+        final String key;
+        final int combination;
+        long count;
+        long sum;
+        final long[] minuteCounts;
+        final long[] minuteSums;
+        // Sketches of the cookies added, null without distinct users
+        HyperLogLog users;
+        final HyperLogLog[] minuteUsers;
+        // Only for records without dimensions: values of each dimension by count then by sum,
+        // created on the first one, and the tuples seen by combination rolled up to
+        final SpaceSaving[] tops = new SpaceSaving[2 * Dimension.values().length];
+        final Map<Integer, Set<String>> tuples = new TreeMap<>();
+
+        Write(AggregateLevel level, String key, int combination, boolean distinctUsers) {
+            this.level = level;
+            this.key = key;
+            this.combination = combination;
+            this.minuteCounts = level == AggregateLevel.HOUR ? new long[60] : null;
+            this.minuteSums = level == AggregateLevel.HOUR ? new long[60] : null;
+            this.minuteUsers = level == AggregateLevel.HOUR && distinctUsers ? new HyperLogLog[60] : null;
+        }
+
+        void add(int minuteOfHour, long count, long sum, HyperLogLog users) {
+            this.count += count;
+            this.sum += sum;
+            if (minuteCounts != null) {
+                minuteCounts[minuteOfHour] += count;
+                minuteSums[minuteOfHour] += sum;
+            }
+            if (users != null) {
+                // Merged into sketches of their own, those passed belong to MinuteAggregates
+                this.users = merge(this.users, users);
+                if (minuteUsers != null) {
+                    minuteUsers[minuteOfHour] = merge(minuteUsers[minuteOfHour], users);
+                }
+            }
+        }
+
+        void addTop(Dimension dimension, String value, long count, long sum) {
+            int byCount = 2 * dimension.ordinal();
+            if (tops[byCount] == null) {
+                tops[byCount] = new SpaceSaving();
+                tops[byCount + 1] = new SpaceSaving();
+            }
+            tops[byCount].add(value, count);
+            tops[byCount + 1].add(value, sum);
+        }
+
+        // Beyond one more than the record keeps the tuples are dropped, the record has too many
+        void addTuple(int combination, String tuple) {
+            Set<String> seen = tuples.computeIfAbsent(combination, c -> new HashSet<>());
+            if (seen.size() <= DimensionLattice.MAX_TUPLES) {
+                seen.add(tuple);
+            }
+        }
+
+        // Sketches to merge into the bins of the record
+        Map<String, Sketch> sketches() {
+            Map<String, Sketch> sketches = new LinkedHashMap<>();
+            if (users != null) {
+                sketches.put(HyperLogLog.BIN, users);
+            }
+            for (Dimension dimension : Dimension.values()) {
+                if (tops[2 * dimension.ordinal()] != null) {
+                    sketches.put(dimension.topBin(false), tops[2 * dimension.ordinal()]);
+                    sketches.put(dimension.topBin(true), tops[2 * dimension.ordinal() + 1]);
+                }
+            }
+            return sketches;
+        }
+
+        // Tuples seen by map bin
+        Map<String, Set<String>> valueSets() {
+            Map<String, Set<String>> valueSets = new LinkedHashMap<>();
+            tuples.forEach((combination, seen) -> valueSets.put(DimensionLattice.tuplesBin(combination), seen));
+            return valueSets;
+        }
+
+        // Sketches to merge into the minute maps of an hour record, by minute of the hour
+        Map<String, Sketch[]> minuteSketches() {
+            return minuteUsers != null && users != null
+                    ? Collections.singletonMap(HyperLogLog.BIN, minuteUsers) : Collections.emptyMap();
+        }
+
+        private static HyperLogLog merge(HyperLogLog into, HyperLogLog users) {
+            if (into == null) {
+                into = new HyperLogLog();
+            }
+            into.merge(users);
+            return into;
+        }
+    }
+
+    // Writes of the minutes of a batch, and of their hours and days. Minutes are written into the
+    // minute maps of their hour record, records per minute only while readers may still need them.
+    private final class Batch implements MinuteAggregates.Sink {
+        final long epoch;
+        final Map<String, Write> minutes = new HashMap<>();
+        final Map<String, Write> hours = new HashMap<>();
+        final Map<String, Write> days = new HashMap<>();
+
+        Batch(long epoch) {
+            this.epoch = epoch;
+        }
+
+        @Override
+        public void accept(String key, int combination, long count, long sum, HyperLogLog users) {
+            int minuteOfHour = minuteOfHour(key);
+            if (writeMinuteRecords) {
+                write(minutes, AggregateLevel.MINUTE, key, combination).add(minuteOfHour, count, sum, users);
+            }
+            write(hours, AggregateLevel.HOUR, AggregateLevel.HOUR.keyOf(key), combination)
+                    .add(minuteOfHour, count, sum, users);
+            write(days, AggregateLevel.DAY, AggregateLevel.DAY.keyOf(key), combination)
+                    .add(minuteOfHour, count, sum, users);
+        }
+
+        @Override
+        public void acceptValues(String minuteKey, String[] values, long count, long sum) {
+            int combination = 0;
+            Dimension single = null;
+            for (Dimension dimension : Dimension.values()) {
+                if (values[dimension.ordinal()] != null) {
+                    combination |= dimension.bit();
+                    single = dimension;
+                }
+            }
+            boolean rolledUpTo = (rollupTargets & 1L << combination) != 0;
+            for (Write write : withoutDimensions(minuteKey)) {
+                if (topValues && Integer.bitCount(combination) == 1) {
+                    write.addTop(single, values[single.ordinal()], count, sum);
+                }
+                if (rolledUpTo) {
+                    write.addTuple(combination, DimensionLattice.tuple(values, combination));
+                }
+            }
+        }
+
+        // Writes of the minute, hour and day records without dimensions. Minute records get the
+        // values even without writeMinuteRecords: unlike counts, those of a minute are not in the
+        // minute maps of its hour.
+        private Write[] withoutDimensions(String minuteKey) {
+            return new Write[] {
+                    write(minutes, AggregateLevel.MINUTE, minuteKey, 0),
+                    write(hours, AggregateLevel.HOUR, AggregateLevel.HOUR.keyOf(minuteKey), 0),
+                    write(days, AggregateLevel.DAY, AggregateLevel.DAY.keyOf(minuteKey), 0) };
+        }
+
+        private Write write(Map<String, Write> writes, AggregateLevel level, String key, int combination) {
+            return writes.computeIfAbsent(key, k -> new Write(level, k, combination, distinctUsers));
+        }
+
+        boolean isEmpty() {
+            return hours.isEmpty();
+        }
+
+        List<Write> writes() {
+            List<Write> writes = new ArrayList<>(minutes.values());
+            writes.addAll(hours.values());
+            writes.addAll(days.values());
+            return writes;
+        }
+    }
+
+    private final int partition;
+    private final AggregateWriter writer;
+    private final boolean writeMinuteRecords;
+    private final boolean distinctUsers;
+    private final boolean topValues;
+    private final int[] combinations;
+    // Bits of the combinations rolled up to
+    private final long rollupTargets;
+    private final long latenessMillis;
+    private final long graceMillis;
+
+    // Ended batches not written yet
+    private final Deque<Batch> batches = new ArrayDeque<>();
+    // Aggregates of the buckets not closed yet, and of the late events since the last batch
+    private MinuteAggregates open;
+    private final MinuteAggregates corrections;
+    private long maxEventTime = Long.MIN_VALUE;
+    // Buckets of minutes before this one are closed
+    private long closedBefore = Long.MIN_VALUE;
+    private long lateEvents;
+    // Earliest minute of the late events not flushed yet, Long.MAX_VALUE without any
+    private long correctedFrom = Long.MAX_VALUE;
+    // Records written by combination mask, batches written again included
+    private final long[] writes = new long[1 << Dimension.values().length];
+    // Recorded epochs after the first offset read, read along with it
+    private Deque<Long> recordedEpochs;
+    private long nextOffset;
+
+    PartitionAggregator(int partition, AggregateWriter writer, boolean writeMinuteRecords, boolean distinctUsers,
+            boolean topValues, DimensionLattice lattice, long latenessMillis, long graceMillis) {
+        this.partition = partition;
+        this.writer = writer;
+        this.writeMinuteRecords = writeMinuteRecords;
+        this.distinctUsers = distinctUsers;
+        this.topValues = topValues;
+        this.combinations = lattice.combinations();
+        long rollupTargets = 0;
+        for (int target : lattice.rollupTargets()) {
+            rollupTargets |= 1L << target;
+        }
+        this.rollupTargets = rollupTargets;
+        this.open = new MinuteAggregates(distinctUsers, combinations);
+        this.corrections = new MinuteAggregates(distinctUsers, combinations);
+        this.latenessMillis = latenessMillis;
+        this.graceMillis = graceMillis;
+    }
+
+    void add(long offset, UserTagEventView event) {
+        if (recordedEpochs == null) {
+            recordedEpochs = new ArrayDeque<>(new TreeSet<>(writer.flushEpochs(partition)).tailSet(offset, false));
+        }
+        while (!recordedEpochs.isEmpty() && recordedEpochs.peek() <= offset) {
+            endBatch(recordedEpochs.poll());
+        }
+        nextOffset = offset + 1;
+
+        if (event.action() != Action.BUY && event.action() != Action.VIEW) {
+            return;
+        }
+        if (Math.floorDiv(event.time(), 60_000) < closedBefore) {
+            lateEvents++;
+            correct(offset, event);
+        } else if (!open.add(event)) {
+            // Too far in time from the open buckets or too many distinct values, closing buckets
+            // may make room. Otherwise the event is written along with the late ones.
+            endBatch(offset);
+            if (!open.add(event)) {
+                correct(offset, event);
+            }
+        }
+        // Only after batches ending at this offset, which must not depend on the event
+        maxEventTime = Math.max(maxEventTime, event.time());
+    }
+
+    private void correct(long offset, UserTagEventView event) {
+        correctedFrom = Math.min(correctedFrom, Math.floorDiv(event.time(), 60_000));
+        if (!corrections.add(event)) {
+            endBatch(offset);
+            corrections.add(event);
+        }
+    }
+
+    private void endBatch(long epoch) {
+        if (maxEventTime != Long.MIN_VALUE) {
+            closedBefore = Math.max(closedBefore,
+                    Math.floorDiv(maxEventTime - latenessMillis - graceMillis, 60_000));
+        }
+        Batch batch = new Batch(epoch);
+        open.removeBefore(closedBefore, batch);
+        corrections.forEach(batch);
+        corrections.clear();
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+    }
+
+    // Writes the buckets closed and the late events read so far, after which their offsets may be
+    // committed along with a snapshot. Throws if writes keep failing, keeping what was not
+    // written: writing it again is harmless, but the offsets must not be committed before it is.
+    // Sketch merges lost to other partitions are not failures, they are tried until they succeed.
+    void flush() {
+        endBatch(nextOffset);
+        while (!batches.isEmpty()) {
+            write(batches.peek());
+            batches.poll();
+        }
+        if (closedBefore != Long.MIN_VALUE) {
+            writer.closedUntil(partition, closedBefore * 60_000);
+        }
+        if (correctedFrom != Long.MAX_VALUE) {
+            writer.corrected(partition, nextOffset, correctedFrom * 60_000);
+            correctedFrom = Long.MAX_VALUE;
+        }
+    }
+
+    // Late events read so far
+    long lateEvents() {
+        return lateEvents;
+    }
+
+    // Records of the combination written so far, for its write amplification
+    long writes(int combination) {
+        return writes[combination];
+    }
+
+    // Open buckets and the watermark, taken right after a flush. A task restored from the
+    // snapshot committed along with an offset goes on from that offset like the one that took it.
+    byte[] snapshot() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(maxEventTime);
+            out.writeLong(closedBefore);
+            open.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void restore(byte[] snapshot) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            maxEventTime = in.readLong();
+            closedBefore = in.readLong();
+            open = MinuteAggregates.readFrom(in, combinations);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(Batch batch) {
+        writer.startFlush(partition, batch.epoch);
+
+        // Writes are all sent before waiting for them. Those that failed are tried again with
+        // the same epoch, records they reached skip them.
+        List<Write> pending = batch.writes();
+        for (Write write : pending) {
+            writes[write.combination]++;
+        }
+        int attempt = 1;
+        for (int races = 1; ; races++) {
+            Queue<Write> failed = new ConcurrentLinkedQueue<>();
+            // Of writes failing otherwise than by losing a race
+            AtomicReference<AerospikeException> lastError = new AtomicReference<>();
+            CountDownLatch completed = new CountDownLatch(pending.size());
+            for (Write write : pending) {
+                writer.add(write.level, write.key, partition, batch.epoch, write.count, write.sum,
+                        write.minuteCounts, write.minuteSums, write.sketches(), write.minuteSketches(),
+                        write.valueSets(), error -> {
+                            if (error != null) {
+                                failed.add(write);
+                                if (!AggregateWriter.lostRace(error)) {
+                                    lastError.set(error);
+                                }
+                            }
+                            completed.countDown();
+                        });
+            }
+            await(completed);
+            if (failed.isEmpty()) {
+                return;
+            }
+            if (lastError.get() == null) {
+                sleep(ThreadLocalRandom.current().nextLong(
+                        Math.min(MAX_RACE_BACKOFF_MILLIS, RETRY_BACKOFF_MILLIS << Math.min(races, 10)) + 1));
+            } else if (attempt == WRITE_ATTEMPTS) {
+                throw new IllegalStateException(failed.size() + " aggregate writes of partition " + partition
+                        + " failed " + WRITE_ATTEMPTS + " times", lastError.get());
+            } else {
+                sleep(RETRY_BACKOFF_MILLIS * attempt++);
+            }
+            pending = new ArrayList<>(failed);
+        }
+    }
+
+    // Minutes of yyyy-MM-ddTHH:mm:00 keys
+    private static int minuteOfHour(String minuteKey) {
+        return (minuteKey.charAt(14) - '0') * 10 + minuteKey.charAt(15) - '0';
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for aggregate writes", e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying aggregate writes", e);
+        }
+    }
+}
@@ -1,56 +0,0 @@
-package myapps;
-
-import com.fasterxml.jackson.annotation.JsonProperty;
-
-public class Product {
-    @JsonProperty("product_id")
-    private int productId;
-    @JsonProperty("brand_id")
-    private String brandId;
-    @JsonProperty("category_id")
-    private String categoryId;
-    @JsonProperty("price")
-    private int price;
-
-    public Product() {
-    }
-
-    public Product(int productId, String brandId, String categoryId, int price) {
-        this.productId = productId;
-        this.brandId = brandId;
-        this.categoryId = categoryId;
-        this.price = price;
-    }
-
-    public int getProductId() {
-        return productId;
-    }
-
-    public void setProductId(int productId) {
-        this.productId = productId;
-    }
-
-    public String getBrandId() {
-        return brandId;
-    }
-
-    public void setBrandId(String brandId) {
-        this.brandId = brandId;
-    }
-
-    public String getCategoryId() {
-        return categoryId;
-    }
-
-    public void setCategoryId(String categoryId) {
-        this.categoryId = categoryId;
-    }
-
-    public int getPrice() {
-        return price;
-    }
-
-    public void setPrice(int price) {
-        this.price = price;
-    }
-}
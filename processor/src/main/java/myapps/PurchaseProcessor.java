@@ -1,141 +1,209 @@
 package myapps;
 
 
+import java.io.ByteArrayOutputStream;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
 
 
-import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.streams.processor.PunctuationType;
 import org.apache.kafka.streams.processor.api.Processor;
 import org.apache.kafka.streams.processor.api.ProcessorContext;
 import org.apache.kafka.streams.processor.api.Record;
-import org.apache.kafka.streams.state.KeyValueIterator;
 import org.apache.kafka.streams.state.KeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.aerospike.client.AerospikeClient;
-import com.aerospike.client.Bin;
-import com.aerospike.client.Host;
-import com.aerospike.client.Key;
-import com.aerospike.client.Operation;
-import com.aerospike.client.policy.ClientPolicy;
-import com.aerospike.client.policy.CommitLevel;
-import com.aerospike.client.policy.RecordExistsAction;
-import com.aerospike.client.policy.Replica;
-import com.aerospike.client.policy.WritePolicy;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
-public class PurchaseProcessor implements Processor<String, String, String, String> {
-    private KeyValueStore<String, Long> countStore;
-    private KeyValueStore<String, Long> sumStore;
-    private AerospikeClient aerospikeClient;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+import alejandro.salazar.mejia.schema.UserTagEventView;
+
+public class PurchaseProcessor implements Processor<String, byte[], String, String> {
+    private static final Logger log = LoggerFactory.getLogger(PurchaseProcessor.class);
+    static final String OPEN_BUCKETS_STORE = "open-buckets";
+    private ProcessorContext<String, String> context;
+    // Aggregates of the buckets not closed yet. A snapshot of them is put in the open buckets
+    // store right after each flush and committed along with the offsets; a failed task starts
+    // over from both and reads again the events it lost.
+    private PartitionAggregator aggregator;
+    // Snapshot in chunks numbered from 0, each within a changelog record
+    private KeyValueStore<Integer, byte[]> openBuckets;
+    private int snapshotChunks;
+    private Sensor lateEventsSensor;
+    private long lateEventsRecorded;
+    // Records that are neither a binary nor a JSON event, skipped
+    private Sensor undecodableSensor;
+    // Records written by combination, per event its write amplification
+    private final Map<Integer, Sensor> writesSensors = new LinkedHashMap<>();
+    private final Map<Integer, Long> writesRecorded = new HashMap<>();
+    // Writers of the tasks, sharing the Aerospike client of the JVM closed by MyApp
+    private final Supplier<AggregateWriter> writers;
+    // Flushes of the tasks of this stream thread, all done before it commits
+    private FlushGroup flushGroup;
+    private final Runnable flush = this::flush;
+    private final UserTagEventView view = new UserTagEventView();
     private static final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    // Records per minute are still written for front nodes reading minutes before their
+    // aggregates.packed-since. Run with -Daggregates.minute-records=false once no front node
+    // needs them, that is a day (their expiration) after packed-since.
+    private static final boolean WRITE_MINUTE_RECORDS =
+            Boolean.parseBoolean(System.getProperty("aggregates.minute-records", "true"));
+    // HyperLogLog sketches of the cookies of every bucket, for the COUNT_DISTINCT_USERS aggregate.
+    // Writes of records with sketches read them first, -Daggregates.distinct-users=false saves that.
+    private static final boolean DISTINCT_USERS =
+            Boolean.parseBoolean(System.getProperty("aggregates.distinct-users", "true"));
+    // SpaceSaving sketches ranking the values of each dimension by minute, hour and day, for /top.
+    // Written with the sketches of distinct users, read first the same way.
+    private static final boolean TOP_VALUES =
+            Boolean.parseBoolean(System.getProperty("aggregates.top-values", "true"));
+    // Combinations of dimensions with records, see DimensionLattice. The front nodes need the same
+    // aggregates.combinations to know which queries to roll up.
+    private static final DimensionLattice LATTICE =
+            DimensionLattice.parse(System.getProperty("aggregates.combinations", DimensionLattice.DEFAULT));
+    // Aggregate writes of a task sent without waiting for the previous ones
+    private static final int WRITES_IN_FLIGHT = Integer.getInteger("aggregates.writes-in-flight", 256);
+    // Flushes of the tasks of a stream thread are FLUSH_SHARE times as far apart as the last
+    // took, so they take at most 1/FLUSH_SHARE of the thread, within these bounds (see
+    // FlushGroup). Aggregates are written MIN_FLUSH_INTERVAL_MS after their events when the
+    // writes keep up.
+    private static final long MIN_FLUSH_INTERVAL_MS = Long.getLong("aggregates.flush.min-interval-ms", 1_000);
+    private static final long MAX_FLUSH_INTERVAL_MS = Long.getLong("aggregates.flush.max-interval-ms", 15_000);
+    private static final int FLUSH_SHARE = 4;
+    private static final Duration FLUSH_CHECK = Duration.ofMillis(250);
+    // Replaced stream threads start a group of their own
+    private static final ThreadLocal<FlushGroup> FLUSH_GROUPS = ThreadLocal.withInitial(
+            () -> new FlushGroup(MIN_FLUSH_INTERVAL_MS, MAX_FLUSH_INTERVAL_MS, FLUSH_SHARE));
+    // Minute buckets close once events read are this late after their end plus the grace
+    // period. Events of closed buckets are late, they are counted and added on the next flush.
+    private static final long LATENESS_MS = Long.getLong("aggregates.window.lateness-ms", 30_000);
+    private static final long GRACE_MS = Long.getLong("aggregates.window.grace-ms", 30_000);
+    private static final int SNAPSHOT_CHUNK_BYTES = 512 * 1024;
+
+    PurchaseProcessor(AerospikeClient aerospikeClient) {
+        this(() -> new AerospikeAggregateWriter(aerospikeClient, MyApp.TOPIC, WRITES_IN_FLIGHT));
+    }
+
+    PurchaseProcessor(Supplier<AggregateWriter> writers) {
+        this.writers = writers;
+    }
 
 
     @Override
     public void init(ProcessorContext<String, String> context) {
-        countStore = context.getStateStore("actions-count");
-        sumStore = context.getStateStore("actions-sum");
-        String[] aerospikeSeeds = { "st112vm106.rtb-lab.pl", "st112vm107.rtb-lab.pl" };
-        int port = 3000;
-        aerospikeClient = new AerospikeClient(defaultClientPolicy(), Arrays.stream(aerospikeSeeds).map(seed -> new Host(seed, port)).toArray(Host[]::new));
-        context.schedule(Duration.ofSeconds(15), PunctuationType.WALL_CLOCK_TIME, timestamp -> flushToAerospike());
+        this.context = context;
+        // Tasks read a single partition of the topic
+        aggregator = new PartitionAggregator(context.taskId().partition(), writers.get(), WRITE_MINUTE_RECORDS,
+                DISTINCT_USERS, TOP_VALUES, LATTICE, LATENESS_MS, GRACE_MS);
+        for (int combination : LATTICE.combinations()) {
+            writesSensors.put(combination, context.metrics().addRateTotalSensor("aggregates",
+                    context.taskId().toString(), "writes-" + DimensionLattice.label(combination),
+                    Sensor.RecordingLevel.INFO));
+        }
+        openBuckets = context.getStateStore(OPEN_BUCKETS_STORE);
+        restoreSnapshot();
+        lateEventsSensor = context.metrics().addRateTotalSensor("aggregates", context.taskId().toString(),
+                "late-events", Sensor.RecordingLevel.INFO);
+        undecodableSensor = context.metrics().addRateTotalSensor("aggregates", context.taskId().toString(),
+                "undecodable-records", Sensor.RecordingLevel.INFO);
+        // Processors are initialized and run on the stream thread of their task
+        flushGroup = FLUSH_GROUPS.get();
+        flushGroup.join(flush);
+        context.schedule(FLUSH_CHECK, PunctuationType.WALL_CLOCK_TIME, timestamp -> {
+            if (flushGroup.isDue(timestamp)) {
+                flushToAerospike();
+            }
+        });
     }
 
     @Override
-    public void process(Record<String, String> record) {
+    public void process(Record<String, byte[]> record) {
+        UserTagEventView event;
         try {
-            UserTagEvent event = objectMapper.readValue(record.value(), UserTagEvent.class);
-            String keyPrefix = record.key();
-
-            // TODO: Remove this line
-            // System.out.println("Processing event: " + event);
-
-            if (event.getAction() == Action.BUY || event.getAction() == Action.VIEW) {
-                String actionType = event.getAction().name();
-                updateMetrics(keyPrefix, actionType, event);
-            }
+            event = read(record.value());
         } catch (Exception e) {
-            e.printStackTrace();
+            undecodableSensor.record();
+            log.warn("Skipping undecodable record at offset {} of {}", context.recordMetadata().get().offset(),
+                    context.taskId(), e);
+            return;
         }
-    }
-
-    private void updateMetrics(String keyPrefix, String actionType, UserTagEvent event) {
-        String[] dimensions = {
-            "", event.getOrigin(), event.getProductInfo().getBrandId(), event.getProductInfo().getCategoryId(),
-            event.getOrigin() + "_" + event.getProductInfo().getBrandId(),
-            event.getOrigin() + "_" + event.getProductInfo().getCategoryId(),
-            event.getProductInfo().getBrandId() + "_" + event.getProductInfo().getCategoryId(),
-            event.getOrigin() + "_" + event.getProductInfo().getBrandId() + "_" + event.getProductInfo().getCategoryId()
-        };
-
-        for (String dimension : dimensions) {
-            String countSumKey = keyPrefix + "_" + actionType + (dimension.isEmpty() ? "" : "_" + dimension);
-
-            // TODO: Remove this line
-            // System.out.println("Incrementing count and sum for key: " + countSumKey);
 
-            incrementStore(countStore, countSumKey, 1L);
-            incrementStore(sumStore, countSumKey, (long) event.getProductInfo().getPrice());
-        }
+        // Records are keyed by cookie, the bucket comes from the event itself
+        aggregator.add(context.recordMetadata().get().offset(), event);
     }
 
-    private void incrementStore(KeyValueStore<String, Long> store, String key, Long value) {
-        Long oldValue = store.get(key);
-        store.put(key, (oldValue == null ? 0 : oldValue) + value);
+    // Only the fields needed for the aggregates are read. JSON values produced before the
+    // binary format was introduced are converted first.
+    private UserTagEventView read(byte[] value) throws Exception {
+        if (!UserTagEventFormat.isBinary(value)) {
+            value = UserTagEventFormat.encode(objectMapper.readValue(value, UserTagEvent.class));
+        }
+        return view.wrap(value);
     }
 
+    // The commit covers all the tasks of the thread, so they are all flushed first. A failed
+    // flush is thrown out of the punctuation without committing: the stream thread is replaced,
+    // and its tasks read again from the last commit (see PartitionAggregator)
     private void flushToAerospike() {
+        flushGroup.flush();
+        context.commit();
+    }
 
-        WritePolicy writePolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
-
-        try (final KeyValueIterator<String, Long> countIter = countStore.all()) {
-            while (countIter.hasNext()) {
-                KeyValue<String, Long> countEntry = countIter.next();
-                String key = countEntry.key;
-                long localCount = countEntry.value;
-                long localSum = sumStore.get(key) != null ? sumStore.get(key) : 0L;
-
-                Key aerospikeKey = new Key("mimuw", "aggregates", key);
-                Bin countBin = new Bin("count", localCount);
-                Bin sumBin = new Bin("sum_price", localSum);
+    private void flush() {
+        aggregator.flush();
+        saveSnapshot();
+        lateEventsSensor.record(aggregator.lateEvents() - lateEventsRecorded);
+        lateEventsRecorded = aggregator.lateEvents();
+        writesSensors.forEach((combination, sensor) -> {
+            long writes = aggregator.writes(combination);
+            sensor.record(writes - writesRecorded.getOrDefault(combination, 0L));
+            writesRecorded.put(combination, writes);
+        });
+    }
 
-                // Atomically add the local count and sum to the values in Aerospike
-                aerospikeClient.operate(writePolicy, aerospikeKey,
-                    Operation.add(countBin),
-                    Operation.add(sumBin)
-                );
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            clearStores();
+    private void saveSnapshot() {
+        byte[] snapshot = aggregator.snapshot();
+        int chunks = 0;
+        for (int from = 0; from < snapshot.length; from += SNAPSHOT_CHUNK_BYTES) {
+            openBuckets.put(chunks++, Arrays.copyOfRange(snapshot, from, Math.min(snapshot.length, from + SNAPSHOT_CHUNK_BYTES)));
+        }
+        for (int chunk = chunks; chunk < snapshotChunks; chunk++) {
+            openBuckets.delete(chunk);
         }
+        snapshotChunks = chunks;
     }
 
-    private void clearStores() {
-        try (final KeyValueIterator<String, Long> countIter = countStore.all()) {
-            while (countIter.hasNext()) {
-                String currentKey = countIter.next().key;
-                countStore.delete(currentKey);
-                sumStore.delete(currentKey);
-            }
+    private void restoreSnapshot() {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        byte[] chunk;
+        while ((chunk = openBuckets.get(snapshotChunks)) != null) {
+            snapshot.write(chunk, 0, chunk.length);
+            snapshotChunks++;
+        }
+        if (snapshotChunks > 0) {
+            aggregator.restore(snapshot.toByteArray());
         }
     }
 
-    private static ClientPolicy defaultClientPolicy() {
-        ClientPolicy defaultClientPolicy = new ClientPolicy();
-        defaultClientPolicy.readPolicyDefault.replica = Replica.MASTER_PROLES;
-        defaultClientPolicy.readPolicyDefault.socketTimeout = 1000;
-        defaultClientPolicy.readPolicyDefault.totalTimeout = 1000;
-        defaultClientPolicy.writePolicyDefault.socketTimeout = 15000;
-        defaultClientPolicy.writePolicyDefault.totalTimeout = 15000;
-        defaultClientPolicy.writePolicyDefault.maxRetries = 1;
-        defaultClientPolicy.writePolicyDefault.commitLevel = CommitLevel.COMMIT_MASTER;
-        defaultClientPolicy.writePolicyDefault.recordExistsAction = RecordExistsAction.UPDATE;
-        defaultClientPolicy.writePolicyDefault.sendKey = true;
-        defaultClientPolicy.writePolicyDefault.expiration = 60 * 60 * 24; // 1 day
-        return defaultClientPolicy;
+    // Processors are closed before the offsets of their task are committed, so the closed
+    // buckets are written, and the open ones put in the store, before the next owner of the
+    // partition starts from them. The tasks the thread keeps are committed along, so they are
+    // flushed too.
+    @Override
+    public void close() {
+        flushGroup.flush();
+        flushGroup.leave(flush);
+        context.metrics().removeSensor(lateEventsSensor);
+        context.metrics().removeSensor(undecodableSensor);
+        writesSensors.values().forEach(context.metrics()::removeSensor);
     }
 }
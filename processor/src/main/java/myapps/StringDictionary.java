@@ -0,0 +1,86 @@
+package myapps;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Interns UTF-8 byte ranges of encoded events into dense int ids, so known values are looked up
+// without creating a String. Null is interned as "null", as the string keys used to spell it.
+//
+// Open addressing over the ids, with at most maxSize ids; id() returns -1 once it is full.
+final class StringDictionary {
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxSize;
+    // id + 1 of the value in each slot, 0 for empty slots
+    private final int[] slots;
+    private final byte[][] bytes;
+    private final String[] values;
+    private int size;
+
+    StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+        this.slots = new int[Integer.highestOneBit(maxSize) << 2];
+        this.bytes = new byte[maxSize][];
+        this.values = new String[maxSize];
+    }
+
+    // Id of the value, length -1 meaning null
+    int id(byte[] data, int offset, int length) {
+        if (length < 0) {
+            return id(NULL, 0, NULL.length);
+        }
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ data[i]) * 0x01000193;
+        }
+        int mask = slots.length - 1;
+        for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                if (size == maxSize) {
+                    return -1;
+                }
+                bytes[size] = Arrays.copyOfRange(data, offset, offset + length);
+                values[size] = new String(bytes[size], StandardCharsets.UTF_8);
+                slots[slot] = ++size;
+                return size - 1;
+            }
+            if (equals(bytes[id], data, offset, length)) {
+                return id;
+            }
+        }
+    }
+
+    int id(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        return id(data, 0, data.length);
+    }
+
+    private static boolean equals(byte[] value, byte[] data, int offset, int length) {
+        if (value.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String value(int id) {
+        return values[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(bytes, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
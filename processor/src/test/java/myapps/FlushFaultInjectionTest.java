@@ -0,0 +1,443 @@
+package myapps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Dimension;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.HyperLogLog;
+import alejandro.salazar.mejia.schema.Sketch;
+import alejandro.salazar.mejia.schema.SpaceSaving;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+import alejandro.salazar.mejia.schema.UserTagEventView;
+
+// Runs PartitionAggregators over a few partitions against an in-memory stand-in for Aerospike,
+// killing them at random while they read events and in the middle of flushes, and failing
+// writes at random, some of them after applying them, and sketch merges as if other partitions
+// kept winning the race for their records. Partitions are spread over a few stream threads,
+// each flushing its tasks together in a FlushGroup and committing all of them, as Kafka Streams
+// does, whichever task requested it. A kill replaces a thread: its tasks start over from their
+// last commit, and the snapshot of the open buckets taken with it. In the end the stand-in must
+// hold exactly the aggregates of all events, at every level, minute maps, sketches of distinct
+// users and values ranked by dimension included, but for those of the last event of each
+// partition: it only closes the buckets of the others. There are fewer values than
+// SpaceSaving.CAPACITY, so their ranks must be exact. The combinations kept include country and
+// device, and leave some to roll up, so records list the tuples seen. Each round takes a while.
+class FlushFaultInjectionTest {
+
+    private static final int PARTITIONS = 4;
+    // Stream threads, partition p on thread p % THREADS
+    private static final int THREADS = 2;
+    private static final int EVENTS = 40_000;
+    private static final double KILL_WHILE_READING = 1.0 / 20_000;
+    // Flushes killed, at a write among the first KILL_WINDOW, flushes are of some 10^4 writes
+    private static final double KILL_WHILE_WRITING = 0.25;
+    private static final int KILL_WINDOW = 20_000;
+    private static final double WRITE_FAILURE = 1.0 / 50_000;
+    // Adds with sketches finding their record contended, which then loses the merges of a few
+    // attempts in a row, more than PartitionAggregator tries failed writes
+    private static final double CONTENTION = 1.0 / 400_000;
+    private static final int LOST_RACES = 5;
+    private static final long LATENESS_MS = 30_000;
+    private static final long GRACE_MS = 30_000;
+    private static final DimensionLattice LATTICE =
+            DimensionLattice.parse("origin*brand_id*category_id,country+device,brand_id+device");
+
+    // Thrown by the stand-in where the task dies, unlike failed adds it is not retried
+    private static final class Killed extends RuntimeException {
+    }
+
+    // Records as AerospikeAggregateWriter writes them, the epochs of each partition included.
+    // Adds complete before returning.
+    private static final class InMemoryAerospike implements AggregateWriter {
+        private final Map<String, long[]> records = new HashMap<>();
+        // Sketch bytes by record and, for minutes of hour records, record/minute, then #bin
+        private final Map<String, byte[]> sketches = new HashMap<>();
+        // Keys of the value maps by record#bin
+        private final Map<String, TreeSet<String>> valueSets = new HashMap<>();
+        private final Map<String, Map<Integer, Long>> epochs = new HashMap<>();
+        private final Map<Integer, TreeSet<Long>> flushes = new HashMap<>();
+        private final Random random;
+        // Steps of the current flush until it is killed, or -1
+        private int killCountdown = -1;
+        private int kills;
+        private int failures;
+        private int lostRaces;
+        // Merges still to lose by record
+        private final Map<String, Integer> contended = new HashMap<>();
+
+        InMemoryAerospike(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public List<Long> flushEpochs(int partition) {
+            return new ArrayList<>(flushes.getOrDefault(partition, new TreeSet<>()));
+        }
+
+        @Override
+        public void startFlush(int partition, long epoch) {
+            killCountdown = random.nextDouble() < KILL_WHILE_WRITING ? random.nextInt(KILL_WINDOW) : -1;
+            maybeKill();
+            TreeSet<Long> epochs = flushes.computeIfAbsent(partition, p -> new TreeSet<>());
+            epochs.add(epoch);
+            while (epochs.size() > 16) {
+                epochs.pollFirst();
+            }
+        }
+
+        @Override
+        public void add(AggregateLevel level, String key, int partition, long epoch, long count, long sum,
+                long[] minuteCounts, long[] minuteSums, Map<String, Sketch> sketches, Map<String, Sketch[]> minuteSketches,
+                Map<String, Set<String>> valueSets, Consumer<AerospikeException> done) {
+            maybeKill();
+            boolean fails = random.nextDouble() < WRITE_FAILURE;
+            // Half of the failures are timeouts of writes that were applied
+            if (fails && random.nextBoolean()) {
+                failures++;
+                done.accept(new AerospikeException(ResultCode.TIMEOUT, "injected failure"));
+                return;
+            }
+            String recordKey = level.set() + "/" + key;
+            if (!sketches.isEmpty() && random.nextDouble() < CONTENTION) {
+                contended.putIfAbsent(recordKey, LOST_RACES);
+            }
+            if (contended.containsKey(recordKey)) {
+                // Like AerospikeAggregateWriter once its merge attempts are used up
+                lostRaces++;
+                if (contended.merge(recordKey, -1, Integer::sum) == 0) {
+                    contended.remove(recordKey);
+                }
+                done.accept(new AerospikeException(ResultCode.GENERATION_ERROR, "injected lost race"));
+                return;
+            }
+            Map<Integer, Long> recordEpochs = epochs.computeIfAbsent(recordKey, k -> new HashMap<>());
+            if (recordEpochs.getOrDefault(partition, -1L) < epoch) {
+                long[] values = records.computeIfAbsent(recordKey, k -> new long[2 + 2 * 60]);
+                values[0] += count;
+                values[1] += sum;
+                if (minuteCounts != null) {
+                    for (int minute = 0; minute < 60; minute++) {
+                        values[2 + minute] += minuteCounts[minute];
+                        values[62 + minute] += minuteSums[minute];
+                    }
+                }
+                sketches.forEach((bin, sketch) -> merge(recordKey + "#" + bin, sketch));
+                valueSets.forEach((bin, seen) -> trim(
+                        this.valueSets.computeIfAbsent(recordKey + "#" + bin, k -> new TreeSet<>()), seen));
+                minuteSketches.forEach((bin, sketch) -> {
+                    for (int minute = 0; minute < 60; minute++) {
+                        if (sketch[minute] != null) {
+                            merge(recordKey + "/" + minute + "#" + bin, sketch[minute]);
+                        }
+                    }
+                });
+                recordEpochs.put(partition, epoch);
+            }
+            maybeKill();
+            if (fails) {
+                failures++;
+                done.accept(new AerospikeException(ResultCode.TIMEOUT, "injected failure"));
+            } else {
+                done.accept(null);
+            }
+        }
+
+        private void merge(String key, Sketch sketch) {
+            byte[] stored = sketches.get(key);
+            sketches.put(key, stored != null ? sketch.mergedWith(stored) : sketch.toBytes());
+        }
+
+        @Override
+        public void closedUntil(int partition, long closedUntilMillis) {
+            maybeKill();
+        }
+
+        @Override
+        public void corrected(int partition, long epoch, long fromMillis) {
+            maybeKill();
+        }
+
+        // Called before and after each change, so kills fall between a write and its response too
+        private void maybeKill() {
+            if (killCountdown >= 0 && killCountdown-- == 0) {
+                kills++;
+                throw new Killed();
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = { 0, 1, 2 })
+    void aggregatesSurviveKillsAndFailures(long seed) {
+        Random random = new Random(seed);
+        byte[][][] events = new byte[PARTITIONS][EVENTS][];
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            for (int offset = 0; offset < EVENTS; offset++) {
+                events[partition][offset] = UserTagEventFormat.encode(event(random, offset));
+            }
+        }
+
+        InMemoryAerospike aerospike = new InMemoryAerospike(random);
+        UserTagEventView view = new UserTagEventView();
+        PartitionAggregator[] aggregators = new PartitionAggregator[PARTITIONS];
+        FlushGroup[] groups = new FlushGroup[THREADS];
+        Runnable[] flushes = new Runnable[PARTITIONS];
+        int[] committed = new int[PARTITIONS];
+        byte[][] snapshots = new byte[PARTITIONS][];
+        // Snapshots taken by the last flush of the group, committed with the positions
+        byte[][] flushedSnapshots = new byte[PARTITIONS][];
+        long[] lateEvents = new long[PARTITIONS];
+        long[] lateEventsCommitted = new long[PARTITIONS];
+        int[] positions = new int[PARTITIONS];
+        int restarts = 0;
+        int failedByRaces = 0;
+        int done = 0;
+        while (done < PARTITIONS) {
+            int partition = random.nextInt(PARTITIONS);
+            if (committed[partition] == EVENTS) {
+                continue;
+            }
+            int thread = partition % THREADS;
+            if (groups[thread] == null) {
+                groups[thread] = new FlushGroup(0, 0, 1);
+            }
+            if (aggregators[partition] == null) {
+                PartitionAggregator created = new PartitionAggregator(partition, aerospike, true, true, true, LATTICE,
+                        LATENESS_MS, GRACE_MS);
+                if (snapshots[partition] != null) {
+                    created.restore(snapshots[partition]);
+                }
+                aggregators[partition] = created;
+                positions[partition] = committed[partition];
+                lateEvents[partition] = 0;
+                int flushed = partition;
+                flushes[partition] = () -> {
+                    created.flush();
+                    flushedSnapshots[flushed] = created.snapshot();
+                };
+                groups[thread].join(flushes[partition]);
+            }
+            PartitionAggregator aggregator = aggregators[partition];
+            try {
+                // A poll, then a punctuation or a rebalance, both flushing and committing
+                int end = Math.min(EVENTS, positions[partition] + 1 + random.nextInt(3_000));
+                for (; positions[partition] < end; positions[partition]++) {
+                    if (random.nextDouble() < KILL_WHILE_READING) {
+                        throw new Killed();
+                    }
+                    aggregator.add(positions[partition], view.wrap(events[partition][positions[partition]]));
+                }
+                if (positions[partition] == EVENTS || random.nextInt(4) == 0) {
+                    // The commit requested by this task covers every task of the thread
+                    groups[thread].flush();
+                    for (int each = thread; each < PARTITIONS; each += THREADS) {
+                        if (aggregators[each] == null || committed[each] == EVENTS) {
+                            continue;
+                        }
+                        committed[each] = positions[each];
+                        snapshots[each] = flushedSnapshots[each];
+                        lateEventsCommitted[each] += aggregators[each].lateEvents() - lateEvents[each];
+                        lateEvents[each] = aggregators[each].lateEvents();
+                        if (committed[each] == EVENTS) {
+                            done++;
+                        }
+                    }
+                    if (committed[partition] != EVENTS && random.nextInt(10) == 0) {
+                        // Moved to another thread and back
+                        groups[thread].leave(flushes[partition]);
+                        aggregators[partition] = null;
+                    }
+                }
+            } catch (Killed | IllegalStateException e) {
+                if (e.getCause() instanceof AerospikeException
+                        && AggregateWriter.lostRace((AerospikeException) e.getCause())) {
+                    // Contention must delay flushes, not fail them
+                    failedByRaces++;
+                }
+                // The thread is replaced, along with all of its tasks
+                for (int each = thread; each < PARTITIONS; each += THREADS) {
+                    aggregators[each] = null;
+                }
+                groups[thread] = null;
+                restarts++;
+            }
+        }
+
+        Map<String, long[]> expected = new HashMap<>();
+        Map<String, HyperLogLog> expectedUsers = new HashMap<>();
+        Map<String, Map<String, Long>> expectedTops = new HashMap<>();
+        Map<String, TreeSet<String>> expectedValues = new HashMap<>();
+        MinuteAggregates aggregates = new MinuteAggregates(true, LATTICE.combinations());
+        for (byte[][] partitionEvents : events) {
+            for (int offset = 0; offset < EVENTS - 1; offset++) {
+                UserTagEventView eventView = view.wrap(partitionEvents[offset]);
+                boolean counted = eventView.action() != Action.BUY && eventView.action() != Action.VIEW
+                        || aggregates.add(eventView);
+                if (!counted) {
+                    expect(expected, expectedUsers, expectedTops, expectedValues, aggregates);
+                    aggregates.clear();
+                    aggregates.add(eventView);
+                }
+            }
+        }
+        expect(expected, expectedUsers, expectedTops, expectedValues, aggregates);
+        int mismatches = 0;
+        for (Map.Entry<String, long[]> record : expected.entrySet()) {
+            long[] actual = aerospike.records.get(record.getKey());
+            if (actual == null || !Arrays.equals(actual, record.getValue())) {
+                mismatches++;
+            }
+        }
+        mismatches += Math.max(0, aerospike.records.size() - expected.size());
+        for (Map.Entry<String, HyperLogLog> sketch : expectedUsers.entrySet()) {
+            byte[] actual = aerospike.sketches.get(sketch.getKey() + "#" + HyperLogLog.BIN);
+            if (actual == null || !Arrays.equals(actual, sketch.getValue().toBytes())) {
+                mismatches++;
+            }
+        }
+        for (Map.Entry<String, Map<String, Long>> top : expectedTops.entrySet()) {
+            byte[] actual = aerospike.sketches.get(top.getKey());
+            Map<String, Long> actualWeights = new HashMap<>();
+            if (actual != null) {
+                for (SpaceSaving.Entry entry : SpaceSaving.fromBytes(actual).top(SpaceSaving.CAPACITY)) {
+                    actualWeights.put(entry.value(), entry.error() == 0 ? entry.weight() : -1);
+                }
+            }
+            if (!actualWeights.equals(top.getValue())) {
+                mismatches++;
+            }
+        }
+        mismatches += Math.max(0, aerospike.sketches.size() - expectedUsers.size() - expectedTops.size());
+        for (Map.Entry<String, TreeSet<String>> values : expectedValues.entrySet()) {
+            if (!values.getValue().equals(aerospike.valueSets.get(values.getKey()))) {
+                mismatches++;
+            }
+        }
+        mismatches += Math.max(0, aerospike.valueSets.size() - expectedValues.size());
+        // Late events and faults all happened, or the round proves nothing
+        assertTrue(Arrays.stream(lateEventsCommitted).sum() > 0);
+        assertTrue(restarts > 0 && aerospike.kills > 0 && aerospike.failures > 0 && aerospike.lostRaces > 0);
+        assertEquals(0, failedByRaces, "flushes failed by lost races");
+        assertEquals(0, mismatches, "mismatched records of " + expected.size());
+    }
+
+    private static void expect(Map<String, long[]> expected, Map<String, HyperLogLog> expectedUsers,
+            Map<String, Map<String, Long>> expectedTops, Map<String, TreeSet<String>> expectedValues,
+            MinuteAggregates aggregates) {
+        Set<Integer> rollupTargets = new HashSet<>();
+        Arrays.stream(LATTICE.rollupTargets()).forEach(rollupTargets::add);
+        aggregates.forEach(new MinuteAggregates.Sink() {
+            @Override
+            public void accept(String key, int combination, long count, long sum, HyperLogLog users) {
+                int minute = (key.charAt(14) - '0') * 10 + key.charAt(15) - '0';
+                for (AggregateLevel level : AggregateLevel.values()) {
+                    String recordKey = level.set() + "/" + level.keyOf(key);
+                    long[] values = expected.computeIfAbsent(recordKey, k -> new long[2 + 2 * 60]);
+                    values[0] += count;
+                    values[1] += sum;
+                    merge(expectedUsers, recordKey, users);
+                    if (level == AggregateLevel.HOUR) {
+                        values[2 + minute] += count;
+                        values[62 + minute] += sum;
+                        merge(expectedUsers, recordKey + "/" + minute, users);
+                    }
+                }
+            }
+
+            @Override
+            public void acceptValues(String key, String[] values, long count, long sum) {
+                for (AggregateLevel level : AggregateLevel.values()) {
+                    String recordKey = level.set() + "/" + level.keyOf(key) + "#";
+                    Dimension dimension = null;
+                    int present = 0;
+                    int combination = 0;
+                    for (Dimension each : Dimension.values()) {
+                        if (values[each.ordinal()] == null) {
+                            continue;
+                        }
+                        dimension = each;
+                        present++;
+                        combination |= each.bit();
+                    }
+                    if (rollupTargets.contains(combination)) {
+                        trim(expectedValues.computeIfAbsent(recordKey + DimensionLattice.tuplesBin(combination),
+                                k -> new TreeSet<>()), Collections.singleton(DimensionLattice.tuple(values, combination)));
+                    }
+                    // Tops are of the values of a single dimension
+                    if (present != 1) {
+                        continue;
+                    }
+                    String value = values[dimension.ordinal()];
+                    expectedTops.computeIfAbsent(recordKey + dimension.topBin(false), k -> new HashMap<>())
+                            .merge(value, count, Long::sum);
+                    // Values without a sum are left out of the sketch by sum, which is still written
+                    Map<String, Long> sums = expectedTops.computeIfAbsent(recordKey + dimension.topBin(true),
+                            k -> new HashMap<>());
+                    if (sum > 0) {
+                        sums.merge(value, sum, Long::sum);
+                    }
+                }
+            }
+        });
+    }
+
+    // Adds the tuples to the set, keeping those Aerospike keeps
+    private static void trim(TreeSet<String> set, Set<String> tuples) {
+        set.addAll(tuples);
+        while (set.size() > DimensionLattice.MAX_TUPLES + 1) {
+            set.pollLast();
+        }
+    }
+
+    private static void merge(Map<String, HyperLogLog> sketches, String key, HyperLogLog users) {
+        if (users != null) {
+            sketches.computeIfAbsent(key, k -> new HyperLogLog()).merge(users);
+        }
+    }
+
+    // Events over three hours in the order of their offsets give or take 20 seconds, some of them
+    // minutes late and a few months late, so that they do not fit in the aggregates of the other
+    // late ones and end their batch early. The last one is a day later and closes all buckets.
+    private static UserTagEvent event(Random random, int offset) {
+        Instant time = Instant.parse("2022-03-01T12:00:00Z")
+                .plusMillis(offset * (3 * 3600_000L / EVENTS) + random.nextInt(40_000) - 20_000);
+        if (offset == EVENTS - 1) {
+            time = time.plusSeconds(24 * 3600);
+        } else if (random.nextInt(5_000) == 0) {
+            time = time.minusSeconds(100L * 24 * 3600);
+        } else if (random.nextInt(100) == 0) {
+            time = time.minusSeconds(60 + random.nextInt(5 * 60));
+        }
+        Action action = random.nextInt(5) == 0 ? Action.BUY : Action.VIEW;
+        Product product = new Product(random.nextInt(1_000), "brand_" + random.nextInt(20),
+                "category_" + random.nextInt(10), random.nextInt(1_000));
+        return new UserTagEvent(time, "cookie_" + random.nextInt(1_000), "country_" + random.nextInt(5),
+                Device.values()[random.nextInt(Device.values().length)], action,
+                "origin_" + random.nextInt(10), product);
+    }
+}
@@ -0,0 +1,132 @@
+package myapps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.DimensionLattice;
+import alejandro.salazar.mejia.schema.HyperLogLog;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+import alejandro.salazar.mejia.schema.UserTagEventView;
+
+class MinuteAggregatesTest {
+
+    private static final int[] COMBINATIONS =
+            DimensionLattice.parse("origin*brand_id*category_id*country*device").combinations();
+    private static final long MINUTE = Instant.parse("2022-03-01T00:00:00Z").toEpochMilli() / 60_000;
+
+    private final UserTagEventView view = new UserTagEventView();
+
+    @Test
+    void aggregatesRoundTrip() throws IOException {
+        MinuteAggregates aggregates = new MinuteAggregates(true, COMBINATIONS);
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(aggregates.add(event(MINUTE + i % 3, i)));
+        }
+
+        MinuteAggregates read = roundTrip(aggregates);
+
+        assertEquals(contents(aggregates), contents(read));
+        assertEquals(aggregates.size(), read.size());
+    }
+
+    @Test
+    void compactedAggregatesRoundTrip() throws IOException {
+        MinuteAggregates aggregates = new MinuteAggregates(true, COMBINATIONS);
+        // Aggregates of the kept minutes alone, their dictionaries never compacted
+        MinuteAggregates expected = new MinuteAggregates(true, COMBINATIONS);
+        // More origins in the first minute than half the dictionary holds
+        for (int i = 0; i < 9_000; i++) {
+            assertTrue(aggregates.add(event(MINUTE, "only-" + i, i)));
+        }
+        for (int i = 0; i < 2_000; i++) {
+            assertTrue(aggregates.add(event(MINUTE + 1 + i % 2, i)));
+            assertTrue(expected.add(event(MINUTE + 1 + i % 2, i)));
+        }
+        long before = snapshot(aggregates).length;
+
+        Map<String, String> removed = new TreeMap<>();
+        aggregates.removeBefore(MINUTE + 1, sink(removed));
+
+        assertFalse(removed.isEmpty());
+        removed.keySet().forEach(key -> assertTrue(key.startsWith("2022-03-01T00:00:00_"), key));
+        assertEquals(contents(expected), contents(aggregates));
+        // The origins of the removed minute are gone from the dictionaries
+        assertTrue(snapshot(aggregates).length < before / 10);
+
+        MinuteAggregates read = roundTrip(aggregates);
+        assertEquals(contents(expected), contents(read));
+
+        // Values seen before and after the compaction find the same keys
+        for (int i = 0; i < 2_000; i++) {
+            assertTrue(read.add(event(MINUTE + 2 + i % 2, i * 7)));
+            assertTrue(expected.add(event(MINUTE + 2 + i % 2, i * 7)));
+        }
+        assertEquals(contents(expected), contents(read));
+    }
+
+    private UserTagEventView event(long minute, int i) {
+        return event(minute, "origin-" + i % 40, i);
+    }
+
+    private UserTagEventView event(long minute, String origin, int i) {
+        UserTagEvent event = new UserTagEvent(Instant.ofEpochMilli(minute * 60_000 + i % 60_000),
+                "cookie-" + i % 300, i % 9 == 0 ? null : "country-" + i % 4, i % 5 == 0 ? null : Device.values()[i % 3],
+                Action.values()[i % 2], origin, new Product(i, "brand-" + i % 13, "category-" + i % 6, i % 1_000));
+        return view.wrap(UserTagEventFormat.encode(event));
+    }
+
+    private static MinuteAggregates roundTrip(MinuteAggregates aggregates) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot(aggregates)));
+        return MinuteAggregates.readFrom(in, COMBINATIONS);
+    }
+
+    private static byte[] snapshot(MinuteAggregates aggregates) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        aggregates.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> contents(MinuteAggregates aggregates) {
+        Map<String, String> contents = new TreeMap<>();
+        aggregates.forEach(sink(contents));
+        return contents;
+    }
+
+    // Count, sum and distinct users by key and combination, and count and sum by values
+    private static MinuteAggregates.Sink sink(Map<String, String> contents) {
+        return new MinuteAggregates.Sink() {
+            @Override
+            public void accept(String minuteKey, int combination, long count, long sum, HyperLogLog users) {
+                contents.put(minuteKey + " " + combination, count + " " + sum + " " + users.estimate());
+            }
+
+            @Override
+            public void acceptValues(String minuteKey, String[] values, long count, long sum) {
+                // Dimensions not in the key apart from the "null" values of those in it
+                String key = Arrays.stream(values).map(value -> value == null ? "-" : "'" + value + "'")
+                        .collect(Collectors.joining(","));
+                contents.put(minuteKey + " " + key, count + " " + sum);
+            }
+        };
+    }
+}
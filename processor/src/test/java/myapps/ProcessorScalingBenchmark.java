@@ -0,0 +1,199 @@
+package myapps;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.processor.api.Record;
+
+import com.aerospike.client.AerospikeException;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+import alejandro.salazar.mejia.schema.AggregateLevel;
+import alejandro.salazar.mejia.schema.Sketch;
+import alejandro.salazar.mejia.schema.UserTagEventFormat;
+
+// Events per second the processor topology reads from a local Kafka broker, by number of
+// instances ("nodes") and stream threads per instance. Aggregates go to a writer that drops
+// them, so the figures are of Kafka Streams and the aggregation, not of Aerospike.
+//
+// EVENTS events are produced once to a new topic of PARTITIONS partitions, then each setup
+// reads all of them under its own application id, instances in this JVM with a state directory
+// each. They share the cores of this machine: run a single setup per machine, with the same
+// topic, for nodes on separate machines.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=myapps.ProcessorScalingBenchmark [-Dexec.args="<nodes>x<threads> ..."] [-Dkafka.bootstrap-servers=localhost:9092]
+public class ProcessorScalingBenchmark {
+
+    private static final String BOOTSTRAP_SERVERS = System.getProperty("kafka.bootstrap-servers", "localhost:9092");
+    private static final int PARTITIONS = Integer.getInteger("benchmark.partitions", 8);
+    private static final int EVENTS = Integer.getInteger("benchmark.events", 2_000_000);
+    private static final String[] DEFAULT_SETUPS = { "1x1", "1x2", "1x4", "2x1", "2x2", "2x4" };
+
+    // Counts the flushed aggregates and drops them
+    private static final class NullAggregateWriter implements AggregateWriter {
+        private final AtomicLong adds;
+
+        NullAggregateWriter(AtomicLong adds) {
+            this.adds = adds;
+        }
+
+        @Override
+        public List<Long> flushEpochs(int partition) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void startFlush(int partition, long epoch) {
+        }
+
+        @Override
+        public void add(AggregateLevel level, String key, int partition, long epoch, long count, long sum,
+                long[] minuteCounts, long[] minuteSums, Map<String, Sketch> sketches, Map<String, Sketch[]> minuteSketches,
+                Map<String, Set<String>> valueSets, Consumer<AerospikeException> done) {
+            adds.incrementAndGet();
+            done.accept(null);
+        }
+
+        @Override
+        public void closedUntil(int partition, long closedUntilMillis) {
+        }
+
+        @Override
+        public void corrected(int partition, long epoch, long fromMillis) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] setups = args.length > 0 ? args : DEFAULT_SETUPS;
+        String topic = "benchmark_user_tags_" + System.currentTimeMillis();
+        createTopic(topic);
+        produce(topic);
+
+        for (String setup : setups) {
+            String[] sizes = setup.split("x");
+            run(topic, Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]));
+        }
+    }
+
+    private static void run(String topic, int nodes, int threads) throws IOException {
+        String applicationId = "benchmark-" + nodes + "x" + threads + "-" + System.currentTimeMillis();
+        AtomicLong events = new AtomicLong();
+        AtomicLong adds = new AtomicLong();
+        List<KafkaStreams> instances = new ArrayList<>();
+        List<Path> stateDirs = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int node = 0; node < nodes; node++) {
+            Path stateDir = Files.createTempDirectory("kafka-streams-benchmark");
+            stateDirs.add(stateDir);
+            Properties props = MyApp.streamsProperties(applicationId, BOOTSTRAP_SERVERS, threads, 0, stateDir.toString());
+            props.put(StreamsConfig.REPLICATION_FACTOR_CONFIG, 1);
+            props.put(StreamsConfig.consumerPrefix(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG), "earliest");
+            KafkaStreams streams = new KafkaStreams(MyApp.topology(topic, () -> new PurchaseProcessor(
+                    () -> new NullAggregateWriter(adds)) {
+                @Override
+                public void process(Record<String, byte[]> record) {
+                    super.process(record);
+                    events.incrementAndGet();
+                }
+            }), props);
+            instances.add(streams);
+            streams.start();
+        }
+
+        long lastReport = System.nanoTime();
+        while (events.get() < EVENTS) {
+            sleep(100);
+            if (System.nanoTime() - lastReport > 10_000_000_000L) {
+                System.out.printf("  %dx%d: %,d of %,d events%n", nodes, threads, events.get(), EVENTS);
+                lastReport = System.nanoTime();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        instances.forEach(KafkaStreams::close);
+        for (Path stateDir : stateDirs) {
+            delete(stateDir);
+        }
+        // Includes joining the group and the first assignment, as a restart would
+        System.out.printf("%d node(s) x %d thread(s): %,12.0f events/s, %,.0f events/s per thread, %,d aggregate writes%n",
+                nodes, threads, EVENTS / seconds, EVENTS / seconds / (nodes * threads), adds.get());
+    }
+
+    private static void createTopic(String topic) throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+        try (Admin admin = Admin.create(config)) {
+            admin.createTopics(Collections.singleton(new NewTopic(topic, PARTITIONS, (short) 1))).all().get();
+        }
+    }
+
+    // Events keyed by cookie as the front sends them, over ten minutes in offset order
+    private static void produce(String topic) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+        config.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+        config.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "snappy");
+        Random random = new Random(42);
+        Instant start = Instant.parse("2022-03-01T12:00:00Z");
+        try (KafkaProducer<String, byte[]> producer = new KafkaProducer<>(config, new StringSerializer(),
+                new ByteArraySerializer())) {
+            for (int i = 0; i < EVENTS; i++) {
+                Product product = new Product(random.nextInt(10_000), "brand_" + random.nextInt(200),
+                        "category_" + random.nextInt(30), random.nextInt(1_000));
+                UserTagEvent event = new UserTagEvent(start.plusMillis(i * 10 * 60_000L / EVENTS),
+                        "cookie_" + random.nextInt(100_000), "PL", Device.PC,
+                        random.nextInt(10) == 0 ? Action.BUY : Action.VIEW, "origin_" + random.nextInt(50), product);
+                producer.send(new ProducerRecord<>(topic, event.getCookie(), UserTagEventFormat.encode(event)));
+            }
+        }
+        System.out.printf("Produced %,d events to %s, %d partitions%n", EVENTS, topic, PARTITIONS);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package alejandro.salazar.mejia.schema;
+
+// Granularities of the records of the aggregates sets. The processor adds every event to the
+// bucket of its minute, hour and day, each level in its own set. Keys are the same at every
+// level: the start of the bucket formatted as yyyy-MM-ddTHH:mm:00, then the action and the
+// dimensions, e.g. 2022-03-01T12:00:00_BUY_Nike in aggregates_1h.
+//
+// Hour records also hold the minutes of their hour: besides the count and sum_price totals,
+// the m_count and m_sum_price map bins hold them by minute of the hour. Minute records in
+// aggregates are only kept for data written before that layout.
+public enum AggregateLevel {
+
+    MINUTE("1m", 1, "aggregates", 24 * 60 * 60),
+    HOUR("1h", 60, "aggregates_1h", 7 * 24 * 60 * 60),
+    DAY("1d", 24 * 60, "aggregates_1d", 30 * 24 * 60 * 60);
+
+    private final String label;
+    private final int minutes;
+    private final String set;
+    private final int expirationSeconds;
+
+    AggregateLevel(String label, int minutes, String set, int expirationSeconds) {
+        this.label = label;
+        this.minutes = minutes;
+        this.set = set;
+        this.expirationSeconds = expirationSeconds;
+    }
+
+    // As in the bucket_size parameter and the bucket column of /aggregates
+    public String label() {
+        return label;
+    }
+
+    public int minutes() {
+        return minutes;
+    }
+
+    public String set() {
+        return set;
+    }
+
+    // Coarser levels are kept longer, they answer queries over longer ranges
+    public int expirationSeconds() {
+        return expirationSeconds;
+    }
+
+    // Key of the bucket of this level holding the given minute key, found by zeroing the
+    // minutes and, for days, the hours of the time prefix
+    public String keyOf(String minuteKey) {
+        switch (this) {
+        case HOUR:
+            return minuteKey.substring(0, 14) + "00" + minuteKey.substring(16);
+        case DAY:
+            return minuteKey.substring(0, 11) + "00:00" + minuteKey.substring(16);
+        default:
+            return minuteKey;
+        }
+    }
+
+    // Map bin of an hour record holding the values of the given bin by minute of the hour
+    public static String minuteBin(String bin) {
+        return "m_" + bin;
+    }
+
+    public static AggregateLevel fromLabel(String label) {
+        for (AggregateLevel level : values()) {
+            if (level.label.equals(label)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bucket size " + label + ", expected 1m, 1h or 1d");
+    }
+}
@@ -0,0 +1,56 @@
+package alejandro.salazar.mejia.schema;
+
+// Dimensions of the events, in the order they appear in the keys of the aggregates sets. Origin,
+// brand and category appear as their values, country and device, added later, as
+// country=<value> and device=<value> so that they cannot be taken for one of the others.
+// Which combinations of them have records is configured, see DimensionLattice.
+//
+// Records of a bucket without dimensions also rank the values of each dimension kept alone, by
+// count and by sum_price, in SpaceSaving bins: tn_<name> and ts_<name>, and list the tuples of
+// values of the combinations queries roll up to (see DimensionLattice). Minute buckets have them
+// in their own records, whatever the layout of their counts (see AggregateLevel).
+public enum Dimension {
+
+    ORIGIN("origin", "origin"),
+    BRAND_ID("brand_id", "brand"),
+    CATEGORY_ID("category_id", "category"),
+    COUNTRY("country", "country"),
+    DEVICE("device", "device");
+
+    private final String label;
+    private final String binName;
+
+    Dimension(String label, String binName) {
+        this.label = label;
+        this.binName = binName;
+    }
+
+    // As in the parameters and columns of /aggregates and /top
+    public String label() {
+        return label;
+    }
+
+    // Part of the keys of the aggregates sets for the given value
+    public String keySegment(String value) {
+        return ordinal() < COUNTRY.ordinal() ? value : label + "=" + value;
+    }
+
+    // Bit of the dimension in the masks of DimensionLattice
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    // Bin of the values ranked by sum_price or by count, bin names are limited to 15 characters
+    public String topBin(boolean bySum) {
+        return (bySum ? "ts_" : "tn_") + binName;
+    }
+
+    public static Dimension fromLabel(String label) {
+        for (Dimension dimension : values()) {
+            if (dimension.label.equals(label)) {
+                return dimension;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dimension " + label + ", expected origin, brand_id, category_id, country or device");
+    }
+}
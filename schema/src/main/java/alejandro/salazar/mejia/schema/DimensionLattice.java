@@ -0,0 +1,153 @@
+package alejandro.salazar.mejia.schema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+// Combinations of dimensions the processor keeps aggregates for, as masks of Dimension.bit().
+// Every event is added to a record of each combination, so each one costs a write per event
+// and bucket; a query for a combination that is not kept is rolled up from the nearest kept
+// one with more dimensions, summing the records of all values of the dimensions it adds.
+//
+// Configured as combinations separated by commas, each its dimension labels joined by '+', or
+// by '*' for every subset of them, e.g. origin*brand_id*category_id,brand_id+country. The
+// combination without dimensions is always kept: its records list the tuples of values of the
+// combinations queries roll up to (see rollupTargets()), so that a query reads the records of
+// the tuples that occurred, not of every combination of the values seen.
+public final class DimensionLattice {
+
+    // The 8 combinations of origin, brand and category, as before combinations were configured
+    public static final String DEFAULT = "origin*brand_id*category_id";
+    // Tuples listed by bucket and combination. Writes keep at most one more: a bucket listing
+    // more than MAX_TUPLES had some dropped, and cannot be rolled up.
+    public static final int MAX_TUPLES = 4096;
+    private static final char TUPLE_SEPARATOR = '\u001f';
+
+    private final int[] combinations;
+
+    private DimensionLattice(int[] combinations) {
+        this.combinations = combinations;
+    }
+
+    public static DimensionLattice parse(String spec) {
+        TreeSet<Integer> combinations = new TreeSet<>();
+        combinations.add(0);
+        for (String combination : spec.split(",")) {
+            combination = combination.trim();
+            if (combination.isEmpty()) {
+                continue;
+            }
+            boolean subsets = combination.contains("*");
+            if (subsets && combination.contains("+")) {
+                throw new IllegalArgumentException("Combination " + combination + " mixes '+' and '*'");
+            }
+            int mask = 0;
+            for (String label : combination.split(subsets ? "\\*" : "\\+")) {
+                mask |= Dimension.fromLabel(label.trim()).bit();
+            }
+            if (subsets) {
+                // Every subset of the mask
+                for (int subset = mask; subset != 0; subset = (subset - 1) & mask) {
+                    combinations.add(subset);
+                }
+            } else {
+                combinations.add(mask);
+            }
+        }
+        return new DimensionLattice(combinations.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    // Masks of the combinations kept, in increasing order
+    public int[] combinations() {
+        return combinations.clone();
+    }
+
+    public boolean contains(int mask) {
+        for (int combination : combinations) {
+            if (combination == mask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Combination kept with the dimensions of the mask and the fewest others, -1 if none. Of
+    // those adding as many, the one adding the last dimensions: device and country have few
+    // values, so rolling them up reads the fewest records.
+    public int nearest(int mask) {
+        int nearest = -1;
+        for (int combination : combinations) {
+            if ((combination & mask) == mask && (nearest < 0
+                    || Integer.bitCount(combination) < Integer.bitCount(nearest)
+                    || Integer.bitCount(combination) == Integer.bitCount(nearest) && combination > nearest)) {
+                nearest = combination;
+            }
+        }
+        return nearest;
+    }
+
+    // Combinations kept that are the nearest of some combination not kept, in increasing order
+    public int[] rollupTargets() {
+        TreeSet<Integer> targets = new TreeSet<>();
+        for (int mask = 0; mask < 1 << Dimension.values().length; mask++) {
+            int nearest = nearest(mask);
+            if (nearest >= 0 && nearest != mask) {
+                targets.add(nearest);
+            }
+        }
+        return targets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Map bin listing the tuples of the combination, as its keys
+    public static String tuplesBin(int combination) {
+        return "r_" + combination;
+    }
+
+    // Values of the dimensions of the combination, by Dimension ordinal, as a key of its tuples bin
+    public static String tuple(String[] values, int combination) {
+        StringBuilder tuple = new StringBuilder();
+        for (Dimension dimension : Dimension.values()) {
+            if ((combination & dimension.bit()) != 0) {
+                if (tuple.length() > 0) {
+                    tuple.append(TUPLE_SEPARATOR);
+                }
+                tuple.append(values[dimension.ordinal()]);
+            }
+        }
+        return tuple.toString();
+    }
+
+    // Values of a tuple of the combination by Dimension ordinal, null for the other dimensions
+    public static String[] values(String tuple, int combination) {
+        String[] values = new String[Dimension.values().length];
+        int from = 0;
+        for (Dimension dimension : Dimension.values()) {
+            if ((combination & dimension.bit()) != 0) {
+                int end = tuple.indexOf(TUPLE_SEPARATOR, from);
+                values[dimension.ordinal()] = tuple.substring(from, end < 0 ? tuple.length() : end);
+                from = end + 1;
+            }
+        }
+        return values;
+    }
+
+    // Dimension labels of the mask joined by '+', or none
+    public static String label(int mask) {
+        List<String> labels = new ArrayList<>();
+        for (Dimension dimension : Dimension.values()) {
+            if ((mask & dimension.bit()) != 0) {
+                labels.add(dimension.label());
+            }
+        }
+        return labels.isEmpty() ? "none" : String.join("+", labels);
+    }
+
+    @Override
+    public String toString() {
+        List<String> labels = new ArrayList<>();
+        for (int combination : combinations) {
+            labels.add(label(combination));
+        }
+        return String.join(",", labels);
+    }
+}
@@ -0,0 +1,182 @@
+package alejandro.salazar.mejia.schema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Estimate of the distinct cookies of an aggregate bucket, kept in at most REGISTERS bytes
+// whatever the traffic. Sketches merge by taking the larger of each register, so merging is
+// idempotent and in any order: the processor merges into what is stored, the front over the
+// buckets of a row.
+//
+// 2^11 registers, a standard error of 1.04 / sqrt(2048), about 2.3%. Until a sparse sketch
+// would take as many bytes as the registers, it only keeps the registers set, sorted by index,
+// which is what the buckets of one key mostly need.
+//
+// Bytes, as stored in the users bins of the aggregate records: the precision, then either
+// 0 and (short index, byte rank) of each register set, or 1 and all the registers.
+public final class HyperLogLog implements Sketch {
+
+    public static final String BIN = "users";
+
+    private static final int PRECISION = 11;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int SPARSE = 0;
+    private static final int DENSE = 1;
+    // Sparse sketches beyond this many registers set are made dense
+    private static final int MAX_SPARSE = REGISTERS / 3;
+
+    // index << 8 | rank of the registers set, sorted, or null once dense
+    private int[] sparse = new int[4];
+    private int sparseSize;
+    private byte[] registers;
+
+    // 64-bit hash of the UTF-8 bytes of a cookie: FNV-1a, then the murmur3 finalizer as FNV
+    // alone mixes the last bytes poorly into the high bits the register index comes from
+    public static long hash(byte[] data, int offset, int length) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (data[i] & 0xFF)) * 0x100000001B3L;
+        }
+        hash = (hash ^ hash >>> 33) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ hash >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
+
+    public static long hash(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return hash(bytes, 0, bytes.length);
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        // Leading zeros of the other bits, plus one; a bit set past them bounds the rank
+        int rank = Long.numberOfLeadingZeros(hash << PRECISION | 1L << (PRECISION - 1)) + 1;
+        set(index, rank);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.registers != null) {
+            for (int index = 0; index < REGISTERS; index++) {
+                if (other.registers[index] != 0) {
+                    set(index, other.registers[index]);
+                }
+            }
+        } else {
+            for (int i = 0; i < other.sparseSize; i++) {
+                set(other.sparse[i] >>> 8, other.sparse[i] & 0xFF);
+            }
+        }
+    }
+
+    private void set(int index, int rank) {
+        if (registers != null) {
+            if (registers[index] < rank) {
+                registers[index] = (byte) rank;
+            }
+            return;
+        }
+        int i = Arrays.binarySearch(sparse, 0, sparseSize, index << 8 | 0xFF);
+        // Not found: -(insertion point) - 1, the entry before it may hold the index
+        i = -i - 1;
+        if (i > 0 && sparse[i - 1] >>> 8 == index) {
+            if ((sparse[i - 1] & 0xFF) < rank) {
+                sparse[i - 1] = index << 8 | rank;
+            }
+            return;
+        }
+        if (sparseSize == MAX_SPARSE) {
+            toDense();
+            set(index, rank);
+            return;
+        }
+        if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, Math.min(MAX_SPARSE, sparse.length * 2));
+        }
+        System.arraycopy(sparse, i, sparse, i + 1, sparseSize - i);
+        sparse[i] = index << 8 | rank;
+        sparseSize++;
+    }
+
+    private void toDense() {
+        registers = new byte[REGISTERS];
+        for (int i = 0; i < sparseSize; i++) {
+            registers[sparse[i] >>> 8] = (byte) (sparse[i] & 0xFF);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    // Raw HyperLogLog estimate, or linear counting while registers are left at 0 and it is
+    // below 2.5 times the registers, where linear counting is the more accurate
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        if (registers != null) {
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+        } else {
+            zeros = REGISTERS - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) {
+                sum += 1.0 / (1L << (sparse[i] & 0xFF));
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    @Override
+    public byte[] toBytes() {
+        if (registers != null) {
+            byte[] bytes = new byte[2 + REGISTERS];
+            bytes[0] = PRECISION;
+            bytes[1] = DENSE;
+            System.arraycopy(registers, 0, bytes, 2, REGISTERS);
+            return bytes;
+        }
+        byte[] bytes = new byte[2 + 3 * sparseSize];
+        bytes[0] = PRECISION;
+        bytes[1] = SPARSE;
+        for (int i = 0; i < sparseSize; i++) {
+            bytes[2 + 3 * i] = (byte) (sparse[i] >>> 16);
+            bytes[3 + 3 * i] = (byte) (sparse[i] >>> 8);
+            bytes[4 + 3 * i] = (byte) sparse[i];
+        }
+        return bytes;
+    }
+
+    @Override
+    public byte[] mergedWith(byte[] stored) {
+        HyperLogLog merged = fromBytes(stored);
+        merged.merge(this);
+        return merged.toBytes();
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != PRECISION) {
+            throw new IllegalArgumentException("Not a HyperLogLog sketch of precision " + PRECISION);
+        }
+        HyperLogLog sketch = new HyperLogLog();
+        if (bytes[1] == DENSE) {
+            sketch.sparse = null;
+            sketch.registers = Arrays.copyOfRange(bytes, 2, 2 + REGISTERS);
+            return sketch;
+        }
+        int size = (bytes.length - 2) / 3;
+        sketch.sparse = new int[Math.max(4, size)];
+        for (int i = 0; i < size; i++) {
+            sketch.sparse[i] = (bytes[2 + 3 * i] & 0xFF) << 16 | (bytes[3 + 3 * i] & 0xFF) << 8
+                    | bytes[4 + 3 * i] & 0xFF;
+        }
+        sketch.sparseSize = size;
+        return sketch;
+    }
+}
@@ -0,0 +1,11 @@
+package alejandro.salazar.mejia.schema;
+
+// Summary of the events of an aggregate bucket that, unlike counts and sums, Aerospike cannot
+// add to what is stored: the processor reads the stored bytes and writes them back merged.
+public interface Sketch {
+
+    byte[] toBytes();
+
+    // Bytes of the stored sketch, of the same kind, merged with this one, which is left as is
+    byte[] mergedWith(byte[] stored);
+}
@@ -0,0 +1,180 @@
+package alejandro.salazar.mejia.schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Heaviest values of a dimension in an aggregate bucket, by count or by sum_price, in at most
+// CAPACITY entries whatever the number of values (Space-Saving, Metwally et al.).
+//
+// Each entry has an upper bound of the weight of its value and the error of that bound: the
+// true weight is between weight - error and weight. A value without an entry weighs at most
+// floor(). Once full, a new value takes the place of the lightest entry, starting from its
+// weight, so errors are at most the total weight added divided by CAPACITY, and any value
+// weighing more than that has an entry.
+//
+// Sketches merge by adding up the bounds of every value, taking floor() for a value the other
+// does not list, then keeping the CAPACITY heaviest: the error bounds of the sketches merged
+// add up. Unlike HyperLogLog merging is not idempotent, a sketch must be merged once.
+//
+// Bytes, as stored in the tn_ and ts_ bins (see Dimension): the floor, the number of entries,
+// then the value, weight and error of each entry.
+public final class SpaceSaving implements Sketch {
+
+    public static final int CAPACITY = 128;
+
+    public static final class Entry {
+        private final String value;
+        private final long weight;
+        private final long error;
+
+        Entry(String value, long weight, long error) {
+            this.value = value;
+            this.weight = weight;
+            this.error = error;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        public long weight() {
+            return weight;
+        }
+
+        public long error() {
+            return error;
+        }
+    }
+
+    private static final Comparator<Entry> HEAVIEST_FIRST =
+            Comparator.comparingLong(Entry::weight).reversed().thenComparing(Entry::value);
+
+    // Weight and error by value
+    private final Map<String, long[]> entries = new HashMap<>();
+    // Bound of the values dropped by evictions and merges
+    private long floor;
+
+    public void add(String value, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        long[] entry = entries.get(value);
+        if (entry != null) {
+            entry[0] += weight;
+            return;
+        }
+        long bound = floor();
+        if (entries.size() == CAPACITY) {
+            String lightest = null;
+            long lightestWeight = Long.MAX_VALUE;
+            for (Map.Entry<String, long[]> each : entries.entrySet()) {
+                if (each.getValue()[0] < lightestWeight) {
+                    lightest = each.getKey();
+                    lightestWeight = each.getValue()[0];
+                }
+            }
+            entries.remove(lightest);
+            floor = Math.max(floor, lightestWeight);
+        }
+        entries.put(value, new long[] { bound + weight, bound });
+    }
+
+    public void merge(SpaceSaving other) {
+        long bound = floor();
+        long otherBound = other.floor();
+        for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+            long[] otherEntry = other.entries.get(entry.getKey());
+            entry.getValue()[0] += otherEntry != null ? otherEntry[0] : otherBound;
+            entry.getValue()[1] += otherEntry != null ? otherEntry[1] : otherBound;
+        }
+        for (Map.Entry<String, long[]> entry : other.entries.entrySet()) {
+            if (!entries.containsKey(entry.getKey())) {
+                entries.put(entry.getKey(), new long[] { bound + entry.getValue()[0], bound + entry.getValue()[1] });
+            }
+        }
+        floor = bound + otherBound;
+        if (entries.size() > CAPACITY) {
+            List<Entry> sorted = entries();
+            for (Entry dropped : sorted.subList(CAPACITY, sorted.size())) {
+                entries.remove(dropped.value);
+                floor = Math.max(floor, dropped.weight);
+            }
+        }
+    }
+
+    // Bound of the weight of the values without an entry
+    public long floor() {
+        if (entries.size() < CAPACITY) {
+            return floor;
+        }
+        long lightest = Long.MAX_VALUE;
+        for (long[] entry : entries.values()) {
+            lightest = Math.min(lightest, entry[0]);
+        }
+        return Math.max(floor, lightest);
+    }
+
+    // At most limit entries, heaviest first, ties by value
+    public List<Entry> top(int limit) {
+        List<Entry> sorted = entries();
+        return new ArrayList<>(sorted.subList(0, Math.min(limit, sorted.size())));
+    }
+
+    private List<Entry> entries() {
+        List<Entry> sorted = new ArrayList<>(entries.size());
+        entries.forEach((value, entry) -> sorted.add(new Entry(value, entry[0], entry[1])));
+        sorted.sort(HEAVIEST_FIRST);
+        return sorted;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(floor);
+            out.writeShort(entries.size());
+            for (Entry entry : entries()) {
+                out.writeUTF(entry.value);
+                out.writeLong(entry.weight);
+                out.writeLong(entry.error);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] mergedWith(byte[] stored) {
+        SpaceSaving merged = fromBytes(stored);
+        merged.merge(this);
+        return merged.toBytes();
+    }
+
+    public static SpaceSaving fromBytes(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            SpaceSaving sketch = new SpaceSaving();
+            sketch.floor = in.readLong();
+            int size = in.readShort();
+            for (int i = 0; i < size; i++) {
+                String value = in.readUTF();
+                sketch.entries.put(value, new long[] { in.readLong(), in.readLong() });
+            }
+            return sketch;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not a SpaceSaving sketch", e);
+        }
+    }
+}
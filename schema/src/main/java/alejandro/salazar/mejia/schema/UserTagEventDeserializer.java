@@ -0,0 +1,14 @@
+package alejandro.salazar.mejia.schema;
+
+import org.apache.kafka.common.serialization.Deserializer;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Builds full events, consumers reading a few fields should wrap the bytes in a UserTagEventView
+public class UserTagEventDeserializer implements Deserializer<UserTagEvent> {
+
+    @Override
+    public UserTagEvent deserialize(String topic, byte[] data) {
+        return data == null ? null : UserTagEventFormat.decode(data);
+    }
+}
@@ -0,0 +1,90 @@
+package alejandro.salazar.mejia.schema;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Binary wire format of <user_tag> on the user_tags topic.
+//
+// Version 1, big-endian, numeric fields at fixed offsets so they can be read in place:
+//   0   byte   version
+//   1   long   time, epoch millis
+//   9   int    product_id
+//   13  int    price
+//   17  byte   device (bits 0-1) | action (bits 2-3), 3 meaning null
+//   18  cookie, country, origin, brand_id, category_id, each a short length (-1 meaning null)
+//       followed by the UTF-8 bytes
+//
+// The version byte never equals '{', so JSON values written before the format existed are
+// told apart by their first byte.
+public final class UserTagEventFormat {
+
+    public static final byte VERSION = 1;
+
+    static final int TIME_OFFSET = 1;
+    static final int PRODUCT_ID_OFFSET = 9;
+    static final int PRICE_OFFSET = 13;
+    static final int FLAGS_OFFSET = 17;
+    static final int STRINGS_OFFSET = 18;
+    static final int NULL_ORDINAL = 3;
+
+    // Indexes of the string fields, in layout order
+    public static final int COOKIE = 0;
+    public static final int COUNTRY = 1;
+    public static final int ORIGIN = 2;
+    public static final int BRAND_ID = 3;
+    public static final int CATEGORY_ID = 4;
+    static final int STRING_FIELDS = 5;
+
+    private UserTagEventFormat() {
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data.length > STRINGS_OFFSET && data[0] == VERSION;
+    }
+
+    public static byte[] encode(UserTagEvent event) {
+        Product product = event.getProductInfo();
+        byte[][] strings = {
+            utf8(event.getCookie()), utf8(event.getCountry()), utf8(event.getOrigin()),
+            utf8(product == null ? null : product.getBrandId()), utf8(product == null ? null : product.getCategoryId())
+        };
+
+        int size = STRINGS_OFFSET;
+        for (byte[] string : strings) {
+            size += 2 + (string == null ? 0 : string.length);
+        }
+
+        int device = event.getDevice() == null ? NULL_ORDINAL : event.getDevice().ordinal();
+        int action = event.getAction() == null ? NULL_ORDINAL : event.getAction().ordinal();
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.putLong(event.getTime() == null ? 0 : event.getTime().toEpochMilli());
+        buffer.putInt(product == null ? 0 : product.getProductId());
+        buffer.putInt(product == null ? 0 : product.getPrice());
+        buffer.put((byte) (device | action << 2));
+        for (byte[] string : strings) {
+            if (string == null) {
+                buffer.putShort((short) -1);
+            } else {
+                if (string.length > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("String field too long: " + string.length + " bytes");
+                }
+                buffer.putShort((short) string.length);
+                buffer.put(string);
+            }
+        }
+        return buffer.array();
+    }
+
+    public static UserTagEvent decode(byte[] data) {
+        return new UserTagEventView().wrap(data).toEvent();
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,13 @@
+package alejandro.salazar.mejia.schema;
+
+import org.apache.kafka.common.serialization.Serializer;
+
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+public class UserTagEventSerializer implements Serializer<UserTagEvent> {
+
+    @Override
+    public byte[] serialize(String topic, UserTagEvent event) {
+        return event == null ? null : UserTagEventFormat.encode(event);
+    }
+}
@@ -0,0 +1,121 @@
+package alejandro.salazar.mejia.schema;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+// Reads fields of an encoded event in place, without building a UserTagEvent. Numeric fields
+// are read from their fixed offsets, string fields are located on first access. One instance
+// can be reused for many events with wrap().
+public final class UserTagEventView {
+
+    private static final Device[] DEVICES = Device.values();
+    private static final Action[] ACTIONS = Action.values();
+
+    private byte[] data;
+    private final int[] offsets = new int[UserTagEventFormat.STRING_FIELDS];
+    private int located;
+
+    public UserTagEventView wrap(byte[] data) {
+        if (!UserTagEventFormat.isBinary(data)) {
+            throw new IllegalArgumentException("Not a version " + UserTagEventFormat.VERSION + " user tag event");
+        }
+        this.data = data;
+        this.located = 0;
+        return this;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public long time() {
+        return readLong(UserTagEventFormat.TIME_OFFSET);
+    }
+
+    public int productId() {
+        return readInt(UserTagEventFormat.PRODUCT_ID_OFFSET);
+    }
+
+    public int price() {
+        return readInt(UserTagEventFormat.PRICE_OFFSET);
+    }
+
+    public Device device() {
+        int ordinal = data[UserTagEventFormat.FLAGS_OFFSET] & 0x3;
+        return ordinal == UserTagEventFormat.NULL_ORDINAL ? null : DEVICES[ordinal];
+    }
+
+    public Action action() {
+        int ordinal = data[UserTagEventFormat.FLAGS_OFFSET] >>> 2 & 0x3;
+        return ordinal == UserTagEventFormat.NULL_ORDINAL ? null : ACTIONS[ordinal];
+    }
+
+    // Offset of the UTF-8 bytes of a string field, see the field indexes of UserTagEventFormat
+    public int offset(int field) {
+        locate(field);
+        return offsets[field] + 2;
+    }
+
+    // Length in bytes of a string field, -1 if it is null
+    public int length(int field) {
+        locate(field);
+        return readShort(offsets[field]);
+    }
+
+    public String string(int field) {
+        int length = length(field);
+        return length < 0 ? null : new String(data, offset(field), length, StandardCharsets.UTF_8);
+    }
+
+    public String cookie() {
+        return string(UserTagEventFormat.COOKIE);
+    }
+
+    public String country() {
+        return string(UserTagEventFormat.COUNTRY);
+    }
+
+    public String origin() {
+        return string(UserTagEventFormat.ORIGIN);
+    }
+
+    public String brandId() {
+        return string(UserTagEventFormat.BRAND_ID);
+    }
+
+    public String categoryId() {
+        return string(UserTagEventFormat.CATEGORY_ID);
+    }
+
+    public UserTagEvent toEvent() {
+        return new UserTagEvent(Instant.ofEpochMilli(time()), cookie(), country(), device(), action(), origin(),
+                new Product(productId(), brandId(), categoryId(), price()));
+    }
+
+    private void locate(int field) {
+        int position = located == 0 ? UserTagEventFormat.STRINGS_OFFSET
+                : offsets[located - 1] + 2 + Math.max(readShort(offsets[located - 1]), 0);
+        while (located <= field) {
+            offsets[located++] = position;
+            position += 2 + Math.max(readShort(position), 0);
+        }
+    }
+
+    private long readLong(int offset) {
+        return (long) readInt(offset) << 32 | readInt(offset + 4) & 0xFFFFFFFFL;
+    }
+
+    private int readInt(int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+    }
+
+    private short readShort(int offset) {
+        return (short) ((data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF);
+    }
+}
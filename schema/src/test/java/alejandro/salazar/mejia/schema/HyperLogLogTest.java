@@ -0,0 +1,113 @@
+package alejandro.salazar.mejia.schema;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HyperLogLogTest {
+
+    // Three standard errors of 1.04 / sqrt(2048)
+    private static final double ERROR_BOUND = 3 * 1.04 / Math.sqrt(2048);
+
+    @Test
+    void smallSketchesStaySparse() {
+        HyperLogLog sketch = sketchOf(0, 100);
+
+        byte[] bytes = sketch.toBytes();
+        assertEquals(11, bytes[0]);
+        assertEquals(0, bytes[1]);
+        // One (index, rank) entry per register set, at most one per cookie
+        assertTrue(bytes.length <= 2 + 3 * 100);
+        assertEquals(0, (bytes.length - 2) % 3);
+        assertEquals(100, sketch.estimate(), 100 * ERROR_BOUND);
+    }
+
+    @Test
+    void sparseSketchTurnsDenseOnceAsLarge() {
+        HyperLogLog sketch = new HyperLogLog();
+        long[] estimates = new long[5_000];
+        int sparseUntil = 0;
+        for (int i = 0; i < estimates.length; i++) {
+            sketch.add(HyperLogLog.hash("cookie-" + i));
+            byte[] bytes = sketch.toBytes();
+            if (bytes[1] == 0) {
+                assertTrue(bytes.length <= 2 + 3 * (2048 / 3), () -> "sparse sketch of " + bytes.length + " bytes");
+                sparseUntil = i;
+            } else {
+                assertEquals(2 + 2048, bytes.length);
+            }
+            estimates[i] = sketch.estimate();
+        }
+        int lastSparse = sparseUntil;
+        assertTrue(lastSparse > 500 && lastSparse < estimates.length - 1, () -> "sparse until " + lastSparse);
+
+        // Converting keeps the registers, the cookie that did not fit sets one more
+        byte[] sparse = sketchOf(0, lastSparse + 1).toBytes();
+        byte[] dense = sketchOf(0, lastSparse + 2).toBytes();
+        assertEquals(0, sparse[1]);
+        assertEquals(1, dense[1]);
+        byte[] expanded = new byte[2 + 2048];
+        expanded[0] = 11;
+        expanded[1] = 1;
+        for (int i = 2; i < sparse.length; i += 3) {
+            expanded[2 + ((sparse[i] & 0xFF) << 8 | sparse[i + 1] & 0xFF)] = sparse[i + 2];
+        }
+        int changed = 0;
+        for (int i = 2; i < dense.length; i++) {
+            assertTrue(dense[i] >= expanded[i]);
+            changed += dense[i] != expanded[i] ? 1 : 0;
+        }
+        assertEquals(1, changed);
+        assertEquals(estimates[lastSparse], HyperLogLog.fromBytes(expanded).estimate());
+        assertEquals(estimates[lastSparse + 1], HyperLogLog.fromBytes(dense).estimate());
+    }
+
+    @Test
+    void estimatesAreWithinTheStandardError() {
+        for (int cookies : new int[] { 1, 10, 1_000, 5_000, 20_000, 100_000, 1_000_000 }) {
+            long estimate = sketchOf(cookies * 7L, cookies).estimate();
+            assertEquals(cookies, estimate, Math.max(1, cookies * ERROR_BOUND), () -> cookies + " cookies");
+        }
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        for (int cookies : new int[] { 0, 1, 600, 10_000 }) {
+            HyperLogLog sketch = sketchOf(0, cookies);
+            byte[] bytes = sketch.toBytes();
+            HyperLogLog read = HyperLogLog.fromBytes(bytes);
+            assertArrayEquals(bytes, read.toBytes());
+            assertEquals(sketch.estimate(), read.estimate());
+        }
+        assertThrows(IllegalArgumentException.class, () -> HyperLogLog.fromBytes(new byte[] { 12, 0 }));
+    }
+
+    @Test
+    void mergingIsIdempotentAndInAnyOrder() {
+        HyperLogLog a = sketchOf(0, 300);
+        HyperLogLog b = sketchOf(200, 20_000);
+
+        HyperLogLog ab = new HyperLogLog();
+        ab.merge(a);
+        ab.merge(b);
+        HyperLogLog ba = HyperLogLog.fromBytes(a.mergedWith(b.toBytes()));
+        assertArrayEquals(ab.toBytes(), ba.toBytes());
+
+        ab.merge(a);
+        ab.merge(b);
+        assertArrayEquals(ba.toBytes(), ab.toBytes());
+        assertArrayEquals(sketchOf(0, 20_200).toBytes(), ab.toBytes());
+        assertEquals(20_200, ab.estimate(), 20_200 * ERROR_BOUND);
+    }
+
+    private static HyperLogLog sketchOf(long from, long count) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (long i = from; i < from + count; i++) {
+            sketch.add(HyperLogLog.hash("cookie-" + i));
+        }
+        return sketch;
+    }
+}
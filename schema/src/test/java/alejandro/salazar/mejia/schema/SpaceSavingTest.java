@@ -0,0 +1,102 @@
+package alejandro.salazar.mejia.schema;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class SpaceSavingTest {
+
+    @Test
+    void fewValuesAreExact() {
+        SpaceSaving sketch = new SpaceSaving();
+        sketch.add("a", 3);
+        sketch.add("b", 5);
+        sketch.add("a", 4);
+        sketch.add("c", 0);
+
+        List<SpaceSaving.Entry> top = sketch.top(10);
+        assertEquals(2, top.size());
+        assertEntry("a", 7, 0, top.get(0));
+        assertEntry("b", 5, 0, top.get(1));
+        assertEquals(0, sketch.floor());
+        assertEquals(1, sketch.top(1).size());
+    }
+
+    @Test
+    void boundsHoldPastCapacity() {
+        Map<String, Long> weights = new HashMap<>();
+        SpaceSaving sketch = new SpaceSaving();
+        long total = add(sketch, weights, new Random(1), 50_000);
+
+        assertBounds(weights, total, sketch);
+        // Values weighing more than the error bound are all listed
+        Set<String> listed = new HashSet<>();
+        sketch.top(SpaceSaving.CAPACITY).forEach(entry -> listed.add(entry.value()));
+        weights.forEach((value, weight) -> assertTrue(weight <= total / SpaceSaving.CAPACITY || listed.contains(value),
+                value));
+    }
+
+    @Test
+    void mergedBoundsAddUp() {
+        Map<String, Long> weights = new HashMap<>();
+        SpaceSaving merged = new SpaceSaving();
+        long total = 0;
+        long errors = 0;
+        Random random = new Random(2);
+        for (int i = 0; i < 8; i++) {
+            SpaceSaving sketch = new SpaceSaving();
+            long added = add(sketch, weights, random, 5_000);
+            errors += added / SpaceSaving.CAPACITY;
+            total += added;
+            // Through the bytes, as the processor merges into the stored sketches
+            merged = SpaceSaving.fromBytes(sketch.mergedWith(merged.toBytes()));
+
+            assertBounds(weights, errors, merged);
+        }
+        assertTrue(merged.top(1).get(0).weight() <= total);
+    }
+
+    // Skewed weights over many more values than the capacity
+    private static long add(SpaceSaving sketch, Map<String, Long> weights, Random random, int events) {
+        long total = 0;
+        for (int i = 0; i < events; i++) {
+            String value = "value-" + (int) Math.pow(1_000, random.nextDouble());
+            long weight = 1 + random.nextInt(100);
+            sketch.add(value, weight);
+            weights.merge(value, weight, Long::sum);
+            total += weight;
+        }
+        return total;
+    }
+
+    // True weights are within the bounds of the entries, and at most floor() for the others
+    private static void assertBounds(Map<String, Long> weights, long maxError, SpaceSaving sketch) {
+        Map<String, SpaceSaving.Entry> entries = new HashMap<>();
+        sketch.top(SpaceSaving.CAPACITY).forEach(entry -> entries.put(entry.value(), entry));
+        assertEquals(SpaceSaving.CAPACITY, entries.size());
+        assertTrue(sketch.floor() <= maxError);
+        weights.forEach((value, weight) -> {
+            SpaceSaving.Entry entry = entries.get(value);
+            if (entry == null) {
+                assertTrue(weight <= sketch.floor(), value);
+            } else {
+                assertTrue(entry.weight() - entry.error() <= weight && weight <= entry.weight(), value);
+                assertTrue(entry.error() <= maxError, value);
+            }
+        });
+    }
+
+    private static void assertEntry(String value, long weight, long error, SpaceSaving.Entry entry) {
+        assertEquals(value, entry.value());
+        assertEquals(weight, entry.weight());
+        assertEquals(error, entry.error());
+    }
+}
@@ -0,0 +1,93 @@
+package alejandro.salazar.mejia.schema;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+import alejandro.salazar.mejia.domain.Action;
+import alejandro.salazar.mejia.domain.Device;
+import alejandro.salazar.mejia.domain.Product;
+import alejandro.salazar.mejia.domain.UserTagEvent;
+
+class UserTagEventFormatTest {
+
+    @Test
+    void eventRoundTrips() {
+        UserTagEvent event = new UserTagEvent(Instant.parse("2022-03-01T00:00:01.123Z"), "cookie", "PL",
+                Device.MOBILE, Action.BUY, "zażółć", new Product(7, "brand", "category", 1_000_000));
+
+        UserTagEvent decoded = UserTagEventFormat.decode(UserTagEventFormat.encode(event));
+
+        assertEquals(event.getTime(), decoded.getTime());
+        assertEquals("cookie", decoded.getCookie());
+        assertEquals("PL", decoded.getCountry());
+        assertEquals(Device.MOBILE, decoded.getDevice());
+        assertEquals(Action.BUY, decoded.getAction());
+        assertEquals("zażółć", decoded.getOrigin());
+        assertEquals(7, decoded.getProductInfo().getProductId());
+        assertEquals("brand", decoded.getProductInfo().getBrandId());
+        assertEquals("category", decoded.getProductInfo().getCategoryId());
+        assertEquals(1_000_000, decoded.getProductInfo().getPrice());
+    }
+
+    @Test
+    void nullFieldsStayNull() {
+        UserTagEvent event = new UserTagEvent(null, null, null, null, null, null, null);
+
+        UserTagEventView view = new UserTagEventView().wrap(UserTagEventFormat.encode(event));
+
+        assertEquals(0, view.time());
+        assertNull(view.cookie());
+        assertNull(view.country());
+        assertNull(view.device());
+        assertNull(view.action());
+        assertNull(view.origin());
+        assertEquals(0, view.productId());
+        assertEquals(0, view.price());
+        assertNull(view.brandId());
+        assertNull(view.categoryId());
+    }
+
+    @Test
+    void viewReadsEachFieldInPlace() {
+        UserTagEvent event = new UserTagEvent(Instant.ofEpochMilli(-1), "", "DE", Device.TV, Action.VIEW, null,
+                new Product(-5, null, "c", -7));
+        UserTagEventView view = new UserTagEventView().wrap(UserTagEventFormat.encode(event));
+
+        // Fields after a null or empty string are found all the same, in any order
+        assertEquals("c", view.categoryId());
+        assertNull(view.brandId());
+        assertEquals("", view.cookie());
+        assertNull(view.origin());
+        assertEquals("DE", view.country());
+        assertEquals(-1, view.time());
+        assertEquals(-5, view.productId());
+        assertEquals(-7, view.price());
+        assertEquals(Device.TV, view.device());
+        assertEquals(Action.VIEW, view.action());
+
+        // The view is reused for the next event
+        view.wrap(UserTagEventFormat.encode(new UserTagEvent(Instant.EPOCH, "other", null, Device.PC, Action.BUY,
+                "o", null)));
+        assertEquals("other", view.cookie());
+        assertNull(view.categoryId());
+        assertEquals(Device.PC, view.device());
+    }
+
+    @Test
+    void jsonIsNotBinary() {
+        UserTagEvent event = new UserTagEvent(Instant.EPOCH, "cookie", "PL", Device.PC, Action.VIEW, "origin",
+                new Product(1, "b", "c", 2));
+
+        assertTrue(UserTagEventFormat.isBinary(UserTagEventFormat.encode(event)));
+        assertFalse(UserTagEventFormat.isBinary("{\"time\":\"2022-03-01T00:00:00Z\",\"cookie\":\"c\"}"
+                .getBytes(StandardCharsets.UTF_8)));
+        assertFalse(UserTagEventFormat.isBinary(new byte[] { UserTagEventFormat.VERSION }));
+    }
+}